@@ -0,0 +1,209 @@
+package mapreduce;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Jars of compiled Mappers kept on disk under the SHA-256 of their bytes, on the
+ * Master and on every worker.  A job names the artifact its Mapper is in, so a
+ * worker only fetches artifacts it does not already hold, and the same Mapper
+ * submitted again is neither compiled nor sent again.
+ *
+ * Each artifact is loaded by its own class loader, which holds every class in
+ * the jar, so inner and anonymous classes of a Mapper go along with it.
+ */
+public class ArtifactStore {
+
+	// fixed time for the entries of jars built here, so the same classes hash the same
+	protected static final long ENTRY_TIME = 315532800000L;  // 1980-01-01, the earliest zip time
+
+	protected File dir;
+	protected Map<String, URLClassLoader> loaders;
+
+	/**
+	 * @param dir directory the artifacts are kept in, created if needed
+	 */
+	public ArtifactStore(File dir) {
+		this.dir = dir;
+		if (!dir.isDirectory())
+			dir.mkdirs();
+		loaders = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * @param hash SHA-256 of an artifact
+	 * @return File the artifact is kept in, which may not exist
+	 */
+	public File file(String hash) {
+		return new File(dir, hash + ".jar");
+	}
+
+	public boolean contains(String hash) {
+		return file(hash).isFile();
+	}
+
+	/**
+	 * Stores a jar unless an identical one is already held
+	 *
+	 * @param jar bytes of the jar
+	 * @return String hash the jar is stored under
+	 * @throws IOException if it cannot be written
+	 */
+	public String put(byte[] jar) throws IOException {
+		String hash = hash(jar);
+		if (!contains(hash)) {
+			// written under another name first, so a partial artifact is never seen
+			File tmp = File.createTempFile(hash, ".tmp", dir);
+			Files.write(tmp.toPath(), jar);
+			Files.move(tmp.toPath(), file(hash).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		return hash;
+	}
+
+	/**
+	 * Stores every class file under a directory, such as the output of the compiler,
+	 * as one jar.  The entries are sorted and their times fixed, so the same classes
+	 * always make the same artifact
+	 *
+	 * @param classes root directory of the classes, matching their packages
+	 * @return String hash the jar is stored under
+	 * @throws IOException if the classes cannot be read or the jar written
+	 */
+	public String putClasses(File classes) throws IOException {
+		List<String> names = new ArrayList<>();
+		listClasses(classes, "", names);
+		Collections.sort(names);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		JarOutputStream jar = new JarOutputStream(bytes);
+		for (String name : names) {
+			JarEntry entry = new JarEntry(name);
+			entry.setTime(ENTRY_TIME);
+			jar.putNextEntry(entry);
+			jar.write(Files.readAllBytes(new File(classes, name).toPath()));
+			jar.closeEntry();
+		}
+		jar.close();
+		return put(bytes.toByteArray());
+	}
+
+	protected void listClasses(File dir, String prefix, List<String> names) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File f : files) {
+			if (f.isDirectory())
+				listClasses(f, prefix + f.getName() + "/", names);
+			else if (f.getName().endsWith(".class"))
+				names.add(prefix + f.getName());
+		}
+	}
+
+	/**
+	 * Checks a received artifact against the hash it was sent as, and moves it 
+	 * into the store if it matches.  It is deleted if it does not
+	 *
+	 * @param hash the hash the artifact was sent as
+	 * @param received the file it was received into
+	 * @return boolean true if the artifact is intact
+	 * @throws IOException if it cannot be read or moved
+	 */
+	public boolean accept(String hash, File received) throws IOException {
+		if (!hash(Files.readAllBytes(received.toPath())).equals(hash)) {
+			Files.delete(received.toPath());
+			return false;
+		}
+		Files.move(received.toPath(), file(hash).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return true;
+	}
+
+	/**
+	 * Loads a class from an artifact, with one class loader per artifact
+	 *
+	 * @param hash the artifact holding the class
+	 * @param className binary name of the class
+	 * @return Class loaded
+	 * @throws IOException if the artifact is not held
+	 * @throws ClassNotFoundException if it does not hold the class
+	 */
+	public Class<?> loadClass(String hash, String className) throws IOException, ClassNotFoundException {
+		URLClassLoader loader = loaders.get(hash);
+		if (loader == null) {
+			if (!contains(hash))
+				throw new IOException("No artifact " + hash);
+			loader = new URLClassLoader(new URL[] { file(hash).toURI().toURL() }, Mapper.class.getClassLoader());
+			URLClassLoader existing = loaders.putIfAbsent(hash, loader);
+			if (existing != null) {
+				loader.close();
+				loader = existing;
+			}
+		}
+		return loader.loadClass(className);
+	}
+
+	/**
+	 * Finds the Mapper in an artifact: the Main-Class of its manifest if it has one,
+	 * else the first class in it that extends Mapper
+	 *
+	 * @param hash the artifact to search
+	 * @return String binary name of the class, or null if there is none
+	 * @throws IOException if the artifact cannot be read
+	 */
+	public String findMapper(String hash) throws IOException {
+		InputStream in = new FileInputStream(file(hash));
+		try {
+			JarInputStream jar = new JarInputStream(in);
+			Manifest manifest = jar.getManifest();
+			if (manifest != null && manifest.getMainAttributes().getValue(Attributes.Name.MAIN_CLASS) != null)
+				return manifest.getMainAttributes().getValue(Attributes.Name.MAIN_CLASS);
+			JarEntry entry;
+			while ((entry = jar.getNextJarEntry()) != null) {
+				String name = entry.getName();
+				if (!name.endsWith(".class"))
+					continue;
+				name = name.substring(0, name.length() - ".class".length()).replace('/', '.');
+				try {
+					if (Mapper.class.isAssignableFrom(loadClass(hash, name)))
+						return name;
+				} catch (ClassNotFoundException | LinkageError e) {}  // not a class we can use
+			}
+			return null;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @param bytes contents to hash
+	 * @return String SHA-256 of the bytes in hex
+	 */
+	public static String hash(byte[] bytes) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+			for (byte b : digest)
+				hex.append(String.format("%02x", b & 0xFF));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-256 is not available", e);
+		}
+	}
+}
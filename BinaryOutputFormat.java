@@ -0,0 +1,56 @@
+package mapreduce;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the results in the chunked form the workers shuffle with, which is far
+ * more compact than text when the job has Codecs.  A part file is read back with
+ * a ChunkedInput made with the same Codecs and BlockCompressor.
+ */
+public class BinaryOutputFormat<K, V> implements OutputFormat<K, V> {
+
+	protected Codec<K> keyCodec;
+	protected Codec<V> valueCodec;
+	protected BlockCompressor compressor;
+
+	/**
+	 * @param keyCodec Codec of the keys, or null for Java serialization
+	 * @param valueCodec Codec of the values, or null for Java serialization
+	 */
+	public BinaryOutputFormat(Codec<K> keyCodec, Codec<V> valueCodec) {
+		this(keyCodec, valueCodec, null);
+	}
+
+	/**
+	 * @param keyCodec Codec of the keys, or null for Java serialization
+	 * @param valueCodec Codec of the values, or null for Java serialization
+	 * @param compressor compresses each chunk, or null to write them as they are
+	 */
+	public BinaryOutputFormat(Codec<K> keyCodec, Codec<V> valueCodec, BlockCompressor compressor) {
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+		this.compressor = compressor;
+	}
+
+	public RecordWriter<K, V> create(final File file) throws IOException {
+		final OutputStream out = new FileOutputStream(file);
+		final ChunkedOutput chunks = new ChunkedOutput(out, keyCodec, valueCodec, compressor);
+		return new RecordWriter<K, V>() {
+			public void write(K key, V value) throws IOException {
+				chunks.write(key, value);
+			}
+
+			public long close() throws IOException {
+				try {
+					chunks.finish();
+				} finally {
+					out.close();
+				}
+				return file.length();
+			}
+		};
+	}
+}
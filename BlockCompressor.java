@@ -0,0 +1,89 @@
+package mapreduce;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compresses the frames of a CompressedOutputStream.  A Mapper picks one with 
+ * getCompressor, and the same kind is used on both ends of its shuffle and 
+ * result streams.  Each instance counts the bytes it has seen and the CPU time 
+ * it has spent, so the codecs can be compared on a workload.
+ * 
+ * Instances are shared by the threads of a job, so subclasses must be thread-safe.
+ */
+public abstract class BlockCompressor {
+
+	protected static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	protected AtomicLong rawBytes = new AtomicLong();
+	protected AtomicLong compressedBytes = new AtomicLong();
+	protected AtomicLong compressNanos = new AtomicLong();
+	protected AtomicLong decompressNanos = new AtomicLong();
+
+	/**
+	 * @return String name of the codec, used in reports
+	 */
+	public abstract String getName();
+
+	/**
+	 * @param length number of bytes in a block
+	 * @return int size of the dst array needed to compress the block
+	 */
+	public abstract int maxCompressedLength(int length);
+
+	/**
+	 * @return int number of bytes written to dst, or -1 if the block did not fit
+	 */
+	protected abstract int encode(byte[] src, int length, byte[] dst);
+
+	/**
+	 * Fills dst[0] to dst[rawLength-1] from the compressed block
+	 * 
+	 * @throws IOException if the block is corrupt
+	 */
+	protected abstract void decode(byte[] src, int length, byte[] dst, int rawLength) throws IOException;
+
+	/**
+	 * Compresses a block
+	 * 
+	 * @param src bytes to compress
+	 * @param length number of bytes of src to use
+	 * @param dst array of at least maxCompressedLength(length) bytes
+	 * @return int length of the compressed block in dst, or -1 when compression 
+	 * 		   would not make the block smaller
+	 */
+	public int compress(byte[] src, int length, byte[] dst) {
+		long start = cpuTime();
+		int packed = encode(src, length, dst);
+		if (packed >= length)
+			packed = -1;
+		compressNanos.addAndGet(cpuTime() - start);
+		rawBytes.addAndGet(length);
+		compressedBytes.addAndGet(packed < 0 ? length : packed);
+		return packed;
+	}
+
+	public void decompress(byte[] src, int length, byte[] dst, int rawLength) throws IOException {
+		long start = cpuTime();
+		decode(src, length, dst, rawLength);
+		decompressNanos.addAndGet(cpuTime() - start);
+	}
+
+	/**
+	 * @return String of the compression ratio and CPU time so far
+	 */
+	public String report() {
+		long raw = rawBytes.get(), packed = compressedBytes.get();
+		return String.format("%s compressed %d bytes to %d (%.1f%%) in %d ms CPU, decompressed in %d ms CPU", 
+				getName(), raw, packed, raw == 0 ? 100.0 : 100.0 * packed / raw, 
+				compressNanos.get() / 1000000, decompressNanos.get() / 1000000);
+	}
+
+	protected static long cpuTime() {
+		if (threads.isCurrentThreadCpuTimeSupported())
+			return threads.getCurrentThreadCpuTime();
+		return System.nanoTime();
+	}
+}
@@ -0,0 +1,124 @@
+package mapreduce;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+
+/**
+ * Reads the chunks of (key, value) pairs written by a ChunkedOutput.  A single
+ * stream header is used for the whole transfer, and each call to next()
+ * makes one chunk available through keys() and values().
+ */
+public class ChunkedInput {
+
+	protected ObjectInputStream objInStream;
+	// used instead of objInStream when there are Codecs
+	protected DataInputStream dataStream;
+	protected byte[] chunkBytes;
+	protected Codec<?> keyCodec;
+	protected Codec<?> valueCodec;
+	protected Object[] keys;
+	protected Object[] values;
+
+	public ChunkedInput(InputStream in) throws IOException {
+		this(in, null, null, null);
+	}
+	
+	public ChunkedInput(InputStream in, Codec<?> keyCodec, Codec<?> valueCodec) throws IOException {
+		this(in, keyCodec, valueCodec, null);
+	}
+
+	/**
+	 * @param in stream to read from, which is not read past the end of the chunks
+	 * @param keyCodec Codec of the keys, or null for Java serialization
+	 * @param valueCodec Codec of the values, or null for Java serialization
+	 * @param compressor the BlockCompressor the chunks were written with, or null
+	 * @throws IOException if the stream fails
+	 */
+	public ChunkedInput(InputStream in, Codec<?> keyCodec, Codec<?> valueCodec, 
+			BlockCompressor compressor) throws IOException {
+		this(in, keyCodec, valueCodec, compressor, null);
+	}
+
+	/**
+	 * @param in stream to read from, which is not read past the end of the chunks
+	 * @param keyCodec Codec of the keys, or null for Java serialization
+	 * @param valueCodec Codec of the values, or null for Java serialization
+	 * @param compressor the BlockCompressor the chunks were written with, or null
+	 * @param loader ClassLoader of the job's Mapper, which Java serialization 
+	 * 		  resolves the key and value classes through, or null for the default
+	 * @throws IOException if the stream fails
+	 */
+	public ChunkedInput(InputStream in, Codec<?> keyCodec, Codec<?> valueCodec, 
+			BlockCompressor compressor, final ClassLoader loader) throws IOException {
+		if (compressor != null)
+			in = new CompressedInputStream(in, compressor);
+		if (keyCodec != null && valueCodec != null) {
+			this.keyCodec = keyCodec;
+			this.valueCodec = valueCodec;
+			dataStream = new DataInputStream(in);
+			chunkBytes = new byte[0];
+		}
+		else
+			objInStream = new ObjectInputStream(in) {
+				// classes submitted with a job are only known to its artifact's class loader
+				protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+					if (loader != null)
+						try {
+							return Class.forName(desc.getName(), false, loader);
+						} catch (ClassNotFoundException e) {}  // such as a primitive type
+					return super.resolveClass(desc);
+				}
+			};
+	}
+
+	/**
+	 * Reads the next chunk from the stream
+	 *
+	 * @return true if a chunk was read, false if the end of stream marker was reached
+	 * @throws IOException if the stream fails
+	 * @throws ClassNotFoundException if a key or value class cannot be loaded
+	 */
+	public boolean next() throws IOException, ClassNotFoundException {
+		if (dataStream != null)
+			return nextChunk();
+		keys = (Object[]) objInStream.readObject();
+		if (keys.length == 0) {
+			values = keys;
+			return false;
+		}
+		values = (Object[]) objInStream.readObject();
+		return true;
+	}
+
+	protected boolean nextChunk() throws IOException {
+		int size = dataStream.readInt();
+		if (size == 0) {
+			keys = values = new Object[0];
+			return false;
+		}
+		int length = dataStream.readInt();
+		if (chunkBytes.length < length)
+			chunkBytes = new byte[length];
+		dataStream.readFully(chunkBytes, 0, length);
+		DataInputStream chunk = new DataInputStream(new ByteArrayInputStream(chunkBytes, 0, length));
+		keys = new Object[size];
+		values = new Object[size];
+		for (int i = 0; i < size; i++) {
+			keys[i] = keyCodec.read(chunk);
+			values[i] = valueCodec.read(chunk);
+		}
+		return true;
+	}
+
+	public Object[] keys() {
+		return keys;
+	}
+
+	public Object[] values() {
+		return values;
+	}
+}
@@ -0,0 +1,134 @@
+package mapreduce;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Streams (key, value) pairs over a socket in large chunks, so that a whole
+ * collection of pairs is sent with a single stream header and no per-pair ACK.
+ * Read with a ChunkedInput made with the same Codecs.
+ * 
+ * With a BlockCompressor, the stream is compressed a chunk at a time.
+ * When both Codecs are given, each chunk is the number of pairs and the number 
+ * of bytes that follow, then the pairs written by the Codecs.  Otherwise Java 
+ * serialization is used, and each chunk is written as an Object[] of keys 
+ * followed by an Object[] of values.  Either way an empty chunk marks the end 
+ * of the stream.
+ *
+ * The underlying stream is never closed, since it is usually a socket that
+ * is still needed for further commands.
+ */
+public class ChunkedOutput {
+
+	protected ObjectOutputStream objStream;
+	// used instead of objStream when there are Codecs
+	protected DataOutputStream dataStream;
+	protected ByteArrayOutputStream chunkBytes;
+	protected DataOutputStream chunkStream;
+	protected Codec<Object> keyCodec;
+	protected Codec<Object> valueCodec;
+	protected Object[] keys;
+	protected Object[] values;
+	protected int size;
+
+	public ChunkedOutput(OutputStream out) throws IOException {
+		this(out, null, null, null);
+	}
+	
+	public ChunkedOutput(OutputStream out, Codec<?> keyCodec, Codec<?> valueCodec) throws IOException {
+		this(out, keyCodec, valueCodec, null);
+	}
+
+	/**
+	 * @param out stream to write to
+	 * @param keyCodec Codec of the keys, or null for Java serialization
+	 * @param valueCodec Codec of the values, or null for Java serialization
+	 * @param compressor compresses each chunk, or null to send them as they are
+	 * @throws IOException if the stream fails
+	 */
+	@SuppressWarnings("unchecked")
+	public ChunkedOutput(OutputStream out, Codec<?> keyCodec, Codec<?> valueCodec, 
+			BlockCompressor compressor) throws IOException {
+		if (compressor != null)
+			out = new CompressedOutputStream(out, compressor);
+		if (keyCodec != null && valueCodec != null) {
+			this.keyCodec = (Codec<Object>) keyCodec;
+			this.valueCodec = (Codec<Object>) valueCodec;
+			dataStream = new DataOutputStream(new BufferedOutputStream(out, Utils.BUFFER_SIZE));
+			chunkBytes = new ByteArrayOutputStream(Utils.BUFFER_SIZE);
+			chunkStream = new DataOutputStream(chunkBytes);
+		}
+		else
+			objStream = new ObjectOutputStream(new BufferedOutputStream(out, Utils.BUFFER_SIZE));
+		keys = new Object[Utils.CHUNK_SIZE];
+		values = new Object[Utils.CHUNK_SIZE];
+		size = 0;
+	}
+
+	/**
+	 * Adds a pair to the current chunk, which is sent once it is full
+	 *
+	 * @param key Object key to send
+	 * @param value Object value paired with the key
+	 * @throws IOException if the stream fails
+	 */
+	public void write(Object key, Object value) throws IOException {
+		keys[size] = key;
+		values[size] = value;
+		if (++size == keys.length)
+			writeChunk();
+	}
+
+	/**
+	 * Sends any partial chunk along with the end of stream marker
+	 *
+	 * @throws IOException if the stream fails
+	 */
+	public void finish() throws IOException {
+		if (size > 0)
+			writeChunk();
+		if (dataStream != null) {
+			dataStream.writeInt(0);
+			dataStream.flush();
+		}
+		else {
+			objStream.writeObject(new Object[0]);
+			objStream.flush();
+		}
+	}
+
+	protected void writeChunk() throws IOException {
+		if (dataStream != null) {
+			// the byte length lets the reader take the chunk in one read
+			chunkBytes.reset();
+			for (int i = 0; i < size; i++) {
+				keyCodec.write(chunkStream, keys[i]);
+				valueCodec.write(chunkStream, values[i]);
+			}
+			chunkStream.flush();
+			dataStream.writeInt(size);
+			dataStream.writeInt(chunkBytes.size());
+			chunkBytes.writeTo(dataStream);
+			dataStream.flush();
+			size = 0;
+			return;
+		}
+		Object[] k = keys, v = values;
+		if (size < keys.length) {
+			k = new Object[size];
+			v = new Object[size];
+			System.arraycopy(keys, 0, k, 0, size);
+			System.arraycopy(values, 0, v, 0, size);
+		}
+		objStream.writeObject(k);
+		objStream.writeObject(v);
+		// reset so the stream does not hold a reference to every object sent
+		objStream.reset();
+		objStream.flush();
+		size = 0;
+	}
+}
@@ -1,9 +1,7 @@
 package mapreduce;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 
 public class Client extends SocketClient {
@@ -15,7 +13,7 @@ public class Client extends SocketClient {
     @Override
     public void usageTemplate() {
 		System.out.println("Correct usage: java Client <jobFile> [<file1> <file2>...] [-h <hostName>] [-p <port>]");
-		System.out.println("\t<jobFile>: A source file that extends Mapper.");	
+		System.out.println("\t<jobFile>: A source file that extends Mapper, or a jar holding one.");	
 		System.out.println("\t<file1> <file2>...: Files to be operated on. Omit to use all Worker files.");	
 		System.out.println("\t-h: override localhost to set the host to <hostName>.");
 		System.out.println("\t-p: override default port 40000 to <port>.");
@@ -25,11 +23,12 @@ public class Client extends SocketClient {
 	
 	public void sendJob(String jobFile, String...filePaths) {
 		try {
-			Path file = Paths.get(jobFile);
-			byte[] filedata = Files.readAllBytes(file);
-			Utils.writeFile(out, file.getFileName().toString(), filedata);
-			in.read();  // wait for reply from master before sending next message
-			Utils.writeFilenames(out, filePaths);
+			Utils.writeStreamCommand(out, Utils.M2W_MR_UPLOAD, Utils.NONE);
+			Utils.sendFile(socket, out, new File(jobFile));
+			Message.expect(in, Utils.ACK);  // wait for reply from master before sending next message
+			Message files = new Message(Utils.C2M_JOB_FILES, Utils.NONE);
+			Utils.writeFilenames(files.body(), filePaths);
+			files.send(out);
 			System.out.printf("%s uploaded to Master server from Client %d%n", jobFile, id);
 			closeConnection();
 		} catch (IOException e) {
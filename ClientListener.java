@@ -1,5 +1,7 @@
 package mapreduce;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -32,8 +34,10 @@ public class ClientListener extends Thread {
 	public synchronized void closeConnection() {
 		stopped = true;
     	try {
-    		in.close();
-    		out.close();
+    		if (in != null) {  // null until a client has connected
+    			in.close();
+    			out.close();
+    		}
 			clientSocket.close();
     	} catch (IOException e) { }  //ignore exceptions since you are closing it anyways
     }
@@ -43,12 +47,15 @@ public class ClientListener extends Thread {
 			try {
 				Socket client = this.clientSocket.accept();
 				System.out.println("Client connected: " + client);
-				in = client.getInputStream();
-				out = client.getOutputStream();
+				in = new BufferedInputStream(client.getInputStream(), Utils.BUFFER_SIZE);
+				out = new BufferedOutputStream(client.getOutputStream(), Utils.BUFFER_SIZE);
 				out.write(++connections);  //client waits for an ID
+				out.flush();
+				Message.expect(in, Utils.M2W_MR_UPLOAD);
 				MRFileName = Utils.receiveFile(in, master.basePath + File.separator);  // receive the MR java file
-				out.write(Utils.ACK);  // notify client you received it
-				List<String> filesToUse = Utils.readFilenames(in);  // receive files to operate on
+				Utils.writeCommand(out, Utils.ACK, Utils.NONE);  // notify client you received it
+				// receive files to operate on
+				List<String> filesToUse = Utils.readFilenames(Message.expect(in, Utils.C2M_JOB_FILES).payload());
 				master.receiveMRJob(MRFileName, filesToUse, false);
 			} catch (Exception e) {
 				System.err.println("Exception while accepting client connection: " + e);
@@ -0,0 +1,19 @@
+package mapreduce;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes and reads values of one type in a compact binary form, for the bulk 
+ * streams between the Master and the workers.  Codecs for the common types are
+ * in Codecs, and a Mapper declares the ones its keys and values use.
+ *
+ * @param <T> type of the values
+ */
+public interface Codec<T> {
+
+	public void write(DataOutput out, T value) throws IOException;
+
+	public T read(DataInput in) throws IOException;
+}
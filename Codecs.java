@@ -0,0 +1,106 @@
+package mapreduce;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The built-in Codecs, for the value types and lists of them
+ */
+public class Codecs {
+
+	public static final Codec<String> STRING = new Codec<String>() {
+		public void write(DataOutput out, String value) throws IOException {
+			// writeUTF is limited to 64KB, so the length is sent as an int
+			byte[] b = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(b.length);
+			out.write(b);
+		}
+
+		public String read(DataInput in) throws IOException {
+			byte[] b = new byte[in.readInt()];
+			in.readFully(b);
+			return new String(b, StandardCharsets.UTF_8);
+		}
+	};
+
+	public static final Codec<Integer> INTEGER = new Codec<Integer>() {
+		public void write(DataOutput out, Integer value) throws IOException {
+			out.writeInt(value);
+		}
+
+		public Integer read(DataInput in) throws IOException {
+			return in.readInt();
+		}
+	};
+
+	public static final Codec<Long> LONG = new Codec<Long>() {
+		public void write(DataOutput out, Long value) throws IOException {
+			out.writeLong(value);
+		}
+
+		public Long read(DataInput in) throws IOException {
+			return in.readLong();
+		}
+	};
+
+	public static final Codec<Double> DOUBLE = new Codec<Double>() {
+		public void write(DataOutput out, Double value) throws IOException {
+			out.writeDouble(value);
+		}
+
+		public Double read(DataInput in) throws IOException {
+			return in.readDouble();
+		}
+	};
+
+	/**
+	 * @param element Codec of the elements, or null for Java serialization
+	 * @return Codec for a list of elements, which reads back an ArrayList, or 
+	 * 		   null when element is null
+	 */
+	public static <T> Codec<List<T>> listOf(final Codec<T> element) {
+		if (element == null)
+			return null;
+		return new Codec<List<T>>() {
+			public void write(DataOutput out, List<T> value) throws IOException {
+				out.writeInt(value.size());
+				for (T t : value)
+					element.write(out, t);
+			}
+
+			public List<T> read(DataInput in) throws IOException {
+				int size = in.readInt();
+				List<T> list = new ArrayList<>(size);
+				for (int i = 0; i < size; i++)
+					list.add(element.read(in));
+				return list;
+			}
+		};
+	}
+
+	/**
+	 * @param type a Writable class with a public no-argument constructor
+	 * @return Codec that lets each value write and read its own fields
+	 */
+	public static <T extends Writable> Codec<T> writable(final Class<T> type) {
+		return new Codec<T>() {
+			public void write(DataOutput out, T value) throws IOException {
+				value.write(out);
+			}
+
+			public T read(DataInput in) throws IOException {
+				try {
+					T value = type.getDeclaredConstructor().newInstance();
+					value.readFields(in);
+					return value;
+				} catch (ReflectiveOperationException e) {
+					throw new IOException("Cannot create a " + type.getName(), e);
+				}
+			}
+		};
+	}
+}
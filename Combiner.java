@@ -0,0 +1,26 @@
+package mapreduce;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A Mapper can implement this interface to combine the values of a key on the
+ * map side, before they are shuffled to other workers.  The combined value is
+ * passed to reduce along with the other values of the key, so this only suits
+ * associative reductions like sums or counts, where reducing partial results
+ * gives the same answer.
+ *
+ * @param <K> key type of the Mapper
+ * @param <V> intermediate value type of the Mapper
+ */
+public interface Combiner<K extends Serializable, V extends Serializable> {
+
+	/**
+	 * Combines some of the values emitted for a key into a single value
+	 *
+	 * @param key the key the values were emitted for
+	 * @param listOfValues values to combine, which should not be modified
+	 * @return V the value that replaces listOfValues
+	 */
+	public V combine(K key, List<V> listOfValues);
+}
@@ -55,6 +55,10 @@ public class CommandLine extends Thread {
 					printLD();
 				else if (line[1].equalsIgnoreCase("lf"))
 					printLF();
+				else if (line[1].equalsIgnoreCase("put"))
+					printPut();
+				else if (line[1].equalsIgnoreCase("jobs"))
+					printJobs();
 				else
 					unrecognized(line[1]);
 			else if (line[0].equalsIgnoreCase("ls")) {
@@ -68,6 +72,8 @@ public class CommandLine extends Thread {
 					}
 				}
 			}
+			else if (line[0].equalsIgnoreCase("jobs"))
+				m.scheduler.printStatus();
 			else if (line[0].equalsIgnoreCase("q")) {
 				System.out.printf("Really quit? There %s %d job%s pending%n> ", 
 						(m.getJobs()==1?"is":"are"), m.getJobs(), (m.getJobs()==1?"":"s"));
@@ -112,6 +118,17 @@ public class CommandLine extends Thread {
 						m.sendRegularFile(command, wkr);
 				}
 			}
+			else if (line[0].equalsIgnoreCase("put")) {
+				if (line.length >= 2) {
+					try {
+						m.placeFile(line[1], line.length > 2 ? Integer.parseInt(line[2]) : m.replicas);
+					} catch (NumberFormatException n) {
+						System.err.println("Not a valid number of copies: " + n);
+					}
+				}
+				else
+					printPut();
+			}
 			else 
 				unrecognized(line[0]);
 		} while (!m.isStopped());
@@ -137,6 +154,8 @@ public class CommandLine extends Thread {
 		printLS();
 		printLD();
 		printLF();
+		printPut();
+		printJobs();
 		printQ();
 	}
 	
@@ -160,7 +179,16 @@ public class CommandLine extends Thread {
 		System.out.println("ld [filename]: load the map-reduce job");
 	}
 	
+	protected void printJobs() {
+		System.out.println("jobs: list the running and queued jobs with how long each has waited");
+	}
+	
 	protected void printLF() {
 		System.out.println("lf [filename] <workerID1 [workerID2]...>: load the file to workerID");
 	}
+	
+	protected void printPut() {
+		System.out.println("put <filename> [copies]: store the file on the workers holding the fewest files, " 
+				+ m.replicas + " copies by default");
+	}
 }
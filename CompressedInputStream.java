@@ -0,0 +1,79 @@
+package mapreduce;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the frames of a CompressedOutputStream.  A frame is only read from the
+ * underlying stream once the one before it is used up, so nothing past the 
+ * last frame that is needed is taken from a socket.
+ * 
+ * Closing this stream does not close the underlying stream.
+ */
+public class CompressedInputStream extends InputStream {
+
+	protected DataInputStream in;
+	protected BlockCompressor compressor;
+	protected byte[] buffer;
+	protected byte[] packed;
+	protected int pos, limit;
+
+	public CompressedInputStream(InputStream in, BlockCompressor compressor) {
+		this.in = new DataInputStream(in);
+		this.compressor = compressor;
+		this.buffer = new byte[0];
+		this.packed = new byte[0];
+	}
+
+	public int read() throws IOException {
+		if (pos == limit && !readFrame())
+			return -1;
+		return buffer[pos++] & 0xFF;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (pos == limit && !readFrame())
+			return -1;
+		int n = Math.min(len, limit - pos);
+		System.arraycopy(buffer, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	public int available() {
+		return limit - pos;
+	}
+
+	public void close() {
+	}
+
+	/**
+	 * @return true if a frame was read, false at the end of the underlying stream
+	 * @throws IOException if the stream fails or a frame is corrupt
+	 */
+	protected boolean readFrame() throws IOException {
+		int flag = in.read();
+		if (flag == -1)
+			return false;
+		int rawLength = in.readInt();
+		int length = in.readInt();
+		if (buffer.length < rawLength)
+			buffer = new byte[rawLength];
+		if (flag == CompressedOutputStream.STORED)
+			in.readFully(buffer, 0, rawLength);
+		else if (flag == CompressedOutputStream.COMPRESSED) {
+			if (packed.length < length)
+				packed = new byte[length];
+			in.readFully(packed, 0, length);
+			compressor.decompress(packed, length, buffer, rawLength);
+		}
+		else
+			throw new IOException("Invalid frame type: " + flag);
+		pos = 0;
+		limit = rawLength;
+		return true;
+	}
+}
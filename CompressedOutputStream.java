@@ -0,0 +1,77 @@
+package mapreduce;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compresses a stream in frames with a BlockCompressor.  A frame is sent when
+ * the buffer fills or the stream is flushed, so a ChunkedOutput, which flushes 
+ * every chunk, gets a frame per chunk.  Each frame is a flag byte, the raw and 
+ * stored lengths, then the block.  Blocks that do not compress are stored as is.
+ * 
+ * Closing this stream does not close the underlying stream.
+ */
+public class CompressedOutputStream extends OutputStream {
+
+	public static final byte STORED = 0,
+							 COMPRESSED = 1;
+
+	protected OutputStream out;
+	protected BlockCompressor compressor;
+	protected byte[] buffer;
+	protected byte[] packed;
+	protected int count;
+
+	public CompressedOutputStream(OutputStream out, BlockCompressor compressor) {
+		this.out = out;
+		this.compressor = compressor;
+		this.buffer = new byte[Utils.BUFFER_SIZE];
+		this.packed = new byte[compressor.maxCompressedLength(buffer.length)];
+	}
+
+	public void write(int b) throws IOException {
+		if (count == buffer.length)
+			writeFrame();
+		buffer[count++] = (byte) b;
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (count == buffer.length)
+				writeFrame();
+			int n = Math.min(len, buffer.length - count);
+			System.arraycopy(b, off, buffer, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	public void flush() throws IOException {
+		writeFrame();
+		out.flush();
+	}
+
+	public void close() throws IOException {
+		flush();
+	}
+
+	protected void writeFrame() throws IOException {
+		if (count == 0)
+			return;
+		int length = compressor.compress(buffer, count, packed);
+		if (length < 0) {
+			out.write(STORED);
+			out.write(Utils.intToByteArray(count));
+			out.write(Utils.intToByteArray(count));
+			out.write(buffer, 0, count);
+		}
+		else {
+			out.write(COMPRESSED);
+			out.write(Utils.intToByteArray(count));
+			out.write(Utils.intToByteArray(length));
+			out.write(packed, 0, length);
+		}
+		count = 0;
+	}
+}
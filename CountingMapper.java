@@ -0,0 +1,94 @@
+package mapreduce;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A RecordMapper for jobs that count or sum whole numbers, such as a word count.
+ * map calls emit(key, long), which adds to a total the map task keeps for the key
+ * in a LongCounts, so no value is boxed or put in a list per record.  The task
+ * emits one partial total per key when it ends, or sooner if it holds more keys
+ * than getMapOutputBudget, and only those partials are combined, shuffled and 
+ * reduced.  Only this accumulation is primitive: each partial is emitted as a
+ * boxed Long into the job's List of values for its key, which is sent with 
+ * Codecs.LONG, so the shuffle still carries a short list per key.  SummingMapper
+ * does the same for sums of doubles.
+ *
+ * @param <RK> type of the record keys
+ * @param <RV> type of the record values
+ * @param <IK> type of the keys counted
+ */
+public abstract class CountingMapper<RK, RV, IK extends Serializable>
+		extends RecordMapper<RK, RV, IK, Long, Long> implements Combiner<IK, Long> {
+
+	// the totals of the map task on each thread, since tasks may run in parallel
+	private ThreadLocal<LongCounts<IK>> counts = new ThreadLocal<>();
+	private long budget = Utils.SPILL_THRESHOLD;
+
+	/**
+	 * Adds to the total of a key for the current map task
+	 *
+	 * @param key the key
+	 * @param value the amount added, 1 to count the key
+	 */
+	public void emit(IK key, long value) {
+		LongCounts<IK> c = counts.get();
+		if (c == null) {
+			c = new LongCounts<>();
+			counts.set(c);
+		}
+		c.add(key, value);
+		if (c.size() >= budget)
+			flush(c);
+	}
+
+	/**
+	 * Sums the partial totals of a key.  Override to reduce them otherwise,
+	 * along with combine
+	 */
+	public Long reduce(IK key, List<Long> listOfValues) {
+		long sum = 0;
+		for (long v : listOfValues)
+			sum += v;
+		return sum;
+	}
+
+	public Long combine(IK key, List<Long> listOfValues) {
+		return reduce(key, listOfValues);
+	}
+
+	public Codec<Long> getValueCodec() {
+		return Codecs.LONG;
+	}
+
+	public Codec<Long> getOutputCodec() {
+		return Codecs.LONG;
+	}
+
+	protected void endTask(boolean mapped) {
+		LongCounts<IK> c = counts.get();
+		if (c == null)
+			return;
+		if (mapped)
+			flush(c);
+		else
+			c.clear();
+	}
+
+	/**
+	 * Emits the total of every key in c to the map task's output and empties c
+	 */
+	protected void flush(LongCounts<IK> c) {
+		for (int i = 0; i < c.capacity(); i++) {
+			IK key = c.keyAt(i);
+			if (key != null)
+				super.emit(key, c.totalAt(i));
+		}
+		c.clear();
+	}
+
+	public void setJob(Job<?, ?, ?> job) {
+		super.setJob(job);
+		budget = Math.max(1, getMapOutputBudget());
+	}
+}
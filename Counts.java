@@ -0,0 +1,113 @@
+package mapreduce;
+
+import java.util.Arrays;
+
+/**
+ * The keys of a map from keys to primitive totals, such as LongCounts, with open
+ * addressing and linear probing.  Subclasses keep the totals in an array parallel
+ * to keys, so adding to the total of a key allocates nothing unless the table has
+ * to grow.  Not thread safe.
+ *
+ * @param <K> type of the keys, which may not be null
+ */
+public abstract class Counts<K> {
+
+	protected Object[] keys;
+	protected int size;
+	// keys the table holds before it doubles, three quarters of its capacity
+	protected int limit;
+
+	/**
+	 * @param expected number of keys to make room for before growing
+	 */
+	protected Counts(int expected) {
+		int capacity = Integer.highestOneBit(Math.max(4, expected * 4 / 3) - 1) << 1;
+		keys = new Object[capacity];
+		limit = capacity / 4 * 3;
+	}
+
+	/**
+	 * @param key the key
+	 * @return int slot of the key, or if it is not in the table -1 minus the empty
+	 *         slot it goes in
+	 */
+	protected int slot(Object key) {
+		int mask = keys.length - 1;
+		int i = spread(key.hashCode()) & mask;
+		Object k;
+		while ((k = keys[i]) != null) {
+			if (k.equals(key))
+				return i;
+			i = (i + 1) & mask;
+		}
+		return -1 - i;
+	}
+
+	/**
+	 * Called once a key and its total have been put in an empty slot
+	 */
+	protected void added() {
+		if (++size > limit)
+			grow();
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * The slots of the table, some of them empty, are visited with capacity, keyAt
+	 * and the totalAt of the subclass
+	 *
+	 * @return int number of slots in the table
+	 */
+	public int capacity() {
+		return keys.length;
+	}
+
+	/**
+	 * @param slot a slot of the table
+	 * @return K the key in the slot, or null if it is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public K keyAt(int slot) {
+		return (K) keys[slot];
+	}
+
+	/**
+	 * Removes every key, keeping the table at its current capacity
+	 */
+	public void clear() {
+		Arrays.fill(keys, null);
+		size = 0;
+	}
+
+	protected void grow() {
+		Object[] oldKeys = keys;
+		keys = new Object[oldKeys.length * 2];
+		limit = keys.length / 4 * 3;
+		int[] moved = new int[oldKeys.length];
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] == null)
+				continue;
+			int i = -1 - slot(oldKeys[j]);
+			keys[i] = oldKeys[j];
+			moved[j] = i;
+		}
+		moveTotals(oldKeys, moved);
+	}
+
+	/**
+	 * Moves the totals to a table grown to the capacity of keys
+	 *
+	 * @param oldKeys the keys before the table grew, which are null in empty slots
+	 * @param moved the slot each of the old slots holding a key moved to
+	 */
+	protected abstract void moveTotals(Object[] oldKeys, int[] moved);
+
+	// mixes the high bits of a hashCode into the low bits the table is indexed by
+	protected static int spread(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,60 @@
+package mapreduce;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses blocks with the JDK's zlib Deflater.  Smaller output than 
+ * LZCompressor, at a higher CPU cost.
+ */
+public class DeflateCompressor extends BlockCompressor {
+
+	protected int level;
+
+	public DeflateCompressor() {
+		this(Deflater.BEST_SPEED);
+	}
+
+	/**
+	 * @param level Deflater compression level, from 1 (fastest) to 9 (smallest)
+	 */
+	public DeflateCompressor(int level) {
+		this.level = level;
+	}
+
+	public String getName() {
+		return "Deflate";
+	}
+
+	public int maxCompressedLength(int length) {
+		// the zlib bound for a single block, with room for the header
+		return length + (length >> 12) + (length >> 14) + 64;
+	}
+
+	protected int encode(byte[] src, int length, byte[] dst) {
+		Deflater deflater = new Deflater(level);
+		try {
+			deflater.setInput(src, 0, length);
+			deflater.finish();
+			int packed = deflater.deflate(dst);
+			return deflater.finished() ? packed : -1;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	protected void decode(byte[] src, int length, byte[] dst, int rawLength) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(src, 0, length);
+			if (inflater.inflate(dst, 0, rawLength) != rawLength)
+				throw new IOException("Truncated Deflate block");
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt Deflate block", e);
+		} finally {
+			inflater.end();
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package mapreduce;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Splits a file into UTF-8 text records separated by a delimiter byte.  The key
+ * of each record is its byte offset in the file, and the delimiter is not part 
+ * of the value.
+ */
+public class DelimitedInputFormat implements InputFormat<Long, String> {
+
+	protected byte delimiter;
+
+	public DelimitedInputFormat(byte delimiter) {
+		this.delimiter = delimiter;
+	}
+
+	public RecordReader<Long, String> open(File file) throws IOException {
+		return new DelimitedRecordReader(file, delimiter, false);
+	}
+}
@@ -0,0 +1,99 @@
+package mapreduce;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads delimited records through one large buffer that is reused for the whole 
+ * file.  A record that does not fit in the buffer makes it grow, so memory use 
+ * depends on the longest record and not on the size of the file.
+ */
+public class DelimitedRecordReader implements RecordReader<Long, String> {
+
+	protected InputStream in;
+	protected byte delimiter;
+	// drop a '\r' before the delimiter, for text files with Windows line endings
+	protected boolean stripCR;
+	protected byte[] buffer;
+	// the bytes not yet returned as records are buffer[start] to buffer[end-1]
+	protected int start, end;
+	// offset in the file of buffer[start]
+	protected long offset;
+	protected boolean eof;
+	protected Long key;
+	protected String value;
+
+	public DelimitedRecordReader(File file, byte delimiter, boolean stripCR) throws IOException {
+		this.in = new FileInputStream(file);
+		this.delimiter = delimiter;
+		this.stripCR = stripCR;
+		this.buffer = new byte[Utils.RECORD_BUFFER_SIZE];
+	}
+
+	public boolean next() throws IOException {
+		int scan = start;
+		while (true) {
+			for (; scan < end; scan++)
+				if (buffer[scan] == delimiter) {
+					setRecord(scan, scan + 1);
+					return true;
+				}
+			if (eof) {
+				if (start == end)
+					return false;
+				// the last record need not end with a delimiter
+				setRecord(end, end);
+				return true;
+			}
+			if (end == buffer.length) {
+				// make room by moving the partial record to the front, or grow
+				// the buffer when the partial record already fills it
+				if (start > 0) {
+					System.arraycopy(buffer, start, buffer, 0, end - start);
+					scan -= start;
+					end -= start;
+					start = 0;
+				}
+				else
+					buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			}
+			int bytesRead = in.read(buffer, end, buffer.length - end);
+			if (bytesRead == -1)
+				eof = true;
+			else
+				end += bytesRead;
+		}
+	}
+
+	/**
+	 * Makes buffer[start] to buffer[recordEnd-1] the current record
+	 *
+	 * @param recordEnd index just past the last byte of the record
+	 * @param nextStart index where the next record begins
+	 */
+	protected void setRecord(int recordEnd, int nextStart) {
+		int length = recordEnd - start;
+		if (stripCR && length > 0 && buffer[recordEnd - 1] == '\r')
+			length--;
+		key = offset;
+		value = new String(buffer, start, length, StandardCharsets.UTF_8);
+		offset += nextStart - start;
+		start = nextStart;
+	}
+
+	public Long key() {
+		return key;
+	}
+
+	public String value() {
+		return value;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,64 @@
+package mapreduce;
+
+/**
+ * A map from keys to double totals, kept in an array parallel to the keys of the
+ * Counts table.  Adding to the total of a key allocates nothing unless the table
+ * has to grow, so it suits summing one record at a time.  Not thread safe.
+ *
+ * @param <K> type of the keys, which may not be null
+ */
+public class DoubleCounts<K> extends Counts<K> {
+
+	protected double[] totals;
+
+	public DoubleCounts() {
+		this(16);
+	}
+
+	/**
+	 * @param expected number of keys to make room for before growing
+	 */
+	public DoubleCounts(int expected) {
+		super(expected);
+		totals = new double[keys.length];
+	}
+
+	/**
+	 * Adds to the total of a key, which starts at 0
+	 *
+	 * @param key the key
+	 * @param delta the amount added
+	 */
+	public void add(K key, double delta) {
+		int i = slot(key);
+		if (i >= 0) {
+			totals[i] += delta;
+			return;
+		}
+		i = -1 - i;
+		keys[i] = key;
+		totals[i] = delta;
+		added();
+	}
+
+	/**
+	 * @param key the key
+	 * @return double total of the key, 0 if it was never added to
+	 */
+	public double get(K key) {
+		int i = slot(key);
+		return i >= 0 ? totals[i] : 0;
+	}
+
+	public double totalAt(int slot) {
+		return totals[slot];
+	}
+
+	protected void moveTotals(Object[] oldKeys, int[] moved) {
+		double[] oldTotals = totals;
+		totals = new double[keys.length];
+		for (int j = 0; j < oldKeys.length; j++)
+			if (oldKeys[j] != null)
+				totals[moved[j]] = oldTotals[j];
+	}
+}
@@ -0,0 +1,24 @@
+package mapreduce;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Splits a binary file into records of a fixed number of bytes, keyed by the 
+ * byte offset of each record.  The value array is reused for every record of 
+ * a file, so a RecordMapper must copy any bytes it keeps after map returns.
+ */
+public class FixedWidthInputFormat implements InputFormat<Long, byte[]> {
+
+	protected int recordLength;
+
+	public FixedWidthInputFormat(int recordLength) {
+		if (recordLength <= 0)
+			throw new IllegalArgumentException("Record length must be positive: " + recordLength);
+		this.recordLength = recordLength;
+	}
+
+	public RecordReader<Long, byte[]> open(File file) throws IOException {
+		return new FixedWidthRecordReader(file, recordLength);
+	}
+}
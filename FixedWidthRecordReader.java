@@ -0,0 +1,55 @@
+package mapreduce;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads fixed-width binary records through a large buffer, copying each record
+ * into a single array that is reused for the whole file
+ */
+public class FixedWidthRecordReader implements RecordReader<Long, byte[]> {
+
+	protected InputStream in;
+	protected byte[] record;
+	protected long offset;
+	protected Long key;
+
+	public FixedWidthRecordReader(File file, int recordLength) throws IOException {
+		this.in = new BufferedInputStream(new FileInputStream(file), Utils.RECORD_BUFFER_SIZE);
+		this.record = new byte[recordLength];
+	}
+
+	/**
+	 * @throws IOException if the file ends partway through a record
+	 */
+	public boolean next() throws IOException {
+		int filled = 0;
+		while (filled < record.length) {
+			int bytesRead = in.read(record, filled, record.length - filled);
+			if (bytesRead == -1) {
+				if (filled == 0)
+					return false;
+				throw new IOException("Truncated record of " + filled + " bytes at offset " + offset);
+			}
+			filled += bytesRead;
+		}
+		key = offset;
+		offset += record.length;
+		return true;
+	}
+
+	public Long key() {
+		return key;
+	}
+
+	public byte[] value() {
+		return record;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+}
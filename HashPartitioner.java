@@ -0,0 +1,15 @@
+package mapreduce;
+
+import java.io.Serializable;
+
+/**
+ * The default Partitioner, which spreads keys over the workers by their hashCode.
+ * Keys must have a hashCode that is the same in every JVM, as String, Integer 
+ * and the other value types do.
+ */
+public class HashPartitioner<K extends Serializable> implements Partitioner<K> {
+
+	public int partition(K key, int numPartitions) {
+		return (key.hashCode() & Integer.MAX_VALUE) % numPartitions;
+	}
+}
@@ -0,0 +1,20 @@
+package mapreduce;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Decides how a RecordMapper's input files are split into records.
+ *
+ * @param <RK> type of the record keys
+ * @param <RV> type of the record values
+ */
+public interface InputFormat<RK, RV> {
+
+	/**
+	 * @param file the input file to read
+	 * @return RecordReader positioned before the first record of the file
+	 * @throws IOException if the file cannot be opened
+	 */
+	public RecordReader<RK, RV> open(File file) throws IOException;
+}
@@ -1,14 +1,35 @@
 package mapreduce;
 
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class Job<K extends Serializable, 
 				 IV extends Serializable,
@@ -16,19 +37,143 @@ public class Job<K extends Serializable,
 
 	protected Worker worker;
 	protected Mapper<K, IV, OV> mr;
-	protected Map<K, List<IV>> mapOutput;
-	protected Map<K, OV> finalOut;
+	protected ConcurrentMap<K, List<IV>> mapOutput;
 	protected List<String> files;
+	// the worker each file this worker holds no copy of is read from
+	protected Map<String, Integer> remote;
+	// the Master's replies naming another worker to read a file from, by filename
+	protected Map<String, Integer> sourceReplies;
 	protected int jobID;
+	// null unless the Mapper also implements Combiner
+	protected Combiner<K, IV> combiner;
+	// null when the Master coordinates where keys are reduced
+	protected Partitioner<K> partitioner;
+	// { workerID, ipaddr, port } of each worker in the job, indexed by partition
+	protected List<Object[]> roster;
+	// any of these are null when the Mapper uses Java serialization for them
+	protected Codec<K> keyCodec;
+	protected Codec<List<IV>> valuesCodec;
+	protected Codec<OV> outputCodec;
+	// null when the shuffle and results are not compressed
+	protected BlockCompressor compressor;
+	// null when the results are sent to the Master rather than written to part files
+	protected OutputFormat<K, OV> outputFormat;
+	// the class loader of the job's artifact, which its key and value classes come from
+	protected ClassLoader loader;
+	// null when keys are reduced in no particular order
+	protected Comparator<K> sortOrder;
+	// the order runs are written and merged in, sortOrder or else HASH_ORDER
+	protected Comparator<? super K> keyOrder;
+	// null when the values of a key are reduced in the order they arrived
+	protected Comparator<IV> valueOrder;
+	// the private output of the map task on this thread, null outside of a map task
+	protected ThreadLocal<Map<K, List<IV>>> taskOutput;
+	// the number of values in taskOutput, which is handed to mapOutput at taskBudget
+	protected ThreadLocal<int[]> taskBuffered;
+	// runs the map task on this thread spilled, which join spills once it commits
+	protected ThreadLocal<List<File>> taskRuns;
+	protected long taskBudget;
+	protected AtomicInteger filesMapped;
+	// sorted runs of mapOutput, spilled to disk whenever it held more than budget values
+	protected List<File> spills;
+	protected File spillDir;
+	protected AtomicInteger runCounter;
+	protected long budget;
+	// values added to mapOutput since the last spill
+	protected AtomicLong buffered;
+	// held shared while adding to mapOutput, and exclusively while spilling it
+	protected ReadWriteLock spillLock;
+	// whether the Master may run backup copies of this worker's work
+	protected boolean speculative;
+	// whether the Master let the copy of each "owner/file" on this worker commit, 
+	// as its replies arrive.  Guarded by itself
+	protected Map<String, Boolean> commits;
+	// held while the output of a backup map task is added and shuffled
+	protected Object backupLock = new Object();
+	// reduce batches of this worker that have not been reduced, by index
+	protected Map<Integer, Map<K, List<IV>>> pendingBatches;
+	// batches of this worker whose backup copy was reduced first
+	protected Set<Integer> reducedElsewhere;
+	protected AtomicInteger batchCounter;
+	// { workerID, ipaddr, port } of the worker copies of the batches go to, once there is one
+	protected volatile Object[] reduceBackup;
+	// runs of what this worker shuffled to each partition, by the workerID the partition
+	// belongs to, kept until the job completes.  Guarded by sendLock
+	protected Map<Integer, List<File>> sent;
+	protected Object sendLock = new Object();
+	// { workerID, ipaddr, port } of the worker that took over each partition of a lost worker
+	protected Map<Integer, Object[]> adopted;
+	// keys shuffled to this worker that are not reduced yet, by the worker that sent
+	// them and the round they are reduced in, and the runs of those spilled.  Guarded by staged
+	protected Map<Long, Map<K, List<IV>>> staged;
+	protected Map<Long, List<File>> stagedRuns;
+	protected long stagedValues;
+	// lost workers, and the first round whose transfers from each are dropped.  Guarded by staged
+	protected Map<Integer, Integer> dropped;
+	// numbers the transfers this worker sends, and the transfers received by sender 
+	// and number, so a retry of one that was staged is not staged again.  Guarded by staged
+	protected AtomicInteger transferCounter;
+	protected Set<Long> transfersReceived;
+	// held while keys are shuffled, so the shuffle of a re-run map task waits its turn
+	protected Object shuffleLock = new Object();
+	// held while a round is reduced, so the rounds of this worker run one after another
+	protected Object reduceLock = new Object();
+	// the partitions a map task run again for a lost worker keeps, null outside of one
+	protected ThreadLocal<Set<Integer>> taskPartitions;
+	// the partition the Master assigned each key to, for the keys such tasks keep
+	protected Map<K, Integer> reducers;
 	
-	public Job(int jobID, Worker worker, Mapper<K, IV, OV> mr, List<String> data) {
+	@SuppressWarnings("unchecked")
+	public Job(int jobID, Worker worker, Mapper<K, IV, OV> mr, List<String> data, List<Object[]> roster) {
 		this.jobID = jobID;
 		this.worker = worker;
 		this.mr = mr;
 		this.mr.setJob(this);  // allows user to call emit
 		this.files = data;
+		this.remote = new ConcurrentHashMap<>();
+		this.sourceReplies = new HashMap<>();
+		this.roster = roster;
+		this.partitioner = mr.getPartitioner();
+		this.keyCodec = mr.getKeyCodec();
+		this.valuesCodec = Codecs.listOf(mr.getValueCodec());
+		this.outputCodec = mr.getOutputCodec();
+		this.compressor = mr.getCompressor();
+		this.outputFormat = mr.getOutputFormat();
+		this.loader = mr.getClass().getClassLoader();
+		this.sortOrder = mr.getSortComparator();
+		if (sortOrder != null)
+			this.keyOrder = sortOrder;
+		else
+			this.keyOrder = RunMerger.HASH_ORDER;
+		this.valueOrder = mr.getValueComparator();
+		if (mr instanceof Combiner)
+			this.combiner = (Combiner<K, IV>) mr;
 		mapOutput = new ConcurrentHashMap<>();
-		finalOut = new ConcurrentHashMap<>();
+		taskOutput = new ThreadLocal<>();
+		taskBuffered = new ThreadLocal<>();
+		taskRuns = new ThreadLocal<>();
+		filesMapped = new AtomicInteger();
+		spills = new ArrayList<>();
+		spillDir = new File(worker.basePath + File.separator + Utils.spillPath);
+		runCounter = new AtomicInteger();
+		budget = Math.max(1, mr.getMapOutputBudget());
+		taskBudget = budget;
+		buffered = new AtomicLong();
+		spillLock = new ReentrantReadWriteLock();
+		speculative = mr.isSpeculative();
+		commits = new HashMap<>();
+		pendingBatches = new ConcurrentHashMap<>();
+		reducedElsewhere = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+		batchCounter = new AtomicInteger();
+		sent = new HashMap<>();
+		adopted = new ConcurrentHashMap<>();
+		staged = new HashMap<>();
+		stagedRuns = new HashMap<>();
+		dropped = new HashMap<>();
+		transferCounter = new AtomicInteger();
+		transfersReceived = new HashSet<>();
+		taskPartitions = new ThreadLocal<>();
+		reducers = new ConcurrentHashMap<>();
 	}
 	
 	////////////////////////////////////////////////
@@ -37,27 +182,541 @@ public class Job<K extends Serializable,
 	//
 	///////////////////////////////////////////////
 	
-	public void begin(String basePath) throws IOException {
+	public void begin(final String basePath) throws IOException {
 		
-		// since this is reading from a file don't do it in parallel,
-		// speed limit is reading from disk
-		for (final String filename : files) {
-			// convenience function provided if user doesn't want to call 'emit'
-			emit(mr.map(new File(basePath + File.separator + filename)));
+		if (speculative)
+			reportMapFiles();
+		int parallelism = Math.min(files.size(), Math.max(1, mr.getMapParallelism()));
+		if (parallelism <= 1) {
+			// by default files are mapped one at a time, since the speed limit is
+			// usually reading from disk
+			for (String filename : files) {
+				try {
+					mapFile(basePath, filename);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					sendMapFailed(worker.id, filename, "Worker " + worker.id + " could not map " + filename + ": " + e);
+				}
+			}
 		}
+		else {
+			// each file is its own map task on a pool local to this worker, and
+			// the tasks split the memory budget between them
+			taskBudget = Math.max(1, budget / parallelism);
+			ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+			List<Future<?>> tasks = new ArrayList<>();
+			for (final String filename : files) {
+				tasks.add(pool.submit(new Runnable() {
+					public void run() {
+						mapFile(basePath, filename);
+					}
+				}));
+			}
+			for (int i = 0; i < tasks.size(); i++) {
+				try { 
+					tasks.get(i).get(); 
+				} catch (InterruptedException | ExecutionException e) {
+					// the task may have stopped before its output was added, so the job 
+					// fails unless another copy of the file commits
+					e.printStackTrace();
+					Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+					sendMapFailed(worker.id, files.get(i), "Worker " + worker.id + " could not map " 
+							+ files.get(i) + ": " + cause);
+				}
+			}
+			pool.shutdown();
+		}
+		// combine what is left so each key is shuffled as a single value
+		if (combiner != null)
+			for (Map.Entry<K, List<IV>> e : mapOutput.entrySet())
+				synchronized (e.getValue()) {
+					if (e.getValue().size() > 1)
+						combine(e.getKey(), e.getValue());
+				}
+		if (!spills.isEmpty())
+			Utils.debug("Job " + jobID + ": map output spilled to " + spills.size() + " runs");
 		// now the output map has been populated, so it needs to be shuffled and sorted 
-		// first notify Master of the keys you have at this node, and their sizes
-		sendKeysToMaster();
+		if (partitioner != null)
+			partition();
+		else  // first notify Master of the keys you have at this node, and their sizes
+			sendKeysToMaster();
+	}
+	
+	/**
+	 * Maps one of this worker's files, unless a backup copy of it has already 
+	 * committed, and adds its output to the job's once it may commit
+	 * 
+	 * @param basePath directory holding the worker's files
+	 * @param filename the file to map
+	 */
+	protected void mapFile(String basePath, String filename) {
+		Map<K, List<IV>> local = new HashMap<>();
+		List<File> runs = new ArrayList<>();
+		Integer source = remote.get(filename);
+		File file = new File(basePath + File.separator + filename);
+		boolean fetched = false;
+		try {
+			if (cancelled(worker.id, filename))
+				drop(local, runs);
+			else {
+				// the Master only assigns a file with no copy here when every worker holding 
+				// one has its share, though a copy may have been put here since
+				if (source != null && !file.isFile()) {
+					file = fetchInput(source, filename);
+					fetched = file != null;
+				}
+				if (file == null)  // no worker could provide the file, so the job fails
+					drop(local, runs);
+				else if (runTask(file, worker.id, filename, local, runs))
+					commit(worker.id, filename, local, runs);
+				else
+					drop(local, runs);
+			}
+		} finally {
+			if (fetched)
+				deleteInput(file);
+		}
+		reportMapProgress();
+	}
+	
+	/**
+	 * Copies an input file of this worker's from the worker the Master named, and 
+	 * from the next one it names each time a copy fails
+	 * 
+	 * @param source the worker to read the file from first
+	 * @param filename name of the file
+	 * @return File the copy, or null if no worker holding the file could provide it
+	 */
+	protected File fetchInput(int source, String filename) {
+		while (source != Utils.NONE) {
+			try {
+				return fetchInput(source, worker.id, filename);
+			} catch (IOException e) {
+				System.err.println("Exception fetching " + filename + " from Worker " + source + ": " + e);
+				source = requestSource(filename, source);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Tells the Master a copy of an input failed, and waits for it to name another
+	 * worker holding the file.  The Master fails the job when none is left
+	 * 
+	 * @param filename name of the file
+	 * @param failed the worker the copy failed from
+	 * @return int the worker to read the file from next, or NONE
+	 */
+	protected int requestSource(String filename, int failed) {
+		synchronized (sourceReplies) {
+			sourceReplies.remove(filename);
+		}
+		Message msg = new Message(Utils.W2M_FETCH_FAILED, jobID);
+		try {
+			Utils.writeString(msg.body(), filename);
+			msg.body().writeInt(failed);
+			msg.send(worker.out);
+			synchronized (sourceReplies) {
+				while (!sourceReplies.containsKey(filename) && !worker.isStopped())
+					sourceReplies.wait(Utils.SPECULATION_INTERVAL);
+				Integer next = sourceReplies.remove(filename);
+				return next == null ? Utils.NONE : next;
+			}
+		} catch (IOException | InterruptedException e) {
+			System.err.println("Error asking for another copy of " + filename + " for job " + jobID + ": " + e);
+			return Utils.NONE;
+		}
+	}
+	
+	/**
+	 * Called with the Master's reply to requestSource
+	 * 
+	 * @param filename name of the file
+	 * @param source the worker to read it from next, or NONE
+	 */
+	public void receiveSource(String filename, int source) {
+		synchronized (sourceReplies) {
+			sourceReplies.put(filename, source);
+			sourceReplies.notifyAll();
+		}
+	}
+	
+	/**
+	 * Copies an input file from a worker holding it
+	 * 
+	 * @param source the worker to read the file from
+	 * @param owner the worker the map task belongs to
+	 * @param filename name of the file
+	 * @return File the copy, in a directory of its own
+	 * @throws IOException if the file cannot be fetched
+	 */
+	protected File fetchInput(int source, int owner, String filename) throws IOException {
+		Object[] peer = peer(source);
+		File dir = new File(worker.basePath + File.separator + Utils.speculativePath 
+				+ File.separator + "job" + jobID + "-" + owner + "-" + filename);
+		return worker.wP2P.fetch(this, filename, (String) peer[1], (Integer) peer[2], dir);
+	}
+	
+	protected void deleteInput(File file) {
+		file.delete();
+		file.getParentFile().delete();
+	}
+	
+	/**
+	 * Runs one map task.  Values emitted by the task go to a buffer private to it, 
+	 * so concurrent tasks do not contend on mapOutput until the buffer is merged
+	 * once the file is done, or once it holds the task's share of the budget.  The
+	 * tasks of a speculative job spill the buffer to runs of their own instead, 
+	 * since nothing they emit may reach mapOutput before they commit, as do tasks
+	 * run again for a lost worker
+	 * 
+	 * @param file the file to map
+	 * @param owner the worker the file belongs to
+	 * @param filename name of the file on its owner
+	 * @param local the buffer of the task
+	 * @param runs receives the runs the task spills
+	 * @return boolean false if the task stopped since another copy of it committed,
+	 *         or failed, in which case the Master has been told
+	 */
+	protected boolean runTask(File file, int owner, String filename, Map<K, List<IV>> local, List<File> runs) {
+		taskOutput.set(local);
+		taskBuffered.set(new int[1]);
+		taskRuns.set(runs);
+		try {
+			if (mr instanceof RecordMapper)
+				return mapRecords((RecordMapper<?, ?, K, IV, OV>) mr, file, owner, filename);
+			else  // convenience function provided if user doesn't want to call 'emit'
+				emit(mr.map(file));
+		} catch (IOException | RuntimeException e) {
+			// what the task emitted is only part of the file, so it may not commit
+			System.err.println("Exception mapping " + filename + ": " + e);
+			sendMapFailed(owner, filename, "Worker " + worker.id + " could not map " + filename + ": " + e);
+			return false;
+		} finally {
+			taskOutput.remove();
+			taskBuffered.remove();
+			taskRuns.remove();
+		}
+		return true;
+	}
+	
+	/**
+	 * Hands the buffer of a map task over to mapOutput
+	 *
+	 * @param local the buffer of the task on this thread, which is left empty
+	 */
+	protected void flushTask(Map<K, List<IV>> local) {
+		for (Map.Entry<K, List<IV>> e : local.entrySet())
+			merge(e.getKey(), e.getValue());
+		local.clear();
+	}
+	
+	/**
+	 * Spills the buffer of a map task to a run of its own
+	 * 
+	 * @param local the buffer of the task on this thread, which is left empty
+	 * 		  unless the run cannot be written
+	 */
+	protected void spillTask(Map<K, List<IV>> local) {
+		File run = writeRun(local);
+		if (run != null) {
+			taskRuns.get().add(run);
+			local.clear();
+		}
+	}
+	
+	/**
+	 * Streams a file through the RecordMapper one record at a time
+	 * 
+	 * @param rm the job's Mapper
+	 * @param file the file to map
+	 * @param owner the worker the file belongs to
+	 * @param filename name of the file on its owner
+	 * @return boolean false if mapping stopped since another copy of the file committed
+	 * @throws IOException if the file cannot be read
+	 */
+	protected <RK, RV> boolean mapRecords(RecordMapper<RK, RV, K, IV, OV> rm, File file, 
+			int owner, String filename) throws IOException {
+		RecordReader<RK, RV> reader = rm.getInputFormat().open(file);
+		boolean mapped = false;
+		try {
+			for (int records = 1; reader.next(); records++) {
+				rm.map(reader.key(), reader.value());
+				if (records % Utils.CANCEL_CHECK == 0 && cancelled(owner, filename))
+					return false;
+			}
+			mapped = true;
+		} finally {
+			reader.close();
+			// such as a CountingMapper, which holds the totals of the task until it ends
+			rm.endTask(mapped);
+		}
+		return true;
+	}
+	
+	/**
+	 * Tells the Master a copy of a map task failed, so the job does not complete
+	 * without the file unless another copy of it commits
+	 * 
+	 * @param owner the worker the file belongs to
+	 * @param filename name of the file on its owner
+	 * @param reason the error, for the Master to report
+	 */
+	protected void sendMapFailed(int owner, String filename, String reason) {
+		Message msg = new Message(Utils.W2M_MAP_FAILED, jobID);
+		try {
+			msg.body().writeInt(owner);
+			Utils.writeString(msg.body(), filename);
+			Utils.writeString(msg.body(), reason);
+			msg.send(worker.out);
+		} catch (IOException e) {
+			System.err.println("Error reporting the failed map of " + filename + " for job " + jobID + ": " + e);
+		}
+	}
+	
+	/**
+	 * Adds the output of a finished map task to the job's.  When the job is 
+	 * speculative the Master is asked first, and the output of a copy that 
+	 * lost to another is dropped instead
+	 * 
+	 * @param owner the worker the file belongs to
+	 * @param filename name of the file on its owner
+	 * @param local the buffer of the task
+	 * @param runs the runs the task spilled
+	 * @return boolean true if the output was added
+	 */
+	protected boolean commit(int owner, String filename, Map<K, List<IV>> local, List<File> runs) {
+		if (speculative && !requestCommit(owner, filename)) {
+			drop(local, runs);
+			return false;
+		}
+		flushTask(local);
+		if (!runs.isEmpty()) {
+			spillLock.writeLock().lock();
+			try {
+				spills.addAll(runs);
+			} finally {
+				spillLock.writeLock().unlock();
+			}
+		}
+		return true;
+	}
+	
+	protected void drop(Map<K, List<IV>> local, List<File> runs) {
+		local.clear();
+		deleteRuns(runs);
+	}
+	
+	/**
+	 * Asks the Master whether this copy of a map task may commit, and waits for
+	 * the reply.  The first copy of a file to ask is the one that commits
+	 * 
+	 * @param owner the worker the file belongs to
+	 * @param filename name of the file on its owner
+	 * @return boolean true if this copy commits
+	 */
+	protected boolean requestCommit(int owner, String filename) {
+		String key = owner + "/" + filename;
+		synchronized (commits) {
+			if (commits.containsKey(key))  // another copy already committed
+				return commits.get(key);
+		}
+		Message msg = new Message(Utils.W2M_MAP_COMMIT, jobID);
+		try {
+			msg.body().writeInt(owner);
+			Utils.writeString(msg.body(), filename);
+			msg.send(worker.out);
+			synchronized (commits) {
+				while (!commits.containsKey(key) && !worker.isStopped())
+					commits.wait(Utils.SPECULATION_INTERVAL);
+				return Boolean.TRUE.equals(commits.get(key));
+			}
+		} catch (IOException | InterruptedException e) {
+			System.err.println("Error committing " + key + " for job " + jobID + ": " + e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Called with the Master's reply to requestCommit, or to tell the worker 
+	 * mapping a file that another copy of it committed first
+	 * 
+	 * @param owner the worker the file belongs to
+	 * @param filename name of the file on its owner
+	 * @param granted true if the copy on this worker commits
+	 */
+	public void receiveCommit(int owner, String filename, boolean granted) {
+		synchronized (commits) {
+			commits.put(owner + "/" + filename, granted);
+			commits.notifyAll();
+		}
+	}
+	
+	protected boolean cancelled(int owner, String filename) {
+		synchronized (commits) {
+			return Boolean.FALSE.equals(commits.get(owner + "/" + filename));
+		}
+	}
+	
+	/**
+	 * Tells the Master which files this worker maps, so it can run backups of them
+	 */
+	protected void reportMapFiles() throws IOException {
+		Message msg = new Message(Utils.W2M_MAP_FILES, jobID);
+		Utils.writeFilenames(msg.body(), files.toArray(new String[files.size()]));
+		msg.send(worker.out);
+	}
+	
+	/**
+	 * Maps a backup copy of a file of a straggling worker, from this worker's copy
+	 * of it or one fetched from a worker holding it.  This worker has already 
+	 * finished its own map phase, so output that commits is shuffled on its own: 
+	 * the Master gets a manifest of just those keys, or with a Partitioner they 
+	 * are sent to their peers right away
+	 * 
+	 * @param owner the worker mapping the file
+	 * @param filename name of the file
+	 * @param source the worker to read the file from
+	 * @throws IOException if the file cannot be fetched
+	 */
+	public void mapBackup(int owner, String filename, int source) throws IOException {
+		boolean fetched = source != worker.id;
+		File file = fetched ? fetchInput(source, owner, filename) 
+				: new File(worker.basePath + File.separator + filename);
+		try {
+			Map<K, List<IV>> local = new HashMap<>();
+			List<File> runs = new ArrayList<>();
+			if (!runTask(file, owner, filename, local, runs)) {
+				drop(local, runs);
+				return;
+			}
+			synchronized (backupLock) {
+				Map<K, Integer> counts = partitioner == null ? countKeys(local, runs) : null;
+				if (!commit(owner, filename, local, runs))
+					return;
+				System.out.println("Job " + jobID + ": backup of " + filename + " from Worker " + owner + " committed");
+				if (partitioner != null)
+					partition();
+				else
+					sendKeysToMaster(counts);
+			}
+		} finally {
+			if (fetched)
+				deleteInput(file);
+		}
+	}
+	
+	/**
+	 * @return Map of each key of a map task's output to its number of values
+	 */
+	@SuppressWarnings("unchecked")
+	protected Map<K, Integer> countKeys(Map<K, List<IV>> local, List<File> runs) {
+		Map<K, Integer> counts = new HashMap<>();
+		for (Map.Entry<K, List<IV>> e : local.entrySet())
+			counts.put(e.getKey(), e.getValue().size());
+		if (runs.isEmpty())
+			return counts;
+		RunMerger merger = null;
+		try {
+			merger = new RunMerger(runs, keyCodec, valuesCodec, keyOrder, loader);
+			while (merger.next()) {
+				Integer count = counts.get(merger.key());
+				counts.put((K) merger.key(), merger.values().size() + (count == null ? 0 : count));
+			}
+		} catch (IOException | ClassNotFoundException e) {
+			e.printStackTrace();
+		} finally {
+			if (merger != null)
+				merger.close();
+		}
+		return counts;
+	}
+	
+	/**
+	 * @param workerID a worker in the job
+	 * @return Object[] { workerID, ipaddr, port } of the worker in the roster
+	 */
+	protected Object[] peer(int workerID) {
+		for (Object[] o : roster)
+			if ((Integer) o[0] == workerID)
+				return o;
+		throw new IllegalArgumentException("Worker " + workerID + " is not in job " + jobID);
+	}
+	
+	/**
+	 * Tells the Master how many of this worker's files have been mapped so far
+	 */
+	protected void reportMapProgress() {
+		int done = filesMapped.incrementAndGet();
+		// map tasks finish on different threads, the message is sent whole
+		Message msg = new Message(Utils.W2M_MAP_PROGRESS, jobID);
+		try {
+			msg.body().writeInt(done);
+			msg.body().writeInt(files.size());
+			msg.send(worker.out);
+		} catch (IOException e) {
+			System.err.println("Error reporting map progress of job " + jobID + ": " + e);
+		}
 	}
 	
 	public void emit(K key, IV value) {
-		if (mapOutput.containsKey(key)) 
-			mapOutput.get(key).add(value);
-		else {
-			List<IV> l = new ArrayList<>();
-			l.add(value);
-			mapOutput.put(key, l);
+		Map<K, List<IV>> local = taskOutput.get();
+		if (local != null) {
+			Set<Integer> keep = taskPartitions.get();
+			if (keep != null && !keep.contains(partitionOf(key)))
+				return;  // the copy of this key that was shuffled is still held
+			// inside a map task, so only this thread touches the buffer
+			List<IV> values = local.get(key);
+			if (values == null) {
+				values = new ArrayList<>();
+				local.put(key, values);
+			}
+			values.add(value);
+			if (combiner != null && values.size() >= Utils.COMBINE_THRESHOLD)
+				combine(key, values);
+			int[] count = taskBuffered.get();
+			if (++count[0] >= taskBudget) {
+				if (speculative || keep != null)
+					spillTask(local);
+				else
+					flushTask(local);
+				count[0] = 0;
+			}
+			return;
+		}
+		spillLock.readLock().lock();
+		try {
+			List<IV> values = mapOutput.get(key);
+			if (values == null) {
+				List<IV> l = new ArrayList<>();
+				values = mapOutput.putIfAbsent(key, l);
+				if (values == null)
+					values = l;
+			}
+			synchronized (values) {
+				values.add(value);
+				// keep the buffer of a key small when the values can be combined
+				if (combiner != null && values.size() >= Utils.COMBINE_THRESHOLD)
+					combine(key, values);
+			}
+		} finally {
+			spillLock.readLock().unlock();
 		}
+		buffered.incrementAndGet();
+		maybeSpill();
+	}
+	
+	/**
+	 * Replaces the values of a key with their combined value.  Caller must hold
+	 * the lock of the list
+	 * 
+	 * @param key the key being combined
+	 * @param values the list of the key in mapOutput
+	 */
+	protected void combine(K key, List<IV> values) {
+		IV combined = combiner.combine(key, values);
+		values.clear();
+		values.add(combined);
 	}
 	
 	public void emit(HashMap<K, IV> tmp) {
@@ -68,12 +727,173 @@ public class Job<K extends Serializable,
 	}
 	
 	public void sendKeysToMaster() throws IOException {
-		for (K key: mapOutput.keySet()) {
-			Utils.writeCommand(worker.out, Utils.W2M_KEY, jobID);
-			Utils.writeObject(worker.out, new Object[]{key, mapOutput.get(key).size()});
-			worker.in.read();  // wait for ACK
+		sendKeysToMaster(null);
+	}
+	
+	/**
+	 * @param counts keys to send with their number of values, or null to send 
+	 * 		  every key this worker holds
+	 * @throws IOException if the Master cannot be reached
+	 */
+	protected void sendKeysToMaster(Map<K, Integer> counts) throws IOException {
+		// all keys and their counts go out as one chunked manifest, no ACK per key
+		synchronized (worker.out) {
+			MessageOutputStream stream = new MessageOutputStream(worker.out, Utils.W2M_KEY_MANIFEST, jobID);
+			if (counts == null)
+				writeManifest(stream);
+			else {
+				ChunkedOutput manifest = new ChunkedOutput(stream, keyCodec, Codecs.INTEGER);
+				for (Map.Entry<K, Integer> e : counts.entrySet())
+					manifest.write(e.getKey(), e.getValue());
+				manifest.finish();
+			}
+			stream.close();
+			Utils.writeCommand(worker.out, Utils.W2M_KEY_COMPLETE, jobID);
 		}
-		Utils.writeCommand(worker.out, Utils.W2M_KEY_COMPLETE, jobID);
+	}
+	
+	protected void writeManifest(OutputStream out) throws IOException {
+		ChunkedOutput manifest = new ChunkedOutput(out, keyCodec, Codecs.INTEGER);
+		if (spills.isEmpty()) {
+			for (Map.Entry<K, List<IV>> e : mapOutput.entrySet())
+				manifest.write(e.getKey(), e.getValue().size());
+		}
+		else {
+			// a key can be in several runs, so they are merged to count it once
+			RunMerger merger = null;
+			try {
+				merger = new RunMerger(spillAll(), keyCodec, valuesCodec, keyOrder, loader);
+				while (merger.next())
+					manifest.write(merger.key(), merger.values().size());
+			} catch (ClassNotFoundException e) {
+				e.printStackTrace();
+			} finally {
+				if (merger != null)
+					merger.close();
+			}
+		}
+		manifest.finish();
+	}
+	
+	////////////////////////////////////////////////
+	//
+	// Spilling map output that does not fit in the budget
+	//
+	///////////////////////////////////////////////
+	
+	/**
+	 * Spills mapOutput once it holds more values than the budget.  Peers merge into
+	 * mapOutput while this worker shuffles, so rather than wait on a shuffle that
+	 * holds the lock this skips the spill and leaves it to a later call
+	 */
+	protected void maybeSpill() {
+		if (buffered.get() < budget || !spillLock.writeLock().tryLock())
+			return;
+		try {
+			if (buffered.get() >= budget)
+				spill();
+		} finally {
+			spillLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Writes every key in mapOutput to a new run in keyOrder and empties mapOutput.
+	 * Caller must hold the write lock of spillLock
+	 */
+	protected void spill() {
+		buffered.set(0);
+		File run = writeRun(mapOutput);
+		if (run != null) {
+			spills.add(run);
+			mapOutput.clear();
+		}
+	}
+	
+	/**
+	 * Writes every key of a buffer to a new run in keyOrder, combining the 
+	 * values of each first when the job has a Combiner
+	 * 
+	 * @param map the buffer, which only the caller may be changing
+	 * @return File of the run, or null if the buffer is empty or the run could not be written
+	 */
+	protected File writeRun(Map<K, List<IV>> map) {
+		if (map.isEmpty())
+			return null;
+		List<K> keys = new ArrayList<>(map.keySet());
+		Collections.sort(keys, keyOrder);
+		File run = nextRun();
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(run);
+			ChunkedOutput chunks = new ChunkedOutput(out, keyCodec, valuesCodec);
+			for (K k : keys) {
+				List<IV> values = map.get(k);
+				if (combiner != null && values.size() > 1)
+					combine(k, values);
+				chunks.write(k, values);
+			}
+			chunks.finish();
+		} catch (IOException e) {
+			// keep the values in memory, and try again once the budget fills up again
+			System.err.println("Error spilling job " + jobID + " to " + run + ": " + e);
+			close(out);
+			run.delete();
+			return null;
+		}
+		close(out);
+		return run;
+	}
+	
+	/**
+	 * Spills what is left in mapOutput, so every value of the job is in a run
+	 *
+	 * @return List of all the runs of this job
+	 */
+	protected List<File> spillAll() {
+		spillLock.writeLock().lock();
+		try {
+			spill();
+			return new ArrayList<>(spills);
+		} finally {
+			spillLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Like spillAll, but the runs are taken from the job so that later spills
+	 * start a new list
+	 *
+	 * @return List of all the runs of this job so far
+	 */
+	protected List<File> takeRuns() {
+		spillLock.writeLock().lock();
+		try {
+			spill();
+			List<File> runs = spills;
+			spills = new ArrayList<>();
+			return runs;
+		} finally {
+			spillLock.writeLock().unlock();
+		}
+	}
+	
+	protected File nextRun() {
+		if (!spillDir.isDirectory())
+			spillDir.mkdirs();
+		return new File(spillDir, "job" + jobID + "-" + runCounter.getAndIncrement());
+	}
+	
+	protected void deleteRuns(List<File> runs) {
+		for (File run : runs)
+			run.delete();
+	}
+	
+	protected void close(OutputStream out) {
+		if (out != null)
+			try {
+				out.close();
+			} catch (IOException e) {}  //ignore exceptions since you are closing
 	}
 	
 	////////////////////////////////////////////////
@@ -82,35 +902,454 @@ public class Job<K extends Serializable,
 	//
 	///////////////////////////////////////////////
 
+	/**
+	 * Reads the keys the Master assigned to each worker, which follow the 
+	 * M2W_COORD_KEYS command on the stream from the Master
+	 * 
+	 * @return List of { K, { workerID, ipaddr, port } } for shuffle
+	 * @throws IOException if the stream fails
+	 */
+	public List<Object[]> readKeyAssignments() throws IOException {
+		// each pair is a key and the index in the roster of the worker to send it to
+		List<Object[]> keyTransferMsg = new ArrayList<>();
+		try {
+			ChunkedInput chunks = new ChunkedInput(worker.in, keyCodec, Codecs.INTEGER, null, loader);
+			while (chunks.next())
+				for (int i = 0; i < chunks.keys().length; i++)
+					keyTransferMsg.add(new Object[] { chunks.keys()[i], roster.get((Integer) chunks.values()[i]) });
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+		return keyTransferMsg;
+	}
+	
+	/**
+	 * Sends every key to the worker the Master assigned it to, so that only the
+	 * keys assigned to this worker are left here
+	 * 
+	 * @param keyTransferMsg the assignments read by readKeyAssignments
+	 */
 	@SuppressWarnings("unchecked")
-	public void receiveKeyAssignments() {
-
+	public void shuffle(List<Object[]> keyTransferMsg) {
+		synchronized (shuffleLock) {
+			// group the keys by partition so each peer gets a single transfer
+			Map<Integer, Map<K, List<IV>>> outgoing = new HashMap<>();
+			boolean spilled;
+			spillLock.readLock().lock();
+			try {
+				spilled = !spills.isEmpty();
+				if (!spilled)
+					for (Object[] msg : keyTransferMsg) {  // each object is { K, { workerID, ipaddr, port } }
+						K k = (K) msg[0];
+						//so that only keys assigned to this worker are left in mapOutput
+						addOutgoing(outgoing, (Integer) ((Object[]) msg[1])[0], k, mapOutput.remove(k));
+					}
+			} finally {
+				spillLock.readLock().unlock();
+			}
+			if (spilled) {
+				Map<K, Integer> assigned = new HashMap<>();
+				for (Object[] msg : keyTransferMsg)
+					assigned.put((K) msg[0], (Integer) ((Object[]) msg[1])[0]);
+				shuffleRuns(assigned);
+			}
+			else
+				sendToPeers(outgoing);
+		}
+	}
+	
+	/**
+	 * Shuffles without the Master: every key is sent to the worker the Partitioner 
+	 * picks from the roster, and keys for this worker stay in mapOutput
+	 */
+	public void partition() {
+		synchronized (shuffleLock) {
+			Map<Integer, Map<K, List<IV>>> outgoing = new HashMap<>();
+			boolean spilled;
+			spillLock.readLock().lock();
+			try {
+				spilled = !spills.isEmpty();
+				if (!spilled)
+					for (K k : mapOutput.keySet()) {
+						Integer p = destination(k, null);
+						if (p != null)
+							addOutgoing(outgoing, p, k, mapOutput.remove(k));
+					}
+			} finally {
+				spillLock.readLock().unlock();
+			}
+			if (spilled)
+				shuffleRuns(null);
+			else
+				sendToPeers(outgoing);
+		}
+	}
+	
+	/**
+	 * @param key a key held by this worker
+	 * @param assigned the partition the Master picked for each key that leaves 
+	 * 		  this worker, or null to use the Partitioner
+	 * @return Integer workerID of the partition key belongs to, or null for this worker's
+	 */
+	protected Integer destination(K key, Map<K, Integer> assigned) {
+		if (assigned != null)
+			return assigned.get(key);
+		Integer p = partitionOf(key);
+		return p == worker.id ? null : p;
+	}
+	
+	/**
+	 * @param key a key emitted by a map task
+	 * @return Integer workerID of the partition key belongs to, or null if the 
+	 * 		   Master did not say
+	 */
+	protected Integer partitionOf(K key) {
+		if (partitioner != null)
+			return (Integer) roster.get(partitioner.partition(key, roster.size()))[0];
+		return reducers.get(key);
+	}
+	
+	/**
+	 * @param partition workerID a partition belongs to
+	 * @return Object[] { workerID, ipaddr, port } of the worker reducing the partition
+	 */
+	protected Object[] resolve(int partition) {
+		Object[] o = adopted.get(partition);
+		return o != null ? o : peer(partition);
+	}
+	
+	/**
+	 * Adds a key to those going to a partition.  A key added again has its 
+	 * values appended, and a key with no values was already shuffled
+	 */
+	protected void addOutgoing(Map<Integer, Map<K, List<IV>>> outgoing, Integer partition, 
+			K key, List<IV> values) {
+		if (partition == null || values == null)
+			return;
+		Map<K, List<IV>> kvs = outgoing.get(partition);
+		if (kvs == null) {
+			kvs = new HashMap<>();
+			outgoing.put(partition, kvs);
+		}
+		List<IV> held = kvs.get(key);
+		if (held == null)
+			kvs.put(key, values);
+		else
+			held.addAll(values);
+	}
+	
+	/**
+	 * Shuffles a job that has spilled.  The runs are merged, and each key is either
+	 * sent to the peer that reduces it or written to a new run that stays on this
+	 * worker.  Keys for peers are sent whenever they add up to the budget, so a peer
+	 * can get more than one transfer
+	 *
+	 * @param assigned the partition the Master picked for each key that leaves 
+	 * 		  this worker, or null to use the Partitioner
+	 */
+	@SuppressWarnings("unchecked")
+	protected void shuffleRuns(Map<K, Integer> assigned) {
+		Map<Integer, Map<K, List<IV>>> outgoing = new HashMap<>();
+		List<File> runs = takeRuns();
+		File localRun = nextRun();
+		RunMerger merger = null;
+		OutputStream out = null;
+		long pending = 0;
 		try {
-			ObjectInputStream objInStream = new ObjectInputStream(worker.in);
-			List<Object[]> keyTransferMsg = (List<Object[]>) objInStream.readObject();
-			for (Object[] o : keyTransferMsg) {  // each object is { K, ipaddr, port} for where to send K
-				K k = (K) o[0];
-				String peerAddress = (String) o[1]; 
-				Integer peerPort = (Integer) o[2]; 
-				//so that only keys assigned to this worker are left in mapOutput
-				List<IV> v = mapOutput.remove(k); 
-				worker.wP2P.send(k, v, jobID, peerAddress, peerPort); //sends key and its value list as object[]
-			}
-			//A worker sends this message, so that master can keep track of workers who are ready for reduce
-			Utils.writeCommand(worker.out, Utils.W2M_KEYSHUFFLED, jobID);   
+			merger = new RunMerger(runs, keyCodec, valuesCodec, keyOrder, loader);
+			out = new FileOutputStream(localRun);
+			ChunkedOutput local = new ChunkedOutput(out, keyCodec, valuesCodec);
+			while (merger.next()) {
+				K k = (K) merger.key();
+				List<IV> values = (List<IV>) (List<?>) merger.values();
+				Integer p = destination(k, assigned);
+				if (p == null) {
+					// the merge is in keyOrder, so this is a sorted run as well
+					local.write(k, values);
+					continue;
+				}
+				addOutgoing(outgoing, p, k, values);
+				if ((pending += values.size()) >= budget) {
+					sendBatch(outgoing, 0);
+					pending = 0;
+				}
+			}
+			local.finish();
 		} catch (IOException | ClassNotFoundException e) {
 			e.printStackTrace();
+		} finally {
+			if (merger != null)
+				merger.close();
+			close(out);
+		}
+		spillLock.writeLock().lock();
+		try {
+			spills.add(localRun);
+		} finally {
+			spillLock.writeLock().unlock();
+		}
+		deleteRuns(runs);
+		sendToPeers(outgoing);
+	}
+	
+	/**
+	 * Sends each peer its keys as one transfer, then tells the Master this worker
+	 * is done shuffling
+	 * 
+	 * @param outgoing keys and their values grouped by partition
+	 */
+	protected void sendToPeers(Map<Integer, Map<K, List<IV>>> outgoing) {
+		sendBatch(outgoing, 0);
+		//A worker sends this message, so that master can keep track of workers who are ready for reduce
+		Utils.writeCommand(worker.out, Utils.W2M_KEYSHUFFLED, jobID);
+	}
+	
+	/**
+	 * Sends the keys held for each partition to the worker reducing it, and empties
+	 * outgoing.  A run of each transfer is kept, to send it again should that 
+	 * worker be lost
+	 *
+	 * @param outgoing keys and their values grouped by partition
+	 * @param round the reduce round the keys belong to
+	 */
+	protected void sendBatch(Map<Integer, Map<K, List<IV>>> outgoing, int round) {
+		synchronized (sendLock) {
+			for (Map.Entry<Integer, Map<K, List<IV>>> e : outgoing.entrySet())
+				sendPartition(e.getKey(), e.getValue(), round, true);
+		}
+		outgoing.clear();
+	}
+	
+	/**
+	 * Sends keys of a partition to the worker reducing it, or stages them when this
+	 * worker took the partition over.  Caller must hold sendLock to keep a run
+	 * 
+	 * @param partition workerID the partition belongs to
+	 * @param kvs keys of the partition and their values
+	 * @param round the reduce round the keys belong to
+	 * @param keep true to keep a run of the transfer
+	 */
+	protected void sendPartition(int partition, Map<K, List<IV>> kvs, int round, boolean keep) {
+		Object[] o = resolve(partition);
+		if ((Integer) o[0] == worker.id) {
+			stage(worker.id, round, kvs);
+			return;
+		}
+		if (keep) {
+			File run = writeRun(kvs);
+			if (run != null) {
+				List<File> runs = sent.get(partition);
+				if (runs == null) {
+					runs = new ArrayList<>();
+					sent.put(partition, runs);
+				}
+				runs.add(run);
+			}
+		}
+		if (!worker.wP2P.send(this, kvs, round, (String) o[1], (Integer) o[2]))
+			sendTransferFailed((Integer) o[0], kvs.size());
+	}
+	
+	/**
+	 * Tells the Master keys could not be shuffled to a peer, which the job cannot
+	 * complete without unless the peer was lost and its partitions are rebuilt
+	 * 
+	 * @param peer the worker the keys were for
+	 * @param keys number of keys
+	 */
+	protected void sendTransferFailed(int peer, int keys) {
+		Message msg = new Message(Utils.W2M_TRANSFER_FAILED, jobID);
+		try {
+			msg.body().writeInt(peer);
+			Utils.writeString(msg.body(), "Worker " + worker.id + " could not send " + keys + " keys to Worker " + peer);
+			msg.send(worker.out);
+		} catch (IOException e) {
+			System.err.println("Error reporting a failed transfer of job " + jobID + ": " + e);
 		}
 	}
 	
+	/**
+	 * Called with the keys a peer shuffled to this worker.  A transfer the peer
+	 * sends again, since it never got the ACK, is only staged once
+	 * 
+	 * @param source the worker that sent them
+	 * @param round the reduce round they belong to
+	 * @param transfer number of the transfer on its sender
+	 * @param kvs the keys and their value lists
+	 */
 	@SuppressWarnings("unchecked")
-	public void receiveKV(Object k, Object v) {
-		K key = (K) k; 
-		List<IV> valList = (List<IV>) v;
-		if (mapOutput.containsKey(key))
-			mapOutput.get(key).addAll(valList);
-		else
-			mapOutput.put(key, valList);
+	public void receiveTransfer(int source, int round, int transfer, Map<?, ?> kvs) {
+		synchronized (staged) {
+			if (!transfersReceived.add(stagedKey(source, transfer)))
+				return;
+		}
+		stage(source, round, (Map<K, List<IV>>) kvs);
+	}
+	
+	/**
+	 * Holds shuffled keys apart by the worker that sent them and their round until
+	 * the round is reduced, so those of a worker lost before then can be dropped and
+	 * sent again without counting twice.  What is staged is spilled to runs once it
+	 * holds more values than the budget
+	 * 
+	 * @param source the worker that sent the keys
+	 * @param round the reduce round they belong to
+	 * @param kvs the keys and their value lists
+	 */
+	protected void stage(int source, int round, Map<K, List<IV>> kvs) {
+		synchronized (staged) {
+			Integer from = dropped.get(source);
+			if (from != null && round >= from)
+				return;  // sent by a lost worker, whose work is being done again
+			long key = stagedKey(source, round);
+			Map<K, List<IV>> held = staged.get(key);
+			if (held == null) {
+				held = new HashMap<>();
+				staged.put(key, held);
+			}
+			for (Map.Entry<K, List<IV>> e : kvs.entrySet()) {
+				List<IV> values = held.get(e.getKey());
+				if (values == null)
+					held.put(e.getKey(), new ArrayList<>(e.getValue()));
+				else
+					values.addAll(e.getValue());
+				stagedValues += e.getValue().size();
+			}
+			if (stagedValues < budget)
+				return;
+			Iterator<Map.Entry<Long, Map<K, List<IV>>>> it = staged.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Long, Map<K, List<IV>>> e = it.next();
+				File run = writeRun(e.getValue());
+				if (run == null)
+					continue;
+				stagedValues -= count(e.getValue());
+				runsOf(stagedRuns, e.getKey()).add(run);
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Drops what a lost worker sent for rounds that have not started, along with 
+	 * whatever it still sends for them
+	 * 
+	 * @param source the worker lost
+	 * @param fromRound the first round whose keys from it are dropped
+	 */
+	protected void dropStaged(int source, int fromRound) {
+		synchronized (staged) {
+			Integer from = dropped.get(source);
+			dropped.put(source, from == null ? fromRound : Math.min(from, fromRound));
+			Iterator<Map.Entry<Long, Map<K, List<IV>>>> it = staged.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Long, Map<K, List<IV>>> e = it.next();
+				if (sourceOf(e.getKey()) == source && roundOf(e.getKey()) >= fromRound) {
+					stagedValues -= count(e.getValue());
+					it.remove();
+				}
+			}
+			Iterator<Map.Entry<Long, List<File>>> runs = stagedRuns.entrySet().iterator();
+			while (runs.hasNext()) {
+				Map.Entry<Long, List<File>> e = runs.next();
+				if (sourceOf(e.getKey()) == source && roundOf(e.getKey()) >= fromRound) {
+					deleteRuns(e.getValue());
+					runs.remove();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Adds the keys staged for every round up to the one given to mapOutput and 
+	 * the spills, so they are reduced
+	 * 
+	 * @param round the round about to be reduced
+	 */
+	protected void acceptStaged(int round) {
+		List<Map<K, List<IV>>> maps = new ArrayList<>();
+		List<File> runs = new ArrayList<>();
+		synchronized (staged) {
+			Iterator<Map.Entry<Long, Map<K, List<IV>>>> it = staged.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Long, Map<K, List<IV>>> e = it.next();
+				if (roundOf(e.getKey()) <= round) {
+					stagedValues -= count(e.getValue());
+					maps.add(e.getValue());
+					it.remove();
+				}
+			}
+			Iterator<Map.Entry<Long, List<File>>> held = stagedRuns.entrySet().iterator();
+			while (held.hasNext()) {
+				Map.Entry<Long, List<File>> e = held.next();
+				if (roundOf(e.getKey()) <= round) {
+					runs.addAll(e.getValue());
+					held.remove();
+				}
+			}
+		}
+		for (Map<K, List<IV>> map : maps)
+			for (Map.Entry<K, List<IV>> e : map.entrySet())
+				merge(e.getKey(), e.getValue());
+		if (runs.isEmpty())
+			return;
+		spillLock.writeLock().lock();
+		try {
+			spills.addAll(runs);
+		} finally {
+			spillLock.writeLock().unlock();
+		}
+	}
+	
+	protected static long stagedKey(int source, int round) {
+		return ((long) source << 32) | (round & 0xFFFFFFFFL);
+	}
+	
+	protected static int sourceOf(long stagedKey) {
+		return (int) (stagedKey >>> 32);
+	}
+	
+	protected static int roundOf(long stagedKey) {
+		return (int) stagedKey;
+	}
+	
+	protected static List<File> runsOf(Map<Long, List<File>> runs, long key) {
+		List<File> list = runs.get(key);
+		if (list == null) {
+			list = new ArrayList<>();
+			runs.put(key, list);
+		}
+		return list;
+	}
+	
+	protected long count(Map<K, List<IV>> map) {
+		long n = 0;
+		for (List<IV> values : map.values())
+			n += values.size();
+		return n;
+	}
+	
+	/**
+	 * Appends a list of values to those of a key in mapOutput, and spills if that
+	 * fills the budget.  The list is used as is when the key is new, so it should
+	 * not be changed by the caller
+	 * 
+	 * @param key the key the values belong to
+	 * @param valList values to add
+	 */
+	protected void merge(K key, List<IV> valList) {
+		spillLock.readLock().lock();
+		try {
+			List<IV> current = mapOutput.putIfAbsent(key, valList);
+			if (current != null)
+				synchronized (current) {
+					current.addAll(valList);
+				}
+		} finally {
+			spillLock.readLock().unlock();
+		}
+		buffered.addAndGet(valList.size());
+		maybeSpill();
 	}
 	
 	////////////////////////////////////////////////
@@ -119,37 +1358,574 @@ public class Job<K extends Serializable,
 	//
 	///////////////////////////////////////////////
 
-	public void reduce() throws IOException {
-		List<Thread> thrs = new ArrayList<>();
-		for(final K key: mapOutput.keySet()) {
-			thrs.add(new Thread(new Runnable() {
-				public void run() {
-					finalOut.put(key, mr.reduce(key, mapOutput.get(key)));
-				}
-			}));
-			thrs.get(thrs.size()-1).start();
-		}
-		// wait for all the threads to finish
-		for(Thread t: thrs) {
-			try { 
-				t.join(); 
+	/**
+	 * Reduces the keys of a round.  Every worker reduces round 0, and a worker that
+	 * took over the partitions of a lost worker reduces them in a later round
+	 * 
+	 * @param round the round to reduce
+	 * @throws IOException if the Master cannot be reached
+	 */
+	public void reduce(int round) throws IOException {
+		synchronized (reduceLock) {
+			acceptStaged(round);
+			// keys are reduced in batches on a bounded pool rather than a thread per key,
+			// with a few batches per thread so a slow batch does not hold up the rest
+			int parallelism = Math.max(1, mr.getReduceParallelism());
+			ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+			List<File> runs = spills.isEmpty() ? null : takeRuns();
+			List<Future<?>> tasks = runs == null ? reduceInMemory(pool, parallelism)
+					: reduceRuns(pool, parallelism, runs);
+			if (speculative)  // a backup can finish this worker's batches once the Master knows them all
+				reportBatches();
+			// wait for all the batches to finish.  A batch that fails reports itself, 
+			// anything else fails the job before the Master is told it is done
+			for (Future<?> task : tasks) {
+				try {
+					task.get();
+				} catch (InterruptedException | ExecutionException e) {
+					e.printStackTrace();
+					Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+					worker.sendJobFailed(jobID, "a reduce batch of Worker " + worker.id + " failed: " + cause);
+				}
+			}
+			pool.shutdown();
+			if (runs != null)
+				deleteRuns(runs);
+			// the results of each batch have been sent, so the Master only needs their number
+			Message done = new Message(Utils.W2M_JOBDONE, jobID);
+			done.body().writeInt(batchCounter.get());
+			done.send(worker.out);
+			if (compressor != null)
+				Utils.debug("Job " + jobID + ": " + compressor.report());
+		}
+	}
+	
+	protected List<Future<?>> reduceInMemory(ExecutorService pool, int parallelism) {
+		List<K> keys = new ArrayList<>(mapOutput.keySet());
+		if (sortOrder != null)
+			Collections.sort(keys, sortOrder);
+		int batchSize = Math.max(1, (keys.size() + parallelism * Utils.BATCHES_PER_THREAD - 1) 
+				/ (parallelism * Utils.BATCHES_PER_THREAD));
+		List<Future<?>> tasks = new ArrayList<>();
+		for (int i = 0; i < keys.size(); i += batchSize) {
+			Map<K, List<IV>> batch = new LinkedHashMap<>();
+			for (K key : keys.subList(i, Math.min(keys.size(), i + batchSize)))
+				batch.put(key, mapOutput.remove(key));
+			try {
+				tasks.add(submitBatch(pool, batch, null));
 			} catch (InterruptedException e) {
 				e.printStackTrace();
 			}
 		}
-		//finalOut holds the results of this MR job, send it to Master
-		sendResults();
+		return tasks;
+	}
+	
+	/**
+	 * Reduces a job that has spilled, with each key reduced as it comes out of the
+	 * merge of the runs.  Only a few batches are held in memory at once, which
+	 * together hold about the budget
+	 *
+	 * @param pool the reduce threads
+	 * @param parallelism the number of reduce threads
+	 * @param runs every run of the job
+	 * @return List of the batches submitted to pool
+	 */
+	@SuppressWarnings("unchecked")
+	protected List<Future<?>> reduceRuns(ExecutorService pool, int parallelism, List<File> runs) {
+		int slots = parallelism * Utils.BATCHES_PER_THREAD;
+		Semaphore free = new Semaphore(slots);
+		long batchBudget = Math.max(1, budget / slots);
+		List<Future<?>> tasks = new ArrayList<>();
+		RunMerger merger = null;
+		try {
+			merger = new RunMerger(runs, keyCodec, valuesCodec, keyOrder, loader);
+			// batches keep the order of the merge, which is sortOrder if the job has one
+			Map<K, List<IV>> batch = new LinkedHashMap<>();
+			long size = 0;
+			while (merger.next()) {
+				List<IV> values = (List<IV>) (List<?>) merger.values();
+				batch.put((K) merger.key(), values);
+				if ((size += values.size()) >= batchBudget) {
+					tasks.add(submitBatch(pool, batch, free));
+					batch = new LinkedHashMap<>();
+					size = 0;
+				}
+			}
+			if (!batch.isEmpty())
+				tasks.add(submitBatch(pool, batch, free));
+		} catch (IOException | ClassNotFoundException | InterruptedException e) {
+			// the keys left in the runs are never reduced
+			e.printStackTrace();
+			worker.sendJobFailed(jobID, "Worker " + worker.id + " could not merge its runs: " + e);
+		} finally {
+			if (merger != null)
+				merger.close();
+		}
+		return tasks;
+	}
+	
+	/**
+	 * Numbers a batch and submits it, first sending a copy to the backup of this
+	 * worker if it has one
+	 * 
+	 * @param pool the reduce threads
+	 * @param batch keys of the batch and their values
+	 * @param free permits for the batches held in memory, or null if they all are
+	 * @return Future of the batch
+	 * @throws InterruptedException if interrupted waiting for a permit
+	 */
+	protected Future<?> submitBatch(ExecutorService pool, final Map<K, List<IV>> batch,
+			final Semaphore free) throws InterruptedException {
+		// wait for a batch to finish when too many are in memory
+		if (free != null)
+			free.acquire();
+		final int index = batchCounter.getAndIncrement();
+		if (speculative) {
+			pendingBatches.put(index, batch);
+			Object[] backup = reduceBackup;
+			if (backup != null)
+				forwardBatch(backup, index, batch);
+		}
+		return pool.submit(new Runnable() {
+			public void run() {
+				try {
+					reduceBatch(worker.id, index, batch);
+				} finally {
+					pendingBatches.remove(index);
+					if (free != null)
+						free.release();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Reduces a batch and sends its results to the Master.  A batch of this worker 
+	 * stops as soon as its backup copy has been reduced
+	 * 
+	 * @param owner the worker the batch belongs to
+	 * @param index number of the batch on its owner
+	 * @param batch keys of the batch and their values
+	 */
+	protected void reduceBatch(int owner, int index, Map<K, List<IV>> batch) {
+		if (outputFormat != null) {
+			writeBatch(owner, index, batch);
+			return;
+		}
+		Map<K, OV> out = new LinkedHashMap<>();
+		try {
+			for (Map.Entry<K, List<IV>> e : batch.entrySet()) {
+				if (owner == worker.id && reducedElsewhere.contains(index))
+					return;
+				out.put(e.getKey(), reduce(e.getKey(), e.getValue()));
+			}
+		} catch (RuntimeException e) {
+			// the Master counts on the results of every batch
+			System.err.println("Exception reducing batch " + index + " of job " + jobID + ": " + e);
+			sendOutputFailed(owner, index, "Worker " + worker.id + " could not reduce batch " + index 
+					+ " of Worker " + owner + ": " + e);
+			return;
+		}
+		sendResults(owner, index, out);
+	}
+	
+	/**
+	 * Reduces one key, with its values first sorted in valueOrder if the job has one
+	 * 
+	 * @param key the key
+	 * @param values every value of the key
+	 * @return OV the key reduces to
+	 */
+	protected OV reduce(K key, List<IV> values) {
+		if (valueOrder != null)
+			Collections.sort(values, valueOrder);
+		return mr.reduce(key, values);
+	}
+	
+	/**
+	 * Sends the results of a batch as a stream of their own, headed by the batch.
+	 * The Master keeps the first copy of each batch to arrive
+	 * 
+	 * @param owner the worker the batch belongs to
+	 * @param index number of the batch on its owner
+	 * @param results the reduced keys of the batch
+	 */
+	public void sendResults(int owner, int index, Map<K, OV> results) {
+		// results are streamed in chunks, the master does not ACK them
+		synchronized (worker.out) {
+			try {
+				MessageOutputStream stream = new MessageOutputStream(worker.out, Utils.W2M_RESULTS, jobID);
+				DataOutputStream header = new DataOutputStream(stream);
+				header.writeInt(owner);
+				header.writeInt(index);
+				ChunkedOutput chunks = new ChunkedOutput(stream, keyCodec, outputCodec, compressor);
+				for (Map.Entry<K, OV> e : results.entrySet())
+					chunks.write(e.getKey(), e.getValue());
+				chunks.finish();
+				stream.close();
+			} catch (IOException e) {
+				System.err.println("Error sending results of job " + jobID + ": " + e);
+			}
+		}
+	}
+	
+	/**
+	 * Reduces a batch straight into a part file of this worker, and tells the Master
+	 * where the part is along with a few of its results to preview.  The Master
+	 * keeps the first copy of each batch and has any other copy deleted
+	 * 
+	 * @param owner the worker the batch belongs to
+	 * @param index number of the batch on its owner
+	 * @param batch keys of the batch and their values
+	 */
+	protected void writeBatch(int owner, int index, Map<K, List<IV>> batch) {
+		File part = new File(worker.basePath + File.separator + Utils.outputPath + File.separator 
+				+ "job" + jobID, "part-" + owner + "-" + index);
+		List<String[]> preview = new ArrayList<>();
+		RecordWriter<K, OV> writer = null;
+		long records = 0, bytes;
+		try {
+			part.getParentFile().mkdirs();
+			writer = outputFormat.create(part);
+			for (Map.Entry<K, List<IV>> e : batch.entrySet()) {
+				if (owner == worker.id && reducedElsewhere.contains(index))
+					break;
+				OV value = reduce(e.getKey(), e.getValue());
+				writer.write(e.getKey(), value);
+				if (records++ < Utils.PREVIEW_RESULTS)
+					preview.add(new String[] { String.valueOf(e.getKey()), String.valueOf(value) });
+			}
+			bytes = writer.close();
+			writer = null;
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Error writing " + part + " for job " + jobID + ": " + e);
+			if (writer != null)
+				try { writer.close(); } catch (IOException e2) {}  // the error is already reported
+			writer = null;
+			part.delete();
+			sendOutputFailed(owner, index, "Worker " + worker.id + " could not write " + part + ": " + e);
+			return;
+		} finally {
+			if (writer != null)
+				try { writer.close(); } catch (IOException e) {}  // the error is already reported
+		}
+		if (owner == worker.id && reducedElsewhere.contains(index)) {
+			part.delete();
+			return;
+		}
+		Message msg = new Message(Utils.W2M_OUTPUT_PART, jobID);
+		try {
+			msg.body().writeInt(owner);
+			msg.body().writeInt(index);
+			Utils.writeString(msg.body(), part.getPath());
+			msg.body().writeLong(records);
+			msg.body().writeLong(bytes);
+			msg.body().writeInt(preview.size());
+			for (String[] result : preview) {
+				Utils.writeString(msg.body(), result[0]);
+				Utils.writeString(msg.body(), result[1]);
+			}
+			msg.send(worker.out);
+		} catch (IOException e) {
+			System.err.println("Error sending the manifest of " + part + " for job " + jobID + ": " + e);
+		}
+	}
+	
+	/**
+	 * Tells the Master a batch could not be written, since it waits for a part of 
+	 * every batch before the job can complete
+	 * 
+	 * @param owner the worker the batch belongs to
+	 * @param index number of the batch on its owner
+	 * @param reason the error, for the Master to report
+	 */
+	protected void sendOutputFailed(int owner, int index, String reason) {
+		Message msg = new Message(Utils.W2M_OUTPUT_FAILED, jobID);
+		try {
+			msg.body().writeInt(owner);
+			msg.body().writeInt(index);
+			Utils.writeString(msg.body(), reason);
+			msg.send(worker.out);
+		} catch (IOException e) {
+			System.err.println("Error reporting the failed batch " + index + " of job " + jobID + ": " + e);
+		}
+	}
+	
+	/**
+	 * Tells the Master how many batches this worker's keys were split into
+	 */
+	protected void reportBatches() throws IOException {
+		Message msg = new Message(Utils.W2M_REDUCE_BATCHES, jobID);
+		msg.body().writeInt(batchCounter.get());
+		msg.send(worker.out);
+	}
+	
+	/**
+	 * Called when the Master picks a backup for this straggling worker.  Copies of 
+	 * the batches not reduced yet are sent to it, as are the batches made from here on
+	 * 
+	 * @param backupID the worker reducing the copies
+	 */
+	public void speculateReduce(int backupID) {
+		final Object[] backup = peer(backupID);
+		reduceBackup = backup;
+		// sent apart from the slots, since this worker's threads are what is slow
+		worker.transfers.execute(new Runnable() {
+			public void run() {
+				for (Map.Entry<Integer, Map<K, List<IV>>> e : new ArrayList<>(pendingBatches.entrySet()))
+					forwardBatch(backup, e.getKey(), e.getValue());
+			}
+		});
+	}
+	
+	protected void forwardBatch(Object[] backup, int index, Map<K, List<IV>> batch) {
+		worker.wP2P.sendBatch(this, index, batch, (String) backup[1], (Integer) backup[2]);
+	}
+	
+	/**
+	 * Reduces the copy of a batch of a straggling worker in one of this worker's slots
+	 * 
+	 * @param owner the worker the batch belongs to
+	 * @param index number of the batch on its owner
+	 * @param batch keys of the batch and their values
+	 */
+	@SuppressWarnings("unchecked")
+	public void receiveBatch(final int owner, final int index, Map<?, ?> copy) {
+		final Map<K, List<IV>> batch = (Map<K, List<IV>>) copy;
+		worker.runPhase(jobID, "backup reduce", new Callable<Void>() {
+			public Void call() {
+				reduceBatch(owner, index, batch);
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Called when the backup copy of a batch of this worker was reduced first
+	 * 
+	 * @param index number of the batch
+	 */
+	public void reducedElsewhere(int index) {
+		reducedElsewhere.add(index);
+	}
+	
+	////////////////////////////////////////////////
+	//
+	// Recovering the work of a lost worker
+	//
+	///////////////////////////////////////////////
+	
+	/**
+	 * Called when the Master loses a worker of this job.  What the worker sent for
+	 * rounds that have not started is dropped, since its map tasks are run again, 
+	 * and whatever this worker shuffled to the partitions it held is sent again to
+	 * the worker taking them over
+	 * 
+	 * @param lost the worker lost
+	 * @param adopter the worker taking over its partitions
+	 * @param round the round the keys sent again are reduced in, which is also the
+	 * 		  first round whose keys from the lost worker are dropped
+	 * @param partitions the partitions that were held by the lost worker
+	 */
+	public void workerLost(int lost, final int adopter, final int round, 
+			final List<Integer> partitions) {
+		dropStaged(lost, round);
+		worker.runPhase(jobID, "recovery", new Callable<Void>() {
+			public Void call() {
+				Map<Integer, List<File>> resend = new HashMap<>();
+				// a shuffle in progress finishes first, and later ones go to the adopter
+				synchronized (sendLock) {
+					for (int p : partitions) {
+						adopted.put(p, peer(adopter));
+						List<File> runs = sent.get(p);
+						if (runs != null)
+							resend.put(p, new ArrayList<>(runs));
+					}
+				}
+				for (Map.Entry<Integer, List<File>> e : resend.entrySet())
+					for (File run : e.getValue()) {
+						Map<K, List<IV>> kvs = readRun(run);
+						if (kvs != null)
+							sendPartition(e.getKey(), kvs, round, false);
+					}
+				Utils.writeCommand(worker.out, Utils.W2M_RECOVERED, jobID);
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Maps a file of a lost worker again from this worker's copy of it, before any
+	 * round is reduced.  The output is shuffled on its own like that of a backup, 
+	 * and an empty shuffle is still reported if another copy committed first, 
+	 * since the Master waits on it
+	 * 
+	 * @param owner the worker lost
+	 * @param filename name of the file
+	 * @throws IOException if the Master cannot be reached
+	 */
+	public void recoverMap(int owner, String filename) throws IOException {
+		synchronized (commits) {
+			commits.remove(owner + "/" + filename);  // this worker may have lost a race for it before
+		}
+		Map<K, List<IV>> local = new HashMap<>();
+		List<File> runs = new ArrayList<>();
+		boolean ran = runTask(new File(worker.basePath + File.separator + filename), owner, filename, local, runs);
+		synchronized (backupLock) {
+			Map<K, Integer> counts = partitioner == null ? countKeys(local, runs) : null;
+			if (ran && commit(owner, filename, local, runs))
+				System.out.println("Job " + jobID + ": " + filename + " of lost Worker " + owner + " mapped again");
+			else {
+				drop(local, runs);
+				counts = new HashMap<>();
+			}
+			if (partitioner != null)
+				partition();
+			else
+				sendKeysToMaster(counts);
+		}
+	}
+	
+	/**
+	 * Maps files of lost workers again from this worker's copies of them, keeping 
+	 * only the keys of the partitions being rebuilt, and sends those to the workers
+	 * reducing the partitions now
+	 * 
+	 * @param round the round the partitions are reduced in
+	 * @param partitions the partitions to keep the keys of
+	 * @param units { owner, filename } of each file to map
+	 */
+	public void recoverPartitions(int round, Set<Integer> partitions, List<Object[]> units) {
+		for (Object[] unit : units) {
+			int owner = (Integer) unit[0];
+			String filename = (String) unit[1];
+			synchronized (commits) {
+				commits.remove(owner + "/" + filename);
+			}
+			Map<K, List<IV>> local = new HashMap<>();
+			List<File> runs = new ArrayList<>();
+			taskPartitions.set(partitions);
+			boolean ran;
+			try {
+				ran = runTask(new File(worker.basePath + File.separator + filename), owner, filename, local, runs);
+			} finally {
+				taskPartitions.remove();
+			}
+			if (!ran) {  // the Master fails the job
+				drop(local, runs);
+				continue;
+			}
+			route(local, runs, round);
+			System.out.println("Job " + jobID + ": " + filename + " of Worker " + owner 
+					+ " mapped again for partitions " + partitions);
+		}
+		Utils.writeCommand(worker.out, Utils.W2M_RECOVERED, jobID);
+	}
+	
+	/**
+	 * Sends the output of a map task to the partitions its keys belong to, in 
+	 * transfers of about the budget
+	 * 
+	 * @param local the buffer of the task
+	 * @param runs the runs the task spilled, which are deleted
+	 * @param round the round the keys are reduced in
+	 */
+	@SuppressWarnings("unchecked")
+	protected void route(Map<K, List<IV>> local, List<File> runs, int round) {
+		Map<Integer, Map<K, List<IV>>> outgoing = new HashMap<>();
+		for (Map.Entry<K, List<IV>> e : local.entrySet())
+			addOutgoing(outgoing, partitionOf(e.getKey()), e.getKey(), e.getValue());
+		if (!runs.isEmpty()) {
+			RunMerger merger = null;
+			long pending = 0;
+			try {
+				merger = new RunMerger(runs, keyCodec, valuesCodec, keyOrder, loader);
+				while (merger.next()) {
+					K k = (K) merger.key();
+					List<IV> values = (List<IV>) (List<?>) merger.values();
+					addOutgoing(outgoing, partitionOf(k), k, values);
+					if ((pending += values.size()) >= budget) {
+						sendBatch(outgoing, round);
+						pending = 0;
+					}
+				}
+			} catch (IOException | ClassNotFoundException e) {
+				e.printStackTrace();
+			} finally {
+				if (merger != null)
+					merger.close();
+			}
+			deleteRuns(runs);
+		}
+		sendBatch(outgoing, round);
+	}
+	
+	/**
+	 * Reads the partition of each key kept by map tasks run again, which follows
+	 * the M2W_RECOVER_PARTITIONS command on the stream from the Master
+	 * 
+	 * @throws IOException if the stream fails
+	 */
+	@SuppressWarnings("unchecked")
+	public void readReducers() throws IOException {
+		try {
+			ChunkedInput chunks = new ChunkedInput(worker.in, keyCodec, Codecs.INTEGER, null, loader);
+			while (chunks.next())
+				for (int i = 0; i < chunks.keys().length; i++)
+					reducers.put((K) chunks.keys()[i], (Integer) chunks.values()[i]);
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	/**
+	 * @param run a run written by writeRun
+	 * @return Map of its keys and their values, or null if it cannot be read
+	 */
+	@SuppressWarnings("unchecked")
+	protected Map<K, List<IV>> readRun(File run) {
+		Map<K, List<IV>> kvs = new HashMap<>();
+		InputStream in = null;
+		try {
+			in = new FileInputStream(run);
+			ChunkedInput chunks = new ChunkedInput(in, keyCodec, valuesCodec, null, loader);
+			while (chunks.next())
+				for (int i = 0; i < chunks.keys().length; i++)
+					kvs.put((K) chunks.keys()[i], (List<IV>) chunks.values()[i]);
+			return kvs;
+		} catch (IOException | ClassNotFoundException e) {
+			System.err.println("Error reading " + run + " of job " + jobID + ": " + e);
+			return null;
+		} finally {
+			if (in != null)
+				try {
+					in.close();
+				} catch (IOException e) {}  //ignore exceptions since you are closing
+		}
 	}
 	
-	public void sendResults() throws IOException {
-		for (Map.Entry<K, OV> e : finalOut.entrySet()) {
-			Utils.writeCommand(worker.out, Utils.W2M_RESULTS, jobID);
-			Utils.writeObject(worker.out, new Object[]{e.getKey(), e.getValue()});
-			worker.in.read();  // wait for ACK
+	/**
+	 * Deletes every run the job still holds, once the Master has all of its results
+	 */
+	public void cleanup() {
+		synchronized (sendLock) {
+			for (List<File> runs : sent.values())
+				deleteRuns(runs);
+			sent.clear();
+		}
+		synchronized (staged) {
+			for (List<File> runs : stagedRuns.values())
+				deleteRuns(runs);
+			stagedRuns.clear();
+			staged.clear();
+		}
+		spillLock.writeLock().lock();
+		try {
+			deleteRuns(spills);
+			spills.clear();
+		} finally {
+			spillLock.writeLock().unlock();
 		}
-		Utils.writeCommand(worker.out, Utils.W2M_JOBDONE, jobID);
-		// let worker know this job is completed
-		worker.jobComplete(this.jobID);
 	}
 	
 	public void stopExecution() {
@@ -0,0 +1,154 @@
+package mapreduce;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides when the Master starts each submitted job.  Every worker has the
+ * number of slots it was started with and a running job holds one slot on each worker it runs
+ * on, so the jobs sharing a worker split it evenly and no more than that many
+ * ever overlap.
+ *
+ * Queued jobs are started highest priority first, then in the order they were
+ * submitted.  A job gains a level of priority for every Utils.AGING_INTERVAL it
+ * waits, so a stream of small high priority jobs cannot starve a large one.  A job
+ * that cannot start yet reserves a slot on each of its workers, and the jobs behind
+ * it may only use the slots left over.
+ */
+public class JobScheduler {
+
+	protected Master master;
+	// submitted jobs that have not started
+	protected List<MasterJob<?,?,?>> queue;
+	// running jobs by jobID
+	protected Map<Integer, MasterJob<?,?,?>> running;
+	// slots held by running jobs, by workerID
+	protected Map<Integer, Integer> used;
+
+	public JobScheduler(Master master) {
+		this.master = master;
+		queue = new ArrayList<>();
+		running = new HashMap<>();
+		used = new HashMap<>();
+	}
+
+	/**
+	 * Queues a job and starts it right away if there are slots for it
+	 *
+	 * @param job the job submitted
+	 */
+	public synchronized void submit(MasterJob<?,?,?> job) {
+		job.submitted = System.nanoTime();
+		queue.add(job);
+		schedule();
+		if (queue.contains(job))
+			System.out.printf("Job %d queued behind %d running and %d waiting job%s%n", job.jobID,
+					running.size(), queue.size() - 1, queue.size() == 2 ? "" : "s");
+	}
+
+	/**
+	 * Frees the slots of a job that completed and starts what fits in them
+	 *
+	 * @param jobID the job that completed
+	 */
+	public synchronized void finish(int jobID) {
+		MasterJob<?,?,?> job = running.remove(jobID);
+		if (job != null)
+			for (WorkerConnection wc : job.jobWorkers)
+				release(wc.id);
+		schedule();
+	}
+
+	/**
+	 * Forgets the slots of a worker that left the cluster
+	 *
+	 * @param workerID the worker removed
+	 */
+	public synchronized void remove(int workerID) {
+		used.remove(workerID);
+		schedule();
+	}
+
+	/**
+	 * Starts every queued job that fits, in priority order.  Called whenever
+	 * slots free up or the workers in the cluster change
+	 */
+	public synchronized void schedule() {
+		final long now = System.nanoTime();
+		List<MasterJob<?,?,?>> order = new ArrayList<>(queue);
+		Collections.sort(order, new Comparator<MasterJob<?,?,?>>() {
+			public int compare(MasterJob<?,?,?> a, MasterJob<?,?,?> b) {
+				int byPriority = Long.compare(priority(b, now), priority(a, now));
+				return byPriority != 0 ? byPriority : Long.compare(a.submitted, b.submitted);
+			}
+		});
+		// slots held back on each worker for jobs ahead in the order that could not start
+		Map<Integer, Integer> reserved = new HashMap<>();
+		for (MasterJob<?,?,?> job : order) {
+			List<WorkerConnection> workers = master.workersFor(job);
+			if (workers.isEmpty())
+				continue;  // no workers in the cluster yet
+			boolean fits = true;
+			for (WorkerConnection wc : workers)
+				if (free(wc) - count(reserved, wc.id) <= 0)
+					fits = false;
+			if (fits) {
+				queue.remove(job);
+				for (WorkerConnection wc : workers)
+					used.put(wc.id, count(used, wc.id) + 1);
+				running.put(job.jobID, job);
+				master.startJob(job, workers);
+			}
+			else
+				for (WorkerConnection wc : workers)
+					reserved.put(wc.id, count(reserved, wc.id) + 1);
+		}
+	}
+
+	/**
+	 * @param job a queued job
+	 * @param now current System.nanoTime
+	 * @return long priority of the job plus a level for each AGING_INTERVAL it has waited
+	 */
+	protected long priority(MasterJob<?,?,?> job, long now) {
+		return job.priority + (now - job.submitted) / (Utils.AGING_INTERVAL * 1000000L);
+	}
+
+	protected int free(WorkerConnection wc) {
+		return wc.slots - count(used, wc.id);
+	}
+
+	protected void release(int workerID) {
+		int held = count(used, workerID);
+		if (held <= 1)
+			used.remove(workerID);
+		else
+			used.put(workerID, held - 1);
+	}
+
+	protected static int count(Map<Integer, Integer> slots, int workerID) {
+		Integer n = slots.get(workerID);
+		return n == null ? 0 : n;
+	}
+
+	/**
+	 * Prints the running and queued jobs, with how long each has waited or run
+	 */
+	public synchronized void printStatus() {
+		long now = System.nanoTime();
+		for (MasterJob<?,?,?> job : running.values())
+			System.out.printf("Job %d: running on %d worker%s for %.1f s after %.1f s queued, %d speculative launch%s%n", 
+					job.jobID, job.jobWorkers.size(), job.jobWorkers.size() == 1 ? "" : "s",
+					(now - job.started) / 1e9, job.getQueueDelay() / 1e9, 
+					job.speculativeLaunches, job.speculativeLaunches == 1 ? "" : "es");
+		for (MasterJob<?,?,?> job : queue)
+			System.out.printf("Job %d: queued for %.1f s at priority %d%n", job.jobID,
+					(now - job.submitted) / 1e9, priority(job, now));
+		if (running.isEmpty() && queue.isEmpty())
+			System.out.println("No jobs");
+	}
+}
@@ -0,0 +1,134 @@
+package mapreduce;
+
+import java.io.IOException;
+
+/**
+ * A fast LZ77 codec in the style of LZ4, which trades some ratio for far less
+ * CPU than Deflate.  A block is a run of sequences, each a token byte holding 
+ * the literal and match lengths, the literals, then a 2-byte offset back to 
+ * the match.  Lengths of 15 or more continue in bytes of 255.  The last 
+ * sequence has only literals.
+ */
+public class LZCompressor extends BlockCompressor {
+
+	protected static final int MIN_MATCH = 4,
+							   HASH_BITS = 14,
+							   MAX_OFFSET = 65535;
+
+	public String getName() {
+		return "LZ";
+	}
+
+	public int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+
+	protected int encode(byte[] src, int length, byte[] dst) {
+		// position + 1 of the last place each hash of 4 bytes was seen
+		int[] table = new int[1 << HASH_BITS];
+		int ip = 0, anchor = 0, op = 0;
+		// the last bytes are always literals, so a match never reads past the end
+		int matchLimit = length - 8;
+		while (ip <= matchLimit) {
+			int seq = readInt(src, ip);
+			int h = (seq * -1640531535) >>> (32 - HASH_BITS);
+			int ref = table[h] - 1;
+			table[h] = ip + 1;
+			if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+				ip++;
+				continue;
+			}
+			int matchLength = MIN_MATCH;
+			while (ip + matchLength < length && src[ref + matchLength] == src[ip + matchLength])
+				matchLength++;
+			int token = op;
+			op = writeSequence(src, anchor, ip - anchor, dst, op);
+			dst[op++] = (byte) (ip - ref);
+			dst[op++] = (byte) ((ip - ref) >>> 8);
+			// the match length goes in the low half of the token
+			op = writeLength(dst, op, token, matchLength - MIN_MATCH, 0);
+			ip += matchLength;
+			anchor = ip;
+		}
+		return writeSequence(src, anchor, length - anchor, dst, op);
+	}
+
+	/**
+	 * Writes the token and literals of a sequence, leaving the match length at 0
+	 * 
+	 * @return int position in dst after the literals
+	 */
+	protected int writeSequence(byte[] src, int start, int literals, byte[] dst, int op) {
+		int token = op++;
+		dst[token] = 0;
+		op = writeLength(dst, op, token, literals, 4);
+		System.arraycopy(src, start, dst, op, literals);
+		return op + literals;
+	}
+
+	/**
+	 * Puts a length in one half of a token, with any extra bytes it needs at op
+	 * 
+	 * @param shift 4 for the literal length, 0 for the match length
+	 * @return int position in dst after the extra bytes
+	 */
+	protected int writeLength(byte[] dst, int op, int token, int length, int shift) {
+		if (length < 15) {
+			dst[token] |= length << shift;
+			return op;
+		}
+		dst[token] |= 15 << shift;
+		length -= 15;
+		for (; length >= 255; length -= 255)
+			dst[op++] = (byte) 255;
+		dst[op++] = (byte) length;
+		return op;
+	}
+
+	protected void decode(byte[] src, int length, byte[] dst, int rawLength) throws IOException {
+		int ip = 0, op = 0;
+		try {
+			while (true) {
+				int token = src[ip++] & 0xFF;
+				int literals = token >>> 4;
+				if (literals == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xFF;
+						literals += b;
+					} while (b == 255);
+				}
+				System.arraycopy(src, ip, dst, op, literals);
+				ip += literals;
+				op += literals;
+				if (ip == length)
+					break;
+				int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+				ip += 2;
+				int matchLength = token & 15;
+				if (matchLength == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xFF;
+						matchLength += b;
+					} while (b == 255);
+				}
+				matchLength += MIN_MATCH;
+				// byte by byte, since a match can overlap the bytes it produces
+				int ref = op - offset;
+				if (ref < 0)
+					throw new IOException("Corrupt LZ block: offset " + offset + " at " + op);
+				for (int i = 0; i < matchLength; i++)
+					dst[op++] = dst[ref + i];
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Corrupt LZ block", e);
+		}
+		if (op != rawLength)
+			throw new IOException("LZ block is " + op + " bytes, expected " + rawLength);
+	}
+
+	protected static int readInt(byte[] b, int i) {
+		return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+	}
+}
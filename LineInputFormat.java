@@ -0,0 +1,19 @@
+package mapreduce;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Splits a text file into lines, keyed by the byte offset of each line.  Both
+ * "\n" and "\r\n" line endings are removed from the values.
+ */
+public class LineInputFormat extends DelimitedInputFormat {
+
+	public LineInputFormat() {
+		super((byte) '\n');
+	}
+
+	public RecordReader<Long, String> open(File file) throws IOException {
+		return new DelimitedRecordReader(file, delimiter, true);
+	}
+}
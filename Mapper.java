@@ -2,6 +2,7 @@ package mapreduce;
 
 import java.io.File;
 import java.io.Serializable;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 
@@ -15,6 +16,141 @@ public abstract class Mapper<IK extends Serializable,
 	
 	public abstract OV reduce(IK key, List<IV> listOfValues);
 
+	/**
+	 * Override to choose which worker reduces each key.  Returning null has the 
+	 * Master collect every key and balance them over the workers by size instead, 
+	 * which costs a round trip per job but handles skewed keys better.
+	 * 
+	 * @return Partitioner used by the workers to shuffle their keys
+	 */
+	public Partitioner<IK> getPartitioner() {
+		return new HashPartitioner<>();
+	}
+	
+	/**
+	 * Override to send keys in a compact binary form instead of with Java
+	 * serialization, which is the fallback when this returns null
+	 * 
+	 * @return Codec of the keys, such as Codecs.STRING
+	 */
+	public Codec<IK> getKeyCodec() {
+		return null;
+	}
+	
+	/**
+	 * @return Codec of the intermediate values, or null for Java serialization
+	 */
+	public Codec<IV> getValueCodec() {
+		return null;
+	}
+	
+	/**
+	 * @return Codec of the values returned by reduce, or null for Java serialization
+	 */
+	public Codec<OV> getOutputCodec() {
+		return null;
+	}
+	
+	/**
+	 * Override to compress this job's shuffle and result streams, with a
+	 * DeflateCompressor for the best ratio or an LZCompressor for the least CPU.
+	 * Called once per job on each node, so it should return a new instance
+	 * 
+	 * @return BlockCompressor for the job, or null to send the streams uncompressed
+	 */
+	public BlockCompressor getCompressor() {
+		return null;
+	}
+	
+	/**
+	 * Override to have each worker write the results it reduces to part files of
+	 * its own, under Utils.outputPath, instead of sending them to the Master.  The 
+	 * Master then only keeps where each part is and a preview of the results, 
+	 * so the results never have to fit in its memory
+	 * 
+	 * @return OutputFormat of the part files, or null to collect the results on the Master
+	 */
+	public OutputFormat<IK, OV> getOutputFormat() {
+		return null;
+	}
+	
+	/**
+	 * Override to have keys reach reduce in the order of a Comparator, within each
+	 * batch a worker reduces, and have the Master hold the results in that order.
+	 * Map output is then spilled and merged in this order rather than by hashCode, 
+	 * so it costs no more memory however many keys there are
+	 * 
+	 * @return Comparator of the keys, or null to reduce them in no particular order
+	 */
+	public Comparator<IK> getSortComparator() {
+		return null;
+	}
+	
+	/**
+	 * Override to sort the values of each key before they reach reduce, such as
+	 * by a timestamp carried in the values
+	 * 
+	 * @return Comparator of the values, or null to leave them in the order they arrived
+	 */
+	public Comparator<IV> getValueComparator() {
+		return null;
+	}
+	
+	/**
+	 * Override to have the Master start this job ahead of lower priority ones 
+	 * when the cluster is busy.  Jobs of the same priority start in the order 
+	 * they were submitted
+	 * 
+	 * @return int priority of the job, higher starts first, defaults to 0
+	 */
+	public int getPriority() {
+		return 0;
+	}
+	
+	/**
+	 * Override to map several input files at once on each worker.  map is then 
+	 * called from more than one thread, so it must not share state between calls
+	 * 
+	 * @return int number of files mapped at a time per worker, defaults to 1
+	 */
+	public int getMapParallelism() {
+		return 1;
+	}
+	
+	/**
+	 * Override to change how much map output a worker holds in memory for this job.
+	 * Past the budget the output is spilled to sorted runs on disk, which are 
+	 * merged again to shuffle and reduce
+	 * 
+	 * @return long number of intermediate values held per worker before spilling
+	 */
+	public long getMapOutputBudget() {
+		return Utils.SPILL_THRESHOLD;
+	}
+	
+	/**
+	 * Override to change how many threads reduce this job's keys on each worker
+	 * 
+	 * @return int number of reduce threads per worker, defaults to the number of cores
+	 */
+	public int getReduceParallelism() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+	
+	/**
+	 * Override to turn on speculative execution.  While it is on, the Master runs 
+	 * backup copies of the map inputs and reduce batches of a worker that falls 
+	 * behind its peers, on workers that have finished, and keeps whichever copy 
+	 * finishes first.  map and reduce should have no effects besides their output.
+	 * It costs every map task a spill of its own output and a round trip to the
+	 * Master to commit it, even when no worker falls behind, so it is off by default
+	 * 
+	 * @return boolean true to run backups of straggling work, defaults to false
+	 */
+	public boolean isSpeculative() {
+		return false;
+	}
+	
 	public void emit(IK key, IV value) {
 		job.emit(key, value);
 	}
@@ -1,29 +1,40 @@
 package mapreduce;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.URLClassLoader;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.tools.JavaCompiler;
 import javax.tools.ToolProvider;
 
 /**
  * This class is the Master node of the cluster, and extends Thread to 
- * run a server socket listening for worker connections.
+ * run a selector over the server socket and every worker connection.
+ * Messages from the workers are handled on a separate pool, so the 
+ * number of threads does not grow with the number of workers.
  * 
  * Usage: java mapreduce.Master [-port <portNumber>]
  * 
@@ -40,18 +51,31 @@ public class Master extends Thread {
 	protected int clientPort = Utils.DEF_CLIENT_PORT;
 	protected String basePath;
 	protected File baseDir;
-	protected URLClassLoader myClassPathLoader;
+	// compiled Mappers, and the artifact built from each file submitted by its hash
+	protected ArtifactStore artifacts;
+	protected Map<String, String[]> compiled;
 	protected ExecutorService exec;
+	// runs the job logic for messages read by the selector
+	protected ExecutorService handlers;
+	// looks for stragglers to back up in the running jobs
+	protected ScheduledExecutorService monitor;
 	protected ClientListener clientConn;
-	protected ServerSocket serverSocket;
+	protected ServerSocketChannel serverChannel;
+	protected Selector selector;
+	// connections with bytes queued, whose keys the selector must watch for writes
+	protected Queue<WorkerConnection> writable;
 	protected boolean stopped;
 	protected List<WorkerConnection> workerQueue; 
 	protected Object queueLock = new Object();
-	// this is the file server portion of Master
+	// this is the file server portion of Master: the files on each worker, and
+	// the replica catalog of the workers holding a copy of each file
 	protected Map<Integer, List<String>> IDtoFiles;
-	protected Map<String, Integer> filesToID;
-	// maps jobIDs to the MasterJob working them
+	protected Map<String, Set<Integer>> filesToID;
+	// number of workers a file placed with put is stored on
+	protected int replicas = Utils.REPLICAS;
+	// maps jobIDs to the MasterJob working them, queued or running
 	protected Map<Integer, MasterJob<?,?,?>> jobs;
+	protected JobScheduler scheduler;
 
 	/**
 	 * 
@@ -67,13 +91,23 @@ public class Master extends Thread {
     	baseDir = new File(basePath);
     	if (!baseDir.isDirectory())
     		baseDir.mkdirs();
-    	myClassPathLoader = Utils.addPath(basePath);
+    	artifacts = new ArtifactStore(new File(basePath + File.separator + Utils.artifactPath));
+    	compiled = new ConcurrentHashMap<>();
 		workerQueue = new ArrayList<>();
 		filesToID = new ConcurrentHashMap<>();
 		IDtoFiles = new ConcurrentHashMap<>();
 		jobs = new ConcurrentHashMap<>();
-		serverSocket = new ServerSocket(port);
+		scheduler = new JobScheduler(this);
+		writable = new ConcurrentLinkedQueue<>();
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
 		exec = Executors.newCachedThreadPool();
+		handlers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		monitor = Executors.newSingleThreadScheduledExecutor();
+		startMonitor();
 		// listen for Client connection sending a file
 		clientConn = new ClientListener(this, clientPort);
 		clientConn.setDaemon(true);
@@ -119,11 +153,11 @@ public class Master extends Thread {
      */
     public void sendRegularFile(String filename, String workerID) {
 		try {
-			Path myFile = Paths.get(filename);
-			byte[] byteArrOfFile = Files.readAllBytes(myFile);
+			File myFile = new File(filename);
 			WorkerConnection wk = this.getWorker(Integer.parseInt(workerID));
 			if (wk != null) {
-				wk.sendFile(Utils.M2W_FILE, Utils.NONE, myFile.getFileName().toString(), byteArrOfFile);
+				wk.sendFile(Utils.M2W_FILE, Utils.NONE, myFile);
+				addReplica(wk.id, myFile.getName());
 				System.out.printf("%s sent to Worker %s%n", filename, workerID);
 			}
 			else 
@@ -132,70 +166,320 @@ public class Master extends Thread {
 			System.err.println("Not a valid worker ID: " + n);
 		}
 		catch (IOException e) {
-			System.err.println("Error reading file in Master node: " + e);
+			System.err.println("Error sending file from Master node: " + e);
 		}
     }
     
+    /**
+     * Stores a file on the workers holding the fewest files, so that each of its 
+     * copies is on a different worker
+     * 
+     * @param filename the String name of the file being placed
+     * @param copies number of workers to store it on
+     */
+    public void placeFile(String filename, int copies) {
+    	File myFile = new File(filename);
+    	if (!myFile.isFile()) {
+    		System.err.println(filename + " is not a file");
+    		return;
+    	}
+    	List<WorkerConnection> targets = new ArrayList<>();
+    	synchronized(queueLock) {
+    		for (WorkerConnection wc : workerQueue)
+    			if (!wc.isStopped() && !holds(wc.id, myFile.getName()))
+    				targets.add(wc);
+    	}
+    	Collections.sort(targets, new Comparator<WorkerConnection>() {
+    		public int compare(WorkerConnection a, WorkerConnection b) {
+    			return Integer.compare(filesHeld(a.id), filesHeld(b.id));
+    		}
+    	});
+    	if (targets.size() < copies)
+    		System.err.printf("Only %d worker%s to store %d copies of %s on%n", 
+    				targets.size(), targets.size() == 1 ? "" : "s", copies, filename);
+    	for (WorkerConnection wc : targets.subList(0, Math.min(copies, targets.size()))) {
+    		try {
+    			wc.sendFile(Utils.M2W_FILE, Utils.NONE, myFile);
+    			addReplica(wc.id, myFile.getName());
+    			System.out.printf("%s stored on Worker %d%n", filename, wc.id);
+    		} catch (IOException e) {
+    			System.err.println("Error sending " + filename + " to " + wc + ": " + e);
+    		}
+    	}
+    }
+    
     ///////////////////////////////////
     //
     // These methods are job-independent
     //
     ///////////////////////////////////
     
-    protected void receiveWorkerFiles(int wkID, InputStream in) {
+    protected void receiveWorkerFiles(int wkID, DataInput in) throws IOException {
 		List<String> wFiles = Utils.readFilenames(in);
-		if (wFiles != null && wFiles.size() > 0) {
-			IDtoFiles.put(wkID, wFiles);
-			for(String file : wFiles) 
-				filesToID.put(file, wkID);
+		synchronized (filesToID) {
+			List<String> old = IDtoFiles.get(wkID);
+			if (old != null)
+				for (String file : old)
+					removeReplica(wkID, file);
+			if (wFiles.size() > 0) {
+				IDtoFiles.put(wkID, wFiles);
+				for(String file : wFiles)
+					addReplica(wkID, file);
+			}
+			else
+				IDtoFiles.remove(wkID);
 		}
+		// a queued job may be waiting for the worker holding its files
+		scheduler.schedule();
 	}
     
+    /**
+     * Records a copy of a file in the replica catalog
+     */
+    protected void addReplica(int wkID, String file) {
+    	synchronized (filesToID) {
+    		Set<Integer> holders = filesToID.get(file);
+    		if (holders == null) {
+    			holders = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    			filesToID.put(file, holders);
+    		}
+    		holders.add(wkID);
+    		List<String> held = IDtoFiles.get(wkID);
+    		if (held == null || !held.contains(file)) {
+    			List<String> files = held == null ? new ArrayList<String>() : new ArrayList<>(held);
+    			files.add(file);
+    			IDtoFiles.put(wkID, files);
+    		}
+    	}
+    }
+    
+    protected void removeReplica(int wkID, String file) {
+    	synchronized (filesToID) {
+    		Set<Integer> holders = filesToID.get(file);
+    		if (holders != null) {
+    			holders.remove(wkID);
+    			if (holders.isEmpty())
+    				filesToID.remove(file);
+    		}
+    	}
+    }
+    
+    /**
+     * @return boolean true if the replica catalog has a copy of file on the worker
+     */
+    protected boolean holds(int wkID, String file) {
+    	Set<Integer> holders = filesToID.get(file);
+    	return holders != null && holders.contains(wkID);
+    }
+    
+    protected int filesHeld(int wkID) {
+    	List<String> held = IDtoFiles.get(wkID);
+    	return held == null ? 0 : held.size();
+    }
+    
     ///////////////////////////////////
     //
     // These methods are job-dependent
     //
     ///////////////////////////////////
 	
-    protected void receiveWorkerKey(int wkID, InputStream in, OutputStream out, int jobID) throws IOException {
-    	jobs.get(jobID).receiveWorkerKey(in, wkID);
-		out.write(Utils.ACK);  // worker waits for Ack before sending another
+    protected void receiveMapProgress(int wkID, DataInput in, int jobID) throws IOException {
+    	int done = in.readInt();
+    	int total = in.readInt();
+    	MasterJob<?,?,?> job = jobs.get(jobID);
+    	if (job != null)
+    		job.receiveMapProgress(wkID, done, total);
+    }
+    
+    /*
+     * The copies of speculative work that lose still report in, possibly after
+     * their job completed, so messages for jobs that are gone are dropped
+     */
+    
+    protected void receiveKeyManifest(int wkID, InputStream in, int jobID) {
+    	MasterJob<?,?,?> job = jobs.get(jobID);
+    	if (job != null)
+    		job.receiveKeyManifest(in, wkID);
+    }
+    
+    protected void receiveKeyComplete(int wkID, int jobID) {
+    	MasterJob<?,?,?> job = jobs.get(jobID);
+    	if (job != null)
+    		job.receiveKeyComplete(wkID);
+    }
+    
+    protected void receiveKeyShuffle(int wkID, int jobID) {
+    	MasterJob<?,?,?> job = jobs.get(jobID);
+    	if (job != null)
+    		job.receiveKeyShuffle(wkID);
     }
     
-    protected void receiveKeyComplete(InputStream in, int jobID) {
-		jobs.get(jobID).receiveKeyComplete();
+    protected void receiveJobDone(int wkID, int jobID, int batches) {
+    	MasterJob<?,?,?> job = jobs.get(jobID);
+    	if (job != null)
+    		job.receiveJobDone(wkID, batches);
     }
     
-    protected void receiveKeyShuffle(InputStream in, int jobID) {
-		jobs.get(jobID).receiveKeyShuffle();
+    protected void receiveReduceBatches(int wkID, int jobID, int batches) {
+    	MasterJob<?,?,?> job = jobs.get(jobID);
+    	if (job != null)
+    		job.receiveReduceBatches(wkID, batches);
     }
     
-    protected void receiveJobDone(InputStream in, int jobID) {
-		jobs.get(jobID).receiveJobDone();
+    protected void receiveRecovered(int wkID, int jobID) {
+    	MasterJob<?,?,?> job = jobs.get(jobID);
+    	if (job != null)
+    		job.receiveRecovered(wkID);
     }
     
-    protected void receiveResults(InputStream in, OutputStream out, int jobID) throws IOException {
-    	jobs.get(jobID).receiveWorkerResults(in);
-    	out.write(Utils.ACK);  // worker waits for Ack before sending another
+    protected void receiveOutputPart(int wkID, DataInput in, int jobID) throws IOException {
+    	int owner = in.readInt();
+    	int batch = in.readInt();
+    	String path = Utils.readString(in);
+    	long records = in.readLong();
+    	long bytes = in.readLong();
+    	List<String[]> preview = new ArrayList<>();
+    	for (int i = in.readInt(); i > 0; i--)
+    		preview.add(new String[] { Utils.readString(in), Utils.readString(in) });
+    	MasterJob<?,?,?> job = jobs.get(jobID);
+    	if (job != null)
+    		job.receiveOutputPart(wkID, owner, batch, path, records, bytes, preview);
     }
     
-    protected void receiveAck(int wkID, InputStream in, OutputStream out, int jobID) {
+    protected void receiveFetchFailed(int wkID, DataInput in, int jobID) throws IOException {
+    	String filename = Utils.readString(in);
+    	int failed = in.readInt();
+    	MasterJob<?,?,?> job = jobs.get(jobID);
+    	if (job != null)
+    		job.receiveFetchFailed(wkID, filename, failed);
+    	else {  // the job has completed, so the worker need not wait
+    		WorkerConnection wc = getWorker(wkID);
+    		Message msg = new Message(Utils.M2W_FETCH_SOURCE, jobID);
+    		Utils.writeString(msg.body(), filename);
+    		msg.body().writeInt(Utils.NONE);
+    		if (wc != null)
+    			msg.send(wc.out);
+    	}
+    }
+    
+    protected void receiveOutputFailed(int wkID, DataInput in, int jobID) throws IOException {
+    	int owner = in.readInt();
+    	int batch = in.readInt();
+    	String reason = Utils.readString(in);
+    	MasterJob<?,?,?> job = jobs.get(jobID);
+    	if (job != null)
+    		job.receiveOutputFailed(wkID, owner, batch, reason);
+    }
+    
+    protected void receiveMapFailed(int wkID, DataInput in, int jobID) throws IOException {
+    	int owner = in.readInt();
+    	String filename = Utils.readString(in);
+    	String reason = Utils.readString(in);
+    	MasterJob<?,?,?> job = jobs.get(jobID);
+    	if (job != null)
+    		job.receiveMapFailed(wkID, owner, filename, reason);
+    }
+    
+    protected void receiveTransferFailed(int wkID, DataInput in, int jobID) throws IOException {
+    	int peer = in.readInt();
+    	String reason = Utils.readString(in);
+    	MasterJob<?,?,?> job = jobs.get(jobID);
+    	if (job != null)
+    		job.receiveTransferFailed(wkID, peer, reason);
+    }
+    
+    protected void receiveJobFailed(int wkID, String reason, int jobID) {
+    	MasterJob<?,?,?> job = jobs.get(jobID);
+    	if (job != null)
+    		job.receiveJobFailed(wkID, reason);
+    }
+    
+    protected void receiveResults(int wkID, InputStream in, int jobID) {
+    	MasterJob<?,?,?> job = jobs.get(jobID);
+    	if (job != null)
+    		job.receiveWorkerResults(wkID, in);
+    }
+    
+    protected void receiveMapFiles(int wkID, DataInput in, int jobID) throws IOException {
+    	List<String> files = Utils.readFilenames(in);
+    	MasterJob<?,?,?> job = jobs.get(jobID);
+    	if (job != null)
+    		job.receiveMapFiles(wkID, files);
+    }
+    
+    protected void receiveMapCommit(int wkID, DataInput in, int jobID) throws IOException {
+    	int owner = in.readInt();
+    	String filename = Utils.readString(in);
+    	MasterJob<?,?,?> job = jobs.get(jobID);
+    	if (job != null)
+    		job.receiveMapCommit(wkID, owner, filename);
+    }
+    
+    /**
+     * Looks for stragglers in every running job, every Utils.SPECULATION_INTERVAL
+     */
+    protected void startMonitor() {
+    	monitor.scheduleWithFixedDelay(new Runnable() {
+    		public void run() {
+    			for (MasterJob<?,?,?> job : jobs.values()) {
+    				try {
+    					job.speculate();
+    				} catch (Exception e) {
+    					System.err.println("Error looking for stragglers in job " + job.jobID + ": " + e);
+    				}
+    			}
+    		}
+    	}, Utils.SPECULATION_INTERVAL, Utils.SPECULATION_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+    
+    protected void receiveAck(int wkID, OutputStream out, int jobID) throws IOException {
     	//worker has awknowledged receiving MR job, need to send his files
-		ArrayList<String> contains = new ArrayList<>();
-		// if files is empty then use all local files
-		if (jobs.get(jobID).files.isEmpty())
-			contains.add(Utils.ALL);
-		else 
-			for(String file: jobs.get(jobID).files) 
-				if (filesToID.containsKey(file) && filesToID.get(file) == wkID)
-					contains.add(file);
+    	MasterJob<?,?,?> job = jobs.get(jobID);
+    	// the files the job assigned the worker when it started, or all its local
+    	// files when the catalog knew of none
+		List<String> contains = job.assignedFiles(wkID);
 		String[] files = new String[contains.size()];
 		files = contains.toArray(files);
-		Utils.writeFilenames(out, files);  // worker is waiting, no need to send jobID
+		// kept so the files can be mapped again elsewhere if the worker is lost
+		List<String> mapped = contains.contains(Utils.ALL) ? IDtoFiles.get(wkID) : contains;
+		if (mapped != null)
+			job.receiveMapFiles(wkID, new ArrayList<>(mapped));
+		Message msg = new Message(Utils.M2W_JOB_FILES, jobID);
+		Utils.writeFilenames(msg.body(), files);
+		writeRoster(msg.body(), job.getRoster());
+		// then the files the worker has no copy of, with the worker to read each from
+		List<String> remote = new ArrayList<>();
+		for (String file : contains)
+			if (job.sources.containsKey(file))
+				remote.add(file);
+		msg.body().writeInt(remote.size());
+		for (String file : remote) {
+			Utils.writeString(msg.body(), file);
+			msg.body().writeInt(job.sources.get(file));
+		}
+		msg.send(out);
+    }
+    
+    /**
+     * Writes the roster of a job as the number of workers and then the 
+     * { workerID, ipaddr, port } of each, to be read by the Worker
+     * 
+     * @param out body of the message to write to
+     * @param roster List of { workerID, ipaddr, port } from MasterJob
+     * @throws IOException if the stream fails
+     */
+    protected void writeRoster(DataOutput out, List<Object[]> roster) throws IOException {
+    	out.writeInt(roster.size());
+    	for (Object[] w : roster) {
+    		out.writeInt((Integer) w[0]);
+    		Utils.writeString(out, (String) w[1]);
+    		out.writeInt((Integer) w[2]);
+    	}
     }
      
     /**
-     * This method sends the compiled MR job to the worker nodes
+     * This method compiles the MR job and submits it to the scheduler, 
+     * which sends it to the worker nodes once they have slots for it.
      * Since the program can be run locally or on multiple nodes, we
      * need to make sure that files are in the right place and in
      * the classpath before compiling
@@ -218,56 +502,175 @@ public class Master extends Thread {
 		}
 		else //this file came from an external client 
 			f2 = new File(basePath + File.separator + filename);
-		// compile the file and load it into a mapper class
-		String className = compile(filename);
-		Class<?> myClass = myClassPathLoader.loadClass(className); 
-		Mapper<?, ?, ?> mr = (Mapper<?, ?, ?>) myClass.newInstance();
-		// mj gets the class information generically from Mapper
-		final int currJob = ++jobCounter;
-		jobs.put(currJob, new MasterJob<>(currJob, mr, this, filesToUse, workerQueue));
-		// load the bytes of the compiled class and send it across the sockets to all workers
-		final Path myFile = Paths.get(basePath + File.separator + className + ".class");
-		final byte[] byteArrOfFile = Files.readAllBytes(myFile);
+		// the same file submitted again reuses the artifact built from it
+		byte[] submitted = Files.readAllBytes(f2.toPath());
+		String key = ArtifactStore.hash((f2.getName() + '\n' + ArtifactStore.hash(submitted)).getBytes());
+		String[] artifact = compiled.get(key);
+		if (artifact != null)
+			System.out.println(filename + " unchanged, using artifact " + artifact[0]);
+		else {
+			artifact = filename.endsWith(".jar") ? storeJar(submitted) : compile(filename);
+			if (artifact == null) {
+				System.err.println("No Mapper could be built from " + filename);
+				Files.delete(f2.toPath());
+				return;
+			}
+			compiled.put(key, artifact);
+		}
 		// clean up the area 
-		Files.delete(myFile);
-		Files.delete(Paths.get(basePath + File.separator + f2.getName()));
+		Files.delete(f2.toPath());
+		// mj gets the class information generically from Mapper
+		Mapper<?, ?, ?> mr = (Mapper<?, ?, ?>) artifacts.loadClass(artifact[0], artifact[1])
+				.getDeclaredConstructor().newInstance();
+		int currJob = ++jobCounter;
+		MasterJob<?,?,?> mj = new MasterJob<>(currJob, mr, this, filesToUse);
+		mj.artifact = artifact[0];
+		mj.className = artifact[1];
+		jobs.put(currJob, mj);
+		scheduler.submit(mj);
+	}
+	
+	/**
+	 * Stores a precompiled jar as an artifact
+	 * 
+	 * @param jar bytes of the jar
+	 * @return String[] { artifact hash, Mapper class name }, or null if it holds no Mapper
+	 * @throws IOException if the jar cannot be stored or read
+	 */
+	protected String[] storeJar(byte[] jar) throws IOException {
+		String hash = artifacts.put(jar);
+		String className = artifacts.findMapper(hash);
+		return className == null ? null : new String[] { hash, className };
+	}
+	
+	/**
+	 * The workers a job runs on: those holding the files it asked for, or every
+	 * worker when it asked for none or none of its files are in the cluster
+	 * 
+	 * @param job a queued job
+	 * @return List of WorkerConnection to run the job on
+	 */
+	protected List<WorkerConnection> workersFor(MasterJob<?,?,?> job) {
+		List<WorkerConnection> holders = new ArrayList<>(), all = new ArrayList<>();
 		synchronized (queueLock) {
-			for (final WorkerConnection wc : workerQueue) {
-				exec.execute(new Runnable() {
-					public void run() {
-						if (!wc.isStopped()) {
-							wc.sendFile(Utils.M2W_MR_UPLOAD, currJob, myFile.getFileName().toString(), byteArrOfFile);
-						}
+			for (WorkerConnection wc : workerQueue) {
+				if (wc.isStopped())
+					continue;
+				all.add(wc);
+				for (String file : job.files)
+					if (holds(wc.id, file)) {
+						holders.add(wc);
+						break;
 					}
-				});
 			}
 		}
-		System.out.println("Finished sending MR job to worker nodes");
+		return holders.isEmpty() ? all : holders;
+	}
+	
+	/**
+	 * Called by the JobScheduler to send a job's compiled Mapper to its workers
+	 * 
+	 * @param job the job to start
+	 * @param workers the workers it holds a slot on
+	 */
+	protected void startJob(final MasterJob<?,?,?> job, List<WorkerConnection> workers) {
+		job.start(workers);
+		for (final WorkerConnection wc : workers) {
+			exec.execute(new Runnable() {
+				public void run() {
+					if (!wc.isStopped()) {
+						// the worker asks for the artifact only if it does not hold it
+						Message msg = new Message(Utils.M2W_MR_UPLOAD, job.jobID);
+						try {
+							Utils.writeString(msg.body(), job.artifact);
+							Utils.writeString(msg.body(), job.className);
+							msg.send(wc.out);
+						} catch (IOException e) {
+							System.err.println("Error sending job " + job.jobID + " to " + wc + ": " + e);
+						}
+					}
+				}
+			});
+		}
 	}
 	
 	/**
-	 * Compiles a filename into a java class and returns the String classname
+	 * Compiles a filename into its own output directory, and stores every class
+	 * it produced, inner and anonymous classes included, as one artifact
 	 * 
 	 * @param filename String name of the file to be compiled, which has been copied already
 	 * 		  to the correct classpath location
-	 * @return String name of the class that was compiled
+	 * @return String[] { artifact hash, name of the class that was compiled }, or null on failure
 	 * @throws RuntimeException if you are not using the JDK java executable instead of the jre,
 	 * 		   since it has a system compiler attached
 	 */
-	protected String compile(String filename){
+	protected String[] compile(String filename){
+		File out = new File(basePath + File.separator + Utils.buildPath);
 		try {	
 			JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();  
 			if (compiler == null)  // needs to be a JDK java.exe to have a compiler attached
 				throw new RuntimeException("Error: no compiler set for MR file");
-			int compilationResult = compiler.run(null, null, null, basePath + File.separator + filename);  
+			deleteAll(out);
+			out.mkdirs();
+			int compilationResult = compiler.run(null, null, null, "-d", out.getPath(), 
+					"-cp", System.getProperty("java.class.path"), basePath + File.separator + filename);  
 			System.out.println(filename + " compilation " + (compilationResult==0?"successful":"failed"));
-			return filename.split("\\.")[0];  // class name is before ".java"
+			if (compilationResult != 0)
+				return null;
+			// class name is before ".java", and may be in a package
+			String className = findClass(out, "", new File(filename).getName().split("\\.")[0] + ".class");
+			return className == null ? null : new String[] { artifacts.putClasses(out), className };
 		} catch (Exception e) {
 			System.err.println("Exception loading or compiling the File: " + e);
 			return null;
+		} finally {
+			deleteAll(out);
 		}
 	} 			
 	
+	protected String findClass(File dir, String pkg, String classFile) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return null;
+		for (File f : files) {
+			if (f.getName().equals(classFile))
+				return pkg + classFile.substring(0, classFile.length() - ".class".length());
+			if (f.isDirectory()) {
+				String found = findClass(f, pkg + f.getName() + ".", classFile);
+				if (found != null)
+					return found;
+			}
+		}
+		return null;
+	}
+	
+	protected static void deleteAll(File f) {
+		File[] files = f.listFiles();
+		if (files != null)
+			for (File child : files)
+				deleteAll(child);
+		f.delete();
+	}
+	
+	/**
+	 * Streams an artifact to a worker that does not hold it yet
+	 * 
+	 * @param wc the worker that asked for it
+	 * @param jobID the job waiting on it
+	 * @param hash the artifact
+	 */
+	protected void sendArtifact(final WorkerConnection wc, final int jobID, final String hash) {
+		exec.execute(new Runnable() {
+			public void run() {
+				try {
+					wc.sendFile(Utils.M2W_ARTIFACT, jobID, artifacts.file(hash));
+				} catch (IOException e) {
+					System.err.println("Error sending artifact " + hash + " to " + wc + ": " + e);
+				}
+			}
+		});
+	}
+	
 	/**
 	 * Helper function to find a Worker with a given ID.  
 	 * O(N) - can change to a heap for O(1) but the number of 
@@ -293,13 +696,15 @@ public class Master extends Thread {
         	this.stopped = true;
         }
         try {
-            this.serverSocket.close();
             this.clientConn.closeConnection();
             this.exec.shutdown();
-            synchronized(queueLock) {
-            	for (WorkerConnection conn : workerQueue)
-            		conn.closeConnection();
-            }
+            this.handlers.shutdown();
+            this.monitor.shutdown();
+            // closing a connection removes it from the queue
+            for (WorkerConnection conn : new ArrayList<>(workerQueue))
+            	conn.closeConnection();
+            this.serverChannel.close();
+            this.selector.wakeup();
         } catch (IOException e) {
             throw new RuntimeException("Error closing master", e);
         }
@@ -307,14 +712,24 @@ public class Master extends Thread {
 	
     public void jobComplete(int jobID) {
     	jobs.remove(jobID);
+    	scheduler.finish(jobID);
     }
 	
-	public void remove(int workerID) {
-		for(String file : IDtoFiles.get(workerID))
-			filesToID.remove(file);
-		IDtoFiles.remove(workerID);
-		for(MasterJob<?,?,?> mj : jobs.values())
-			mj.remove(workerID);
+	public void remove(final int workerID) {
+		synchronized (filesToID) {
+			List<String> files = IDtoFiles.remove(workerID);
+			if (files != null)
+				for(String file : files)
+					removeReplica(workerID, file);
+		}
+		// jobs redo the work of the worker off the selector thread, which calls this
+		for(final MasterJob<?,?,?> mj : jobs.values())
+			if (!isStopped())
+				exec.execute(new Runnable() {
+					public void run() {
+						mj.remove(workerID);
+					}
+				});
 		synchronized(queueLock) {
 			Iterator<WorkerConnection> it = workerQueue.iterator();
 			while (it.hasNext()) {
@@ -325,17 +740,42 @@ public class Master extends Thread {
 				}
 			}
 		}
+		scheduler.remove(workerID);
 	}
 	
+	/**
+	 * Has the selector watch a connection for room to write, since something
+	 * was queued for it.  Called by any thread writing to a worker
+	 * 
+	 * @param wc the connection written to
+	 */
+	protected void watchWrites(WorkerConnection wc) {
+		writable.add(wc);
+		selector.wakeup();
+	}
+	
+	/**
+	 * Separate Thread: one selector accepts workers, reads their messages into 
+	 * per-connection buffers and writes out what is queued for them.  Whole
+	 * messages are passed to the handler pool, so this thread never blocks
+	 */
 	public void run()	{
 		while(!isStopped()) {
 			try {
-				Socket client = this.serverSocket.accept();
-				WorkerConnection connection = new WorkerConnection(this, client, ++wkIDcounter);
-				connection.setDaemon(true);  // this will cause exit upon user 'quit'
-				connection.start();
-				synchronized (queueLock) {  // make this synchronized to prevent modification while iterating
-					workerQueue.add(connection);
+				WorkerConnection wc;
+				while ((wc = writable.poll()) != null)
+					wc.watchWrites();
+				selector.select();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable())
+						accept();
+					else
+						ready(key);
 				}
 			} catch (IOException e) {
 				if(isStopped()) {
@@ -343,12 +783,39 @@ public class Master extends Thread {
 					return;
 				}
 				else 
-					throw new RuntimeException("Error accepting worker connection", e);
+					throw new RuntimeException("Error in the worker connection selector", e);
 			}
 		}
         System.out.println("Master server stopped") ;
 	}
 	
+	protected void accept() throws IOException {
+		SocketChannel client = serverChannel.accept();
+		if (client == null)
+			return;
+		WorkerConnection connection = new WorkerConnection(this, client, ++wkIDcounter);
+		connection.key = client.register(selector, SelectionKey.OP_READ, connection);
+		synchronized (queueLock) {  // make this synchronized to prevent modification while iterating
+			workerQueue.add(connection);
+		}
+		// tell the worker to send their files to you
+		Utils.writeCommand(connection.out, Utils.M2W_REQ_LIST, Utils.NONE);
+	}
+	
+	protected void ready(SelectionKey key) {
+		WorkerConnection wc = (WorkerConnection) key.attachment();
+		try {
+			if (key.isReadable())
+				wc.readReady();
+			if (key.isValid() && key.isWritable())
+				wc.writeReady();
+		} catch (IOException e) {
+			if (!wc.isStopped())
+				System.err.println("Error in socket connection to Worker " + wc.id + ": " + e);
+			wc.closeConnection();
+		}
+	}
+	
 	/**
 	 * This method parses any inputs for the port to use, and stores it into
 	 * the instance variable prior to the constructor
@@ -358,19 +825,32 @@ public class Master extends Thread {
 	protected void parseArgs(String args[]) {
 		
 		for (int i = 0; i < args.length; i ++) {	
-			if (args[i].equals("-wp")) 
-				port = new Integer(args[++i]).intValue();
-			else if (args[i].equals("-cp")) 
-				clientPort = new Integer(args[++i]).intValue();
-			else {
-				System.out.println("Correct usage: java Master [-wp <port>] [-cp <port>]");
-				System.out.println("\t-wp: override default worker port 40001 to <port>.");
-				System.out.println("\t-cp: override default client port 40000 to <port>.");
-				System.exit(1);
+			try {
+				if (args[i].equals("-wp")) 
+					port = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-cp")) 
+					clientPort = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-r")) {
+					replicas = Integer.parseInt(args[++i]);
+					if (replicas < 1)
+						usage();
+				}
+				else
+					usage();
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				usage();
 			}
 		}
 	}
 	
+	protected void usage() {
+		System.out.println("Correct usage: java Master [-wp <port>] [-cp <port>] [-r <replicas>]");
+		System.out.println("\t-wp: override default worker port 40001 to <port>.");
+		System.out.println("\t-cp: override default client port 40000 to <port>.");
+		System.out.println("\t-r: override default " + Utils.REPLICAS + " copies of each file placed with put to <replicas>, at least 1.");
+		System.exit(1);
+	}
+	
 	public static void main(String[] args) throws IOException {
 		Master m = new Master(args);
 		m.start();
@@ -1,14 +1,25 @@
 package mapreduce;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 public class MasterJob<K extends Serializable, 
 					   IV extends Serializable,
@@ -17,23 +28,96 @@ public class MasterJob<K extends Serializable,
 	protected Master master;
 	protected Mapper<K, IV, OV> job;
 	protected int jobID;
-	protected int keysSent = 0;  // keeps track of number of workers who have sent keys
-	protected int shuffled = 0;  // keeps track of the workers who finished shuffle & sort
-	protected int finished = 0;  // keeps track of the workers who are completed with reduce
+	// key manifests and shuffles each worker is to send and has sent.  A worker sends
+	// one of each, and another for each map task of another worker it commits
+	protected Map<Integer, Integer> manifestsExpected, manifestsReceived;
+	protected Map<Integer, Integer> shufflesExpected, shufflesReceived;
+	protected boolean completed;
+	// the results, when the workers send them here instead of writing part files.  
+	// Held in the job's sort order if it has one
 	protected Map<K, OV> results;
+	// true when the workers write the results to part files, and { workerID, owner, 
+	// path, records, bytes } of each part kept, with a few of their results to print
+	protected boolean sink;
+	protected List<Object[]> outputs;
+	protected List<String[]> preview;
+	// null when the job's results are not compressed
+	protected BlockCompressor compressor;
 	protected Map<K, Integer> keyCounts; 
-	//Map b/w key and list of Worker Ids it came from
-	protected Map<K, List<Integer>> keyToWorkers; 
+	// Map b/w WorkerId and { files mapped, files to map } on that worker
+	protected Map<Integer, int[]> mapProgress;
+	//Map b/w key and the Worker Ids it came from, with the number of values each holds
+	protected Map<K, Map<Integer, Integer>> keyToWorkers; 
 	// Map b/w WorkerId (Integer) and List of Transfer Messages for this workerId 
-	// i.e List<<Key, AddressOfWorkerPeer>>
+	// i.e List<<Key, index of the receiving worker in jobWorkers>>
 	protected Map<Integer, List<Object[]>> workerToKeyMessages; 
 	protected List<WorkerConnection> jobWorkers;
 	protected List<String> files;
+	// hash of the artifact holding the compiled Mapper, and the Mapper's class
+	protected String artifact;
+	protected String className;
+	protected int priority;
+	// System.nanoTime when the job was submitted and when it left the queue
+	protected long submitted, started;
 	protected Object queueLock = new Object(); 
 	protected static Object printLock = new Object();
+	// whether stragglers get backup copies of their work, and how many were launched
+	protected boolean speculative;
+	protected int speculativeLaunches;
+	// true when workers partition their own keys, so the map phase ends with the shuffle
+	protected boolean partitioned;
+	// files each worker was assigned when the job started, or null when the catalog 
+	// knew of none and every worker maps all of its own, and the worker each file 
+	// is read from when its mapper holds no copy
+	protected Map<Integer, List<String>> assignments;
+	protected Map<String, Integer> sources;
+	// the workers each "worker/file" could not be copied from
+	protected Map<String, Set<Integer>> fetchFailures;
+	// files each worker maps, and the worker whose copy of each "owner/file" committed
+	protected Map<Integer, List<String>> mapFiles;
+	protected Map<String, Integer> committed;
+	// worker running the backup of each "owner/file", and how many backups each is running
+	protected Map<String, Integer> backups;
+	protected Map<Integer, Integer> backupsRunning;
+	// the workers whose copy of each "owner/file" failed to map
+	protected Map<String, Set<Integer>> mapFailures;
+	// System.nanoTime each worker finished its map phase, and its reduce batches
+	protected Map<Integer, Long> mapDone, reduceDone;
+	protected long reduceStarted;
+	// number of reduce batches on each worker once it is known, the batches whose
+	// results were claimed by their first copy, and those that have been read
+	protected Map<Integer, Integer> reduceBatches;
+	protected Map<Integer, Set<Integer>> batchesClaimed;
+	protected Map<Integer, Integer> batchesRead;
+	// workers whose reduce batches are copied to a backup
+	protected Set<Integer> reduceBackups;
+	// workers lost while the job ran, and the worker that took over each of their
+	// partitions, which are known by the workerID they started on
+	protected Set<Integer> lost;
+	protected Map<Integer, Integer> adopters;
+	// the worker whose output of each "owner/file" was shuffled, when it is not the owner,
+	// and the worker each was mapped again on for the partitions of lost workers
+	protected Map<String, Integer> executors;
+	protected Map<String, Map<Integer, Integer>> reruns;
+	// the worker mapping each "owner/file" of a lost worker again before the reduce
+	protected Map<String, Integer> recoveries;
+	// the partition each key was assigned to, and the keys of files mapped again
+	// after that, by the worker that mapped them
+	protected Map<K, Integer> reducers;
+	protected boolean coordinated;
+	protected Map<Integer, Map<K, Integer>> lateManifests;
+	// recovery messages each worker has yet to answer
+	protected Map<Integer, Integer> recoveryAcks;
+	// the round partitions are reduced in next, and the partitions of lost workers it rebuilds.
+	// Round 0 is the reduce of every worker, started once the map phase is over
+	protected int round;
+	protected Set<Integer> roundPartitions;
+	// rounds started on each worker and reported done, and partitions fully reduced
+	protected Map<Integer, Integer> reducesStarted, reducesCounted;
+	protected Set<Integer> reduced;
+	protected int recoveredFiles;
 	
-	public MasterJob(int jobID, Mapper<K, IV, OV> mr, Master master, List<String> files, 
-			Collection<WorkerConnection> currentCluster) {
+	public MasterJob(int jobID, Mapper<K, IV, OV> mr, Master master, List<String> files) {
 		this.jobID = jobID;
 		this.master = master;
 		this.job = mr;
@@ -41,8 +125,143 @@ public class MasterJob<K extends Serializable,
 		keyCounts = new ConcurrentHashMap<>();
 		keyToWorkers = new ConcurrentHashMap<>();
 		workerToKeyMessages = new ConcurrentHashMap<>();
-		results = new ConcurrentHashMap<>();
-		jobWorkers = new ArrayList<>(currentCluster);
+		if (mr.getSortComparator() != null)
+			results = new ConcurrentSkipListMap<>(mr.getSortComparator());
+		else
+			results = new ConcurrentHashMap<>();
+		compressor = mr.getCompressor();
+		mapProgress = new ConcurrentHashMap<>();
+		priority = mr.getPriority();
+		jobWorkers = new ArrayList<>();
+		speculative = mr.isSpeculative();
+		partitioned = mr.getPartitioner() != null;
+		mapFiles = new HashMap<>();
+		committed = new HashMap<>();
+		backups = new HashMap<>();
+		backupsRunning = new HashMap<>();
+		mapDone = new HashMap<>();
+		reduceDone = new HashMap<>();
+		reduceBatches = new HashMap<>();
+		batchesClaimed = new HashMap<>();
+		batchesRead = new HashMap<>();
+		reduceBackups = new HashSet<>();
+		manifestsExpected = new HashMap<>();
+		manifestsReceived = new HashMap<>();
+		shufflesExpected = new HashMap<>();
+		shufflesReceived = new HashMap<>();
+		lost = new HashSet<>();
+		adopters = new HashMap<>();
+		executors = new HashMap<>();
+		reruns = new HashMap<>();
+		recoveries = new HashMap<>();
+		reducers = new ConcurrentHashMap<>();
+		lateManifests = new HashMap<>();
+		recoveryAcks = new HashMap<>();
+		roundPartitions = new HashSet<>();
+		reducesStarted = new HashMap<>();
+		reducesCounted = new HashMap<>();
+		reduced = new HashSet<>();
+		sources = new HashMap<>();
+		fetchFailures = new HashMap<>();
+		mapFailures = new HashMap<>();
+		sink = mr.getOutputFormat() != null;
+		outputs = new ArrayList<>();
+		preview = new ArrayList<>();
+	}
+	
+	/**
+	 * Called by the JobScheduler when the job leaves the queue
+	 * 
+	 * @param workers the workers the job runs on
+	 */
+	protected synchronized void start(Collection<WorkerConnection> workers) {
+		started = System.nanoTime();
+		jobWorkers = new ArrayList<>(workers);
+		for (WorkerConnection wc : jobWorkers) {
+			if (!partitioned)
+				manifestsExpected.put(wc.id, 1);
+			shufflesExpected.put(wc.id, 1);
+		}
+		assignFiles();
+		System.out.printf("Job %d started on %d worker%s after %.3f s queued%n", jobID, 
+				jobWorkers.size(), jobWorkers.size() == 1 ? "" : "s", getQueueDelay() / 1e9);
+	}
+	
+	/**
+	 * Assigns each file of the job to one worker holding a copy of it, the one
+	 * assigned the fewest files so far.  Files with the fewest copies go first,
+	 * since they have the fewest choices.  Once every worker holding a file has 
+	 * its share of the files, the file goes to the worker with the fewest instead,
+	 * which reads it from one that holds it
+	 */
+	protected void assignFiles() {
+		final Map<String, List<Integer>> holders = new HashMap<>();
+		for (WorkerConnection wc : jobWorkers)
+			for (String file : files.isEmpty() ? held(wc.id) : files)
+				if (master.holds(wc.id, file)) {
+					if (!holders.containsKey(file))
+						holders.put(file, new ArrayList<Integer>());
+					holders.get(file).add(wc.id);
+				}
+		if (holders.isEmpty() && files.isEmpty())
+			return;  // nothing is catalogued, so each worker maps all of its files
+		List<String> order = new ArrayList<>(holders.keySet());
+		Collections.sort(order, new Comparator<String>() {
+			public int compare(String a, String b) {
+				int byCopies = Integer.compare(holders.get(a).size(), holders.get(b).size());
+				return byCopies != 0 ? byCopies : a.compareTo(b);
+			}
+		});
+		assignments = new HashMap<>();
+		for (WorkerConnection wc : jobWorkers)
+			assignments.put(wc.id, new ArrayList<String>());
+		int share = (order.size() + jobWorkers.size() - 1) / jobWorkers.size();
+		int remote = 0;
+		for (String file : order) {
+			int local = fewestAssigned(holders.get(file));
+			if (assignments.get(local).size() < share) {
+				assignments.get(local).add(file);
+				continue;
+			}
+			List<Integer> all = new ArrayList<>(assignments.keySet());
+			int mapper = fewestAssigned(all);
+			assignments.get(mapper).add(file);
+			sources.put(file, local);
+			remote++;
+		}
+		if (remote > 0)
+			System.out.printf("Job %d: %d of %d files are read from another worker%n", jobID, remote, order.size());
+	}
+	
+	protected List<String> held(int workerID) {
+		List<String> held = master.IDtoFiles.get(workerID);
+		return held == null ? new ArrayList<String>() : held;
+	}
+	
+	protected int fewestAssigned(List<Integer> workers) {
+		int best = workers.get(0);
+		for (int workerID : workers)
+			if (assignments.get(workerID).size() < assignments.get(best).size())
+				best = workerID;
+		return best;
+	}
+	
+	/**
+	 * @param workerID a worker of the job
+	 * @return List of the files it maps, or just Utils.ALL for all of its own
+	 */
+	protected synchronized List<String> assignedFiles(int workerID) {
+		if (assignments == null)
+			return new ArrayList<>(Collections.singletonList(Utils.ALL));
+		List<String> assigned = assignments.get(workerID);
+		return assigned == null ? new ArrayList<String>() : new ArrayList<>(assigned);
+	}
+	
+	/**
+	 * @return long nanoseconds the job waited to start
+	 */
+	protected long getQueueDelay() {
+		return started - submitted;
 	}
 	
     /**
@@ -52,28 +271,791 @@ public class MasterJob<K extends Serializable,
      */
 	protected void writeAllWorkers(final byte message){
     	synchronized(queueLock) {
-	    	for (final WorkerConnection wc : jobWorkers)
+	    	for (final WorkerConnection wc : live())
 	    		Utils.writeCommand(wc.out, message, jobID);				
     	}
     }
+	
+	/**
+	 * A worker whose connection closed counts until the Master has removed it, so
+	 * no phase starts without the work it still has to redo
+	 * 
+	 * @return List of the workers of this job that have not been lost
+	 */
+	protected List<WorkerConnection> live() {
+		List<WorkerConnection> live = new ArrayList<>();
+		for (WorkerConnection wc : jobWorkers)
+			if (!lost.contains(wc.id))
+				live.add(wc);
+		return live;
+	}
+
+    /**
+     * The ordered list of workers in this job, sent once to every worker so a 
+     * Partitioner can map keys to workers without the Master
+     * 
+     * @return List of { workerID, ipaddr, port } in partition order
+     */
+    protected List<Object[]> getRoster() {
+    	List<Object[]> roster = new ArrayList<>();
+    	for (WorkerConnection wc : jobWorkers)
+    		roster.add(new Object[] { wc.id, 
+    				wc.clientSocket.getInetAddress().getHostAddress(), wc.workerPort });
+    	return roster;
+    }
 
-    protected synchronized void remove(int workerID) {
-		// TODO remove a worker while a job is in progress
+	protected void receiveMapProgress(int workerID, int done, int total) {
+		mapProgress.put(workerID, new int[] { done, total });
+		Utils.debug("Job " + jobID + ": Worker " + workerID + " mapped " + done + " of " + total + " files");
 	}
 	
-	protected synchronized void receiveKeyComplete() {
-		if (++keysSent == jobWorkers.size()) 
-			coordinateKeysOnWorkers();
+	protected synchronized void receiveKeyComplete(int workerID) {
+		if (lost.contains(workerID))
+			return;
+		if (!mapDone.containsKey(workerID))
+			mapDone.put(workerID, System.nanoTime());
+		increment(manifestsReceived, workerID);
+		// the keys of a file mapped again after the others were assigned are assigned on their own
+		if (coordinated)
+			coordinateLateKeys(workerID);
+		else
+			checkCoordinate();
 	}
 
-	protected synchronized void receiveKeyShuffle() {
-		if (++shuffled == jobWorkers.size())
-			writeAllWorkers(Utils.M2W_BEGIN_REDUCE);
+	protected synchronized void receiveKeyShuffle(int workerID) {
+		if (lost.contains(workerID))
+			return;
+		if (partitioned && !mapDone.containsKey(workerID))
+			mapDone.put(workerID, System.nanoTime());
+		increment(shufflesReceived, workerID);
+		checkShuffled();
 	}
 	
-	protected synchronized void receiveJobDone() {
-		if (++finished == jobWorkers.size())
-			printResults();
+	/**
+	 * Assigns the keys to workers once every worker has sent all of its manifests
+	 */
+	protected void checkCoordinate() {
+		if (partitioned || coordinated || !allReceived(manifestsExpected, manifestsReceived))
+			return;
+		coordinated = true;
+		coordinateKeysOnWorkers();
+	}
+	
+	/**
+	 * Starts the reduce once every worker has shuffled all of its keys, including 
+	 * those of files mapped again for a lost worker
+	 */
+	protected void checkShuffled() {
+		if (round > 0 || (!partitioned && !coordinated) || pendingAcks() > 0
+				|| !allReceived(manifestsExpected, manifestsReceived) 
+				|| !allReceived(shufflesExpected, shufflesReceived))
+			return;
+		reduceStarted = System.nanoTime();
+		for (WorkerConnection wc : live())
+			beginReduce(wc);
+		round = 1;
+	}
+	
+	protected boolean allReceived(Map<Integer, Integer> expected, Map<Integer, Integer> received) {
+		for (WorkerConnection wc : live())
+			if (count(received, wc.id) < count(expected, wc.id))
+				return false;
+		return true;
+	}
+	
+	protected void beginReduce(WorkerConnection wc) {
+		increment(reducesStarted, wc.id);
+		reduceDone.remove(wc.id);
+		Message msg = new Message(Utils.M2W_BEGIN_REDUCE, jobID);
+		try {
+			msg.body().writeInt(round);
+			msg.send(wc.out);
+		} catch (IOException e) {
+			System.err.println("Error starting reduce round " + round + " on " + wc + ": " + e);
+		}
+	}
+	
+	/**
+	 * Called once a worker has reduced all of its batches
+	 * 
+	 * @param workerID the worker
+	 * @param batches the number of batches its keys were split into so far
+	 */
+	protected synchronized void receiveJobDone(int workerID, int batches) {
+		reduceBatches.put(workerID, Math.max(batches, count(reduceBatches, workerID)));
+		// a speculative worker already counted the round with its REDUCE_BATCHES
+		if (!speculative)
+			increment(reducesCounted, workerID);
+		checkReduced(workerID);
+	}
+	
+	/**
+	 * Called when a speculative worker knows how many batches its keys were split
+	 * into, which it may not finish before a backup does
+	 */
+	protected synchronized void receiveReduceBatches(int workerID, int batches) {
+		reduceBatches.put(workerID, Math.max(batches, count(reduceBatches, workerID)));
+		increment(reducesCounted, workerID);
+		checkReduced(workerID);
+	}
+	
+	/**
+	 * Marks a worker's reduce done once every round it started has been reported
+	 * and the results of each of its batches have been read, from either copy, and 
+	 * prints the results once every worker is done
+	 * 
+	 * @param workerID the worker the batches belong to
+	 */
+	protected void checkReduced(int workerID) {
+		Integer batches = reduceBatches.get(workerID);
+		if (batches == null || lost.contains(workerID) || reduceDone.containsKey(workerID)
+				|| count(reducesCounted, workerID) < count(reducesStarted, workerID)
+				|| count(batchesRead, workerID) < batches)
+			return;
+		reduceDone.put(workerID, System.nanoTime());
+		for (WorkerConnection wc : jobWorkers)
+			if (resolve(wc.id) == workerID && !roundPartitions.contains(wc.id))
+				reduced.add(wc.id);
+		checkCompleted();
+	}
+	
+	protected void checkCompleted() {
+		if (completed || round == 0 || !roundPartitions.isEmpty() || pendingAcks() > 0)
+			return;
+		for (WorkerConnection wc : live())
+			if (!reduceDone.containsKey(wc.id))
+				return;
+		completed = true;
+		writeAllWorkers(Utils.M2W_JOB_COMPLETE);
+		printResults();
+	}
+	
+	//////////////////////////////////////////////////////////
+	//
+	// Recovery: the work of a lost worker is done again
+	//
+	/////////////////////////////////////////////////////////
+	
+	/**
+	 * Called when a worker leaves while the job runs.  Every worker keeps a run of
+	 * what it shuffled to each partition, so the partitions the lost worker held go
+	 * to the survivor holding the fewest and are sent to it again, and only the files
+	 * whose output is gone with the worker are mapped again, from a copy on a survivor.
+	 * Before the reduce starts, what the lost worker shuffled is dropped and its files
+	 * are mapped again in full.  After that, only the keys of its partitions are, and
+	 * the partitions are reduced in a round of their own
+	 * 
+	 * @param workerID the worker lost
+	 */
+	protected synchronized void remove(int workerID) {
+		if (completed || lost.contains(workerID) || !inJob(workerID))
+			return;
+		lost.add(workerID);
+		recoveryAcks.remove(workerID);
+		backupsRunning.remove(workerID);
+		Iterator<Integer> it = backups.values().iterator();
+		while (it.hasNext())
+			if (it.next() == workerID)
+				it.remove();
+		List<WorkerConnection> live = live();
+		if (live.isEmpty()) {
+			fail("every worker was lost");
+			return;
+		}
+		// the partitions held by the worker that are not reduced yet go to one survivor,
+		// as do those it reduced to part files, which are lost with it
+		if (sink && !dropOutput(workerID))
+			return;
+		List<Integer> partitions = new ArrayList<>();
+		if (sink || !reduceDone.containsKey(workerID))
+			for (WorkerConnection wc : jobWorkers)
+				if (resolve(wc.id) == workerID && (sink || !reduced.contains(wc.id)))
+					partitions.add(wc.id);
+		int adopter = Utils.NONE;
+		if (!partitions.isEmpty()) {
+			adopter = leastLoaded(live);
+			for (int p : partitions)
+				adopters.put(p, adopter);
+		}
+		System.out.printf("Job %d: lost Worker %d, partitions %s go to Worker %d%n", 
+				jobID, workerID, partitions, adopter);
+		// survivors send their runs for those partitions again and drop what the lost
+		// worker sent for rounds not started, since its work is done again
+		for (WorkerConnection wc : live) {
+			Message msg = new Message(Utils.M2W_WORKER_LOST, jobID);
+			try {
+				msg.body().writeInt(workerID);
+				msg.body().writeInt(adopter);
+				msg.body().writeInt(round);
+				msg.body().writeInt(partitions.size());
+				for (int p : partitions)
+					msg.body().writeInt(p);
+				msg.send(wc.out);
+				increment(recoveryAcks, wc.id);
+			} catch (IOException e) {
+				System.err.println("Error telling " + wc + " of the lost worker: " + e);
+			}
+		}
+		if (round == 0) {
+			// nothing is reduced yet, so every file the worker mapped is mapped again
+			if (!coordinated)
+				withdrawManifest(workerID);
+			for (String unit : units())
+				if (executorOf(unit) == workerID && !mapAgain(unit))
+					return;
+			checkCoordinate();
+			checkShuffled();
+		}
+		else {
+			roundPartitions.addAll(partitions);
+			if (!rerunPartitions())
+				return;
+			checkRound();
+			checkCompleted();
+		}
+	}
+	
+	/**
+	 * Forgets the parts of a lost worker's batches, wherever they were written, 
+	 * since its partitions are reduced again
+	 * 
+	 * @return boolean false if it wrote the batches of another worker, which are
+	 * 		   lost for good and fail the job
+	 */
+	protected boolean dropOutput(int workerID) {
+		Iterator<Object[]> it = outputs.iterator();
+		while (it.hasNext()) {
+			Object[] part = it.next();
+			int writer = (Integer) part[0], owner = (Integer) part[1];
+			if (writer == workerID && owner != workerID) {
+				fail("batches of Worker " + owner + " were written by lost Worker " + workerID);
+				return false;
+			}
+			if (owner != workerID)
+				continue;
+			it.remove();
+			if (writer != workerID)
+				discard(writer, (String) part[2]);
+		}
+		return true;
+	}
+	
+	protected boolean inJob(int workerID) {
+		for (WorkerConnection wc : jobWorkers)
+			if (wc.id == workerID)
+				return true;
+		return false;
+	}
+	
+	/**
+	 * @param partition workerID a partition belongs to
+	 * @return int the worker reducing it now
+	 */
+	protected int resolve(int partition) {
+		Integer adopter = adopters.get(partition);
+		return adopter == null ? partition : adopter;
+	}
+	
+	/**
+	 * @return int workerID of the live worker reducing the fewest partitions
+	 */
+	protected int leastLoaded(List<WorkerConnection> live) {
+		int best = Utils.NONE, fewest = Integer.MAX_VALUE;
+		for (WorkerConnection wc : live) {
+			int held = 0;
+			for (WorkerConnection p : jobWorkers)
+				if (resolve(p.id) == wc.id)
+					held++;
+			if (held < fewest) {
+				best = wc.id;
+				fewest = held;
+			}
+		}
+		return best;
+	}
+	
+	/**
+	 * @return List of every "owner/file" mapped in this job
+	 */
+	protected List<String> units() {
+		List<String> units = new ArrayList<>();
+		for (Map.Entry<Integer, List<String>> e : mapFiles.entrySet())
+			for (String file : e.getValue())
+				units.add(e.getKey() + "/" + file);
+		return units;
+	}
+	
+	protected int executorOf(String unit) {
+		Integer executor = executors.get(unit);
+		return executor == null ? ownerOf(unit) : executor;
+	}
+	
+	protected static int ownerOf(String unit) {
+		return Integer.parseInt(unit.substring(0, unit.indexOf('/')));
+	}
+	
+	protected static String fileOf(String unit) {
+		return unit.substring(unit.indexOf('/') + 1);
+	}
+	
+	/**
+	 * @param unit an "owner/file"
+	 * @param partition a partition being rebuilt
+	 * @return int the worker holding the only run of the unit's keys for the partition,
+	 * 		   other than the worker reducing it
+	 */
+	protected int providerOf(String unit, int partition) {
+		Map<Integer, Integer> runners = reruns.get(unit);
+		if (runners != null && runners.containsKey(partition))
+			return runners.get(partition);
+		return executorOf(unit);
+	}
+	
+	/**
+	 * Picks the worker to map a file again: its owner while it is alive and holds
+	 * it, else a worker of the job that holds a copy of the file without mapping its own
+	 * 
+	 * @param unit the "owner/file"
+	 * @return int workerID, or NONE if no worker of the job holds the file
+	 */
+	protected int holderOf(String unit) {
+		int owner = ownerOf(unit);
+		String file = fileOf(unit);
+		// the owner may have read the file from another worker
+		if (!lost.contains(owner) && inJob(owner) 
+				&& (master.holds(owner, file) || !master.filesToID.containsKey(file)))
+			return owner;
+		int best = Utils.NONE, fewest = Integer.MAX_VALUE;
+		for (WorkerConnection wc : live()) {
+			List<String> mapped = mapFiles.get(wc.id);
+			if (!master.holds(wc.id, file) || (wc.id != owner && mapped != null && mapped.contains(file)))
+				continue;
+			int load = count(recoveryAcks, wc.id);
+			if (load < fewest) {
+				best = wc.id;
+				fewest = load;
+			}
+		}
+		return best;
+	}
+	
+	/**
+	 * Maps a file of a lost worker again before the reduce starts.  Its output is 
+	 * shuffled like that of a backup, and the Master waits on it
+	 * 
+	 * @param unit the "owner/file"
+	 * @return boolean false if no worker holds the file, which fails the job
+	 */
+	protected boolean mapAgain(String unit) {
+		int runner = holderOf(unit);
+		if (runner == Utils.NONE) {
+			fail("no worker holds a copy of " + unit);
+			return false;
+		}
+		Integer committedBy = committed.get(unit);
+		if (committedBy != null && lost.contains(committedBy))
+			committed.remove(unit);
+		executors.put(unit, runner);
+		recoveries.put(unit, runner);
+		reruns.remove(unit);
+		expectOutput(runner);
+		recoveredFiles++;
+		Message msg = new Message(Utils.M2W_RECOVER_MAP, jobID);
+		try {
+			msg.body().writeInt(ownerOf(unit));
+			Utils.writeString(msg.body(), fileOf(unit));
+			msg.send(master.getWorker(runner).out);
+		} catch (IOException | NullPointerException e) {
+			System.err.println("Error mapping " + unit + " again on Worker " + runner + ": " + e);
+		}
+		System.out.printf("Job %d: %s mapped again on Worker %d%n", jobID, unit, runner);
+		return true;
+	}
+	
+	/**
+	 * A worker that commits the map task of another worker shuffles its output on
+	 * its own, so the Master waits on one more manifest or shuffle from it
+	 */
+	protected void expectOutput(int workerID) {
+		increment(partitioned ? shufflesExpected : manifestsExpected, workerID);
+	}
+	
+	/**
+	 * Takes the keys of a lost worker out of the counts the keys are assigned by
+	 */
+	protected void withdrawManifest(int workerID) {
+		Iterator<Map.Entry<K, Map<Integer, Integer>>> it = keyToWorkers.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<K, Map<Integer, Integer>> e = it.next();
+			Integer held = e.getValue().remove(workerID);
+			if (held == null)
+				continue;
+			int left = keyCounts.get(e.getKey()) - held;
+			if (e.getValue().isEmpty()) {
+				keyCounts.remove(e.getKey());
+				it.remove();
+			}
+			else
+				keyCounts.put(e.getKey(), left);
+		}
+	}
+	
+	/**
+	 * Maps files again for the partitions rebuilt in the next round, wherever the
+	 * only run of a file's keys for a partition was on a lost worker.  Each worker
+	 * mapping files gets a single request for each set of partitions
+	 * 
+	 * @return boolean false if no worker holds one of the files, which fails the job
+	 */
+	protected boolean rerunPartitions() {
+		// the files for each worker to map, and the partitions to keep, by "runner:partitions"
+		Map<String, List<String>> launches = new HashMap<>();
+		Map<String, Set<Integer>> keep = new HashMap<>();
+		Map<String, Integer> runners = new HashMap<>();
+		for (String unit : units()) {
+			Set<Integer> parts = new HashSet<>();
+			for (int p : roundPartitions)
+				if (lost.contains(providerOf(unit, p)))
+					parts.add(p);
+			if (parts.isEmpty())
+				continue;
+			int runner = holderOf(unit);
+			if (runner == Utils.NONE) {
+				fail("no worker holds a copy of " + unit);
+				return false;
+			}
+			Map<Integer, Integer> ran = reruns.get(unit);
+			if (ran == null) {
+				ran = new HashMap<>();
+				reruns.put(unit, ran);
+			}
+			for (int p : parts)
+				ran.put(p, runner);
+			String key = runner + ":" + parts;
+			if (!launches.containsKey(key)) {
+				launches.put(key, new ArrayList<String>());
+				keep.put(key, parts);
+				runners.put(key, runner);
+			}
+			launches.get(key).add(unit);
+			recoveredFiles++;
+		}
+		for (Map.Entry<String, List<String>> e : launches.entrySet())
+			sendRecovery(runners.get(e.getKey()), keep.get(e.getKey()), e.getValue());
+		return true;
+	}
+	
+	/**
+	 * Asks a worker to map files again for the given partitions.  Without a 
+	 * Partitioner the worker is also sent the partition of each of their keys
+	 */
+	protected void sendRecovery(int runner, Set<Integer> partitions, List<String> units) {
+		WorkerConnection wc = master.getWorker(runner);
+		if (wc == null)
+			return;
+		try {
+			synchronized (wc.out) {
+				Utils.writeStreamCommand(wc.out, Utils.M2W_RECOVER_PARTITIONS, jobID);
+				DataOutputStream header = new DataOutputStream(wc.out);
+				header.writeInt(round);
+				header.writeInt(partitions.size());
+				for (int p : partitions)
+					header.writeInt(p);
+				header.writeInt(units.size());
+				for (String unit : units) {
+					header.writeInt(ownerOf(unit));
+					Utils.writeString(header, fileOf(unit));
+				}
+				ChunkedOutput keys = new ChunkedOutput(wc.out, job.getKeyCodec(), Codecs.INTEGER);
+				for (Map.Entry<K, Integer> e : reducers.entrySet())
+					if (partitions.contains(e.getValue()))
+						keys.write(e.getKey(), e.getValue());
+				keys.finish();
+			}
+			increment(recoveryAcks, runner);
+			System.out.printf("Job %d: %s mapped again on Worker %d for partitions %s%n", 
+					jobID, units, runner, partitions);
+		} catch (IOException e) {
+			System.err.println("Error mapping files again on " + wc + ": " + e);
+		}
+	}
+	
+	protected synchronized void receiveRecovered(int workerID) {
+		if (lost.contains(workerID))
+			return;
+		recoveryAcks.put(workerID, count(recoveryAcks, workerID) - 1);
+		checkShuffled();
+		checkRound();
+		checkCompleted();
+	}
+	
+	protected int pendingAcks() {
+		int pending = 0;
+		for (int n : recoveryAcks.values())
+			pending += n;
+		return pending;
+	}
+	
+	/**
+	 * Starts the round rebuilding the partitions of lost workers once every 
+	 * survivor has sent what it held for them
+	 */
+	protected void checkRound() {
+		if (round == 0 || roundPartitions.isEmpty() || pendingAcks() > 0)
+			return;
+		Set<Integer> adopting = new HashSet<>();
+		for (int p : roundPartitions)
+			adopting.add(resolve(p));
+		System.out.printf("Job %d: reducing partitions %s again in round %d%n", jobID, roundPartitions, round);
+		for (int workerID : adopting) {
+			WorkerConnection wc = master.getWorker(workerID);
+			if (wc != null)
+				beginReduce(wc);
+		}
+		roundPartitions.clear();
+		round++;
+	}
+	
+	/**
+	 * Gives up on the job, when the work of a lost worker cannot be done again
+	 */
+	protected void fail(String reason) {
+		completed = true;
+		writeAllWorkers(Utils.M2W_JOB_COMPLETE);
+		synchronized(printLock) {
+			System.out.println("***Job " + jobID + " failed: " + reason + "***");
+			System.out.print("> ");
+		}
+		master.jobComplete(jobID);
+	}
+	
+	protected static void increment(Map<Integer, Integer> counts, int workerID) {
+		counts.put(workerID, count(counts, workerID) + 1);
+	}
+	
+	//////////////////////////////////////////////////////////
+	//
+	// Speculative execution: backups of the work of stragglers
+	//
+	/////////////////////////////////////////////////////////
+	
+	protected synchronized void receiveMapFiles(int workerID, List<String> files) {
+		mapFiles.put(workerID, files);
+	}
+	
+	/**
+	 * Lets the first copy of a map task to finish commit.  The other copy is told
+	 * to drop its output, so the worker running it can stop early
+	 * 
+	 * @param workerID the worker asking to commit
+	 * @param owner the worker the file belongs to
+	 * @param filename name of the file on its owner
+	 */
+	protected synchronized void receiveMapCommit(int workerID, int owner, String filename) {
+		String key = owner + "/" + filename;
+		boolean granted = !committed.containsKey(key);
+		if (granted) {
+			committed.put(key, workerID);
+			executors.put(key, workerID);
+			Integer backup = backups.get(key);
+			if (backup != null) {
+				backupsRunning.put(backup, count(backupsRunning, backup) - 1);
+				if (backup != workerID)  // the owner finished first
+					sendCommit(backup, owner, filename, false);
+			}
+			if (workerID != owner) {
+				// a file mapped again for a lost worker is already waited on
+				if (!Integer.valueOf(workerID).equals(recoveries.get(key)))
+					expectOutput(workerID);
+				sendCommit(owner, owner, filename, false);
+			}
+		}
+		sendCommit(workerID, owner, filename, granted);
+	}
+	
+	protected void sendCommit(int workerID, int owner, String filename, boolean granted) {
+		WorkerConnection wc = master.getWorker(workerID);
+		if (wc == null)
+			return;
+		Message msg = new Message(Utils.M2W_MAP_COMMIT, jobID);
+		try {
+			msg.body().writeInt(owner);
+			Utils.writeString(msg.body(), filename);
+			msg.body().writeBoolean(granted);
+			msg.send(wc.out);
+		} catch (IOException e) {
+			System.err.println("Error sending commit of " + filename + " to " + wc + ": " + e);
+		}
+	}
+	
+	/**
+	 * Called periodically by the Master.  Once some workers have finished the
+	 * current phase, each worker taking well over their median time has its 
+	 * remaining work copied to workers that are idle
+	 */
+	protected synchronized void speculate() {
+		if (!speculative || completed || jobWorkers.size() < 2)
+			return;
+		long now = System.nanoTime();
+		if (reduceStarted == 0) {
+			if (!mapDone.isEmpty() && now - started > stragglerThreshold(mapDone, started))
+				speculateMaps();
+		}
+		else if (!reduceDone.isEmpty() && now - reduceStarted > stragglerThreshold(reduceDone, reduceStarted))
+			speculateReduces();
+	}
+	
+	/**
+	 * @param done System.nanoTime each worker that finished the phase finished it
+	 * @param start System.nanoTime the phase started
+	 * @return long nanoseconds into the phase after which a worker still in it is straggling
+	 */
+	protected long stragglerThreshold(Map<Integer, Long> done, long start) {
+		List<Long> times = new ArrayList<>();
+		for (long t : done.values())
+			times.add(t - start);
+		Collections.sort(times);
+		long median = times.get(times.size() / 2);
+		return Math.max((long) (median * Utils.SPECULATION_SLOWDOWN), 
+				median + Utils.SPECULATION_INTERVAL * 1000000L);
+	}
+	
+	protected void speculateMaps() {
+		for (WorkerConnection wc : live()) {
+			List<String> files = mapFiles.get(wc.id);
+			if (mapDone.containsKey(wc.id) || files == null)
+				continue;
+			// the straggler maps its files in order, so backups start from the last
+			for (int i = files.size() - 1; i >= 0; i--) {
+				String key = wc.id + "/" + files.get(i);
+				if (committed.containsKey(key) || backups.containsKey(key))
+					continue;
+				WorkerConnection idle = idleWorker(mapDone);
+				if (idle == null)
+					return;
+				int source = sourceFor(files.get(i), idle.id, wc.id);
+				if (source == Utils.NONE)
+					continue;
+				Message msg = new Message(Utils.M2W_SPECULATE_MAP, jobID);
+				try {
+					msg.body().writeInt(wc.id);
+					Utils.writeString(msg.body(), files.get(i));
+					msg.body().writeInt(source);
+					msg.send(idle.out);
+				} catch (IOException e) {
+					System.err.println("Error starting a backup on " + idle + ": " + e);
+					continue;
+				}
+				backups.put(key, idle.id);
+				backupsRunning.put(idle.id, count(backupsRunning, idle.id) + 1);
+				speculativeLaunches++;
+				System.out.printf("Job %d: Worker %d is straggling, backup of %s started on Worker %d%n", 
+						jobID, wc.id, files.get(i), idle.id);
+			}
+		}
+	}
+	
+	protected void speculateReduces() {
+		for (WorkerConnection wc : live()) {
+			if (reduceDone.containsKey(wc.id) || reduceBackups.contains(wc.id))
+				continue;
+			WorkerConnection idle = idleWorker(reduceDone);
+			if (idle == null)
+				return;
+			// the straggler holds the only copy of its keys, so it sends its batches to the backup
+			Message msg = new Message(Utils.M2W_SPECULATE_REDUCE, jobID);
+			try {
+				msg.body().writeInt(idle.id);
+				msg.send(wc.out);
+			} catch (IOException e) {
+				System.err.println("Error starting a backup for " + wc + ": " + e);
+				continue;
+			}
+			reduceBackups.add(wc.id);
+			backupsRunning.put(idle.id, count(backupsRunning, idle.id) + 1);
+			speculativeLaunches++;
+			System.out.printf("Job %d: Worker %d is straggling, its batches are copied to Worker %d%n", 
+					jobID, wc.id, idle.id);
+		}
+	}
+	
+	/**
+	 * Names another worker holding a file to a worker whose copy of it failed.  When 
+	 * every holder has failed it, the job fails, since the file cannot be mapped
+	 * 
+	 * @param workerID the worker mapping the file
+	 * @param file the file it could not copy
+	 * @param failed the worker the copy failed from
+	 */
+	protected synchronized void receiveFetchFailed(int workerID, String file, int failed) {
+		String unit = workerID + "/" + file;
+		Set<Integer> tried = fetchFailures.get(unit);
+		if (tried == null) {
+			tried = new HashSet<>();
+			fetchFailures.put(unit, tried);
+		}
+		tried.add(failed);
+		int source = Utils.NONE;
+		if (!completed)
+			for (WorkerConnection wc : live())
+				if (wc.id != workerID && !tried.contains(wc.id) && master.holds(wc.id, file)) {
+					source = wc.id;
+					break;
+				}
+		WorkerConnection wc = master.getWorker(workerID);
+		Message msg = new Message(Utils.M2W_FETCH_SOURCE, jobID);
+		try {
+			Utils.writeString(msg.body(), file);
+			msg.body().writeInt(source);
+			if (wc != null)
+				msg.send(wc.out);
+		} catch (IOException e) {
+			System.err.println("Error naming another copy of " + file + " to " + wc + ": " + e);
+		}
+		if (source != Utils.NONE) {
+			sources.put(file, source);
+			System.out.printf("Job %d: Worker %d reads %s from Worker %d instead of %d%n", jobID, 
+					workerID, file, source, failed);
+		}
+		else if (!completed)
+			fail("no worker could provide " + file + " to Worker " + workerID);
+	}
+	
+	/**
+	 * Picks the worker a backup reads its input from: the worker running the backup
+	 * if it holds a copy, else another holder, and the straggler only as a last resort
+	 * 
+	 * @param file the file backed up
+	 * @param runner the worker running the backup
+	 * @param owner the straggling worker mapping the file
+	 * @return int workerID, or NONE if no worker of the job holds the file
+	 */
+	protected int sourceFor(String file, int runner, int owner) {
+		if (!master.filesToID.containsKey(file))
+			return owner;  // not in the catalog, so only the owner knows of it
+		if (master.holds(runner, file))
+			return runner;
+		int source = Utils.NONE;
+		for (WorkerConnection wc : live())
+			if (master.holds(wc.id, file) && (source == Utils.NONE || source == owner))
+				source = wc.id;
+		return source;
+	}
+	
+	/**
+	 * @param done the workers that finished the current phase
+	 * @return WorkerConnection of a worker that finished and runs no backup, or null
+	 */
+	protected WorkerConnection idleWorker(Map<Integer, Long> done) {
+		for (WorkerConnection wc : live())
+			if (done.containsKey(wc.id) && count(backupsRunning, wc.id) == 0 && !wc.isStopped())
+				return wc;
+		return null;
+	}
+	
+	protected static int count(Map<Integer, Integer> counts, int workerID) {
+		Integer n = counts.get(workerID);
+		return n == null ? 0 : n;
 	}
 		
 	//////////////////////////////////////////////////////////
@@ -83,15 +1065,19 @@ public class MasterJob<K extends Serializable,
 	//
 	/////////////////////////////////////////////////////////
 
-	@SuppressWarnings("unchecked")
-	protected synchronized void receiveWorkerKey(InputStream in, int id) {
+	/**
+	 * Reads the whole key manifest of a worker.  Chunks are merged as they arrive, 
+	 * so manifests from different workers can be read at the same time
+	 * 
+	 * @param in stream to read the manifest from
+	 * @param id the worker that sent the manifest
+	 */
+	protected void receiveKeyManifest(InputStream in, int id) {
 		try {
-			ObjectInputStream objInStream = new ObjectInputStream(in);
-			Object[] o = (Object[]) objInStream.readObject();		
-			K key = (K) o[0];
-			Integer size = (Integer) o[1];
-			aggregateKeyCounts(key, size); 
-			storeKeyToWorker(key, id);
+			ChunkedInput manifest = new ChunkedInput(in, job.getKeyCodec(), Codecs.INTEGER, null, 
+					job.getClass().getClassLoader());
+			while (manifest.next())
+				mergeKeyChunk(manifest.keys(), manifest.values(), id);
 		} catch (IOException e) {
 			e.printStackTrace();
 		} catch (ClassNotFoundException e) {
@@ -99,6 +1085,28 @@ public class MasterJob<K extends Serializable,
 		}
 	}
 	
+	@SuppressWarnings("unchecked")
+	protected synchronized void mergeKeyChunk(Object[] keys, Object[] counts, int id) {
+		if (lost.contains(id))
+			return;
+		if (coordinated) {
+			// the keys of a file mapped again once the keys were assigned
+			Map<K, Integer> late = lateManifests.get(id);
+			if (late == null) {
+				late = new HashMap<>();
+				lateManifests.put(id, late);
+			}
+			for (int i = 0; i < keys.length; i++)
+				late.put((K) keys[i], (Integer) counts[i]);
+			return;
+		}
+		for (int i = 0; i < keys.length; i++) {
+			K key = (K) keys[i];
+			aggregateKeyCounts(key, (Integer) counts[i]); 
+			storeKeyToWorker(key, id, (Integer) counts[i]);
+		}
+	}
+	
 	protected void aggregateKeyCounts(K key, int count) {
 		if (keyCounts.containsKey(key)) 
 			keyCounts.put(key, keyCounts.get(key)+count);
@@ -106,13 +1114,16 @@ public class MasterJob<K extends Serializable,
 			keyCounts.put(key, count);
 	}
 	
-	protected void storeKeyToWorker(K key, int workerID) {
-		if(keyToWorkers.containsKey(key))
-			keyToWorkers.get(key).add(workerID); // append worker ID its corresponding key mapping
+	protected void storeKeyToWorker(K key, int workerID, int count) {
+		if(keyToWorkers.containsKey(key)) {
+			// a worker sends the key again when it also holds it from a backup map task
+			Integer held = keyToWorkers.get(key).get(workerID);
+			keyToWorkers.get(key).put(workerID, held == null ? count : held + count); 
+		}
 		else {
-			List<Integer> l = new ArrayList<>();
-			l.add(workerID);
-			keyToWorkers.put(key, l);
+			Map<Integer, Integer> m = new HashMap<>();
+			m.put(workerID, count);
+			keyToWorkers.put(key, m);
 		}
 	}
 	
@@ -126,66 +1137,360 @@ public class MasterJob<K extends Serializable,
 		}
 	}
 	
+	/**
+	 * Assigns each key to a reducer, largest keys first, always giving the next key to
+	 * the worker with the least volume assigned so far (kept in a min-heap).  The worker 
+	 * already holding the most values of a key gets it instead when the extra load 
+	 * is no more than the values it saves moving, so both the makespan and the bytes 
+	 * shuffled stay small
+	 */
 	protected void coordinateKeysOnWorkers(){
 
-		int wIdx = 0;
-
-		for (K key : keyToWorkers.keySet()) {
-			// TODO use a heap for load balancing so worker with most keys gets his largest key to analyze, etc 
+		final long[] load = new long[jobWorkers.size()];
+		Map<Integer, Integer> idToIndex = new HashMap<>();
+		for (int i = 0; i < jobWorkers.size(); i++)
+			idToIndex.put(jobWorkers.get(i).id, i);
+		PriorityQueue<Integer> heap = new PriorityQueue<>(jobWorkers.size(), new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Long.compare(load[a], load[b]);
+			}
+		});
+		// lost workers keep their place in the roster but are given no keys
+		for (int i = 0; i < jobWorkers.size(); i++)
+			if (!lost.contains(jobWorkers.get(i).id))
+				heap.add(i);
+		
+		List<K> keys = new ArrayList<>(keyCounts.keySet());
+		Collections.sort(keys, new Comparator<K>() {
+			public int compare(K a, K b) {
+				return keyCounts.get(b).compareTo(keyCounts.get(a));
+			}
+		});
+		for (K key : keys) {
+			int count = keyCounts.get(key);
+			Map<Integer, Integer> holders = keyToWorkers.get(key);
+			int wIdx = heap.peek();
+			// find the worker in this job holding the most values of the key
+			int local = -1, localCount = 0;
+			for (Map.Entry<Integer, Integer> e : holders.entrySet()) {
+				Integer idx = idToIndex.get(e.getKey());
+				if (idx != null && e.getValue() > localCount) {
+					local = idx;
+					localCount = e.getValue();
+				}
+			}
+			if (local != -1 && load[local] - load[wIdx] <= localCount)
+				wIdx = local;
+			heap.remove(wIdx);
+			load[wIdx] += count;
+			heap.add(wIdx);
 			WorkerConnection receiver = jobWorkers.get(wIdx);
-			// message contains key, ipaddress and port to send 
-			Object[] transferMessage = new Object[] { key,  
-					receiver.clientSocket.getInetAddress().getHostAddress(),
-					receiver.workerPort }; 
-			for (Integer workerID : keyToWorkers.get(key))
+			reducers.put(key, receiver.id);
+			// message contains key and the receiver's place in the roster, which
+			// the workers already hold the address and port of
+			Object[] transferMessage = new Object[] { key, wIdx }; 
+			for (Integer workerID : holders.keySet())
 				if (receiver.id != workerID)
 					addTransferMessage(workerID, transferMessage);
-			// for now go around in a circle assigning keys
-			if (++wIdx == jobWorkers.size())
-				wIdx = 0;
 		} //workerToKeyMessages is now populated
 		
 		// if there were less keys than workers we need to make blank messages 
 		// for the workers assigned zero keys so they will not hang
-		for (WorkerConnection wc : jobWorkers)
+		for (WorkerConnection wc : live())
 			if (!workerToKeyMessages.containsKey(wc.id)) 
 				workerToKeyMessages.put(wc.id, new ArrayList<Object[]>());
 
 		// notify each worker of their assigned keys
-		for (Map.Entry<Integer, List<Object[]>> entry : workerToKeyMessages.entrySet()) {
-			WorkerConnection wc = master.getWorker(entry.getKey());
-			Utils.writeCommand(wc.out, Utils.M2W_COORD_KEYS, jobID);
-			Utils.writeObject(wc.out, entry.getValue());
+		for (Map.Entry<Integer, List<Object[]>> entry : workerToKeyMessages.entrySet())
+			sendAssignments(entry.getKey(), entry.getValue());
+	}
+	
+	protected void sendAssignments(int workerID, List<Object[]> messages) {
+		WorkerConnection wc = master.getWorker(workerID);
+		if (wc == null || lost.contains(workerID))
+			return;
+		try {
+			synchronized (wc.out) {
+				Utils.writeStreamCommand(wc.out, Utils.M2W_COORD_KEYS, jobID);
+				ChunkedOutput assignments = new ChunkedOutput(wc.out, job.getKeyCodec(), Codecs.INTEGER);
+				for (Object[] msg : messages)
+					assignments.write(msg[0], msg[1]);
+				assignments.finish();
+			}
+		} catch (IOException e) {
+			System.err.println("Error sending key assignments to " + wc + ": " + e);
 		}
 	}
 	
+	/**
+	 * Sends the keys of a file mapped again after the keys were assigned to the 
+	 * partitions they were assigned to.  The worker shuffles them like its own
+	 * 
+	 * @param workerID the worker that mapped the file again
+	 */
+	protected void coordinateLateKeys(int workerID) {
+		Map<K, Integer> late = lateManifests.remove(workerID);
+		Map<Integer, Integer> idToIndex = new HashMap<>();
+		for (int i = 0; i < jobWorkers.size(); i++)
+			idToIndex.put(jobWorkers.get(i).id, i);
+		List<Object[]> messages = new ArrayList<>();
+		if (late != null)
+			for (K key : late.keySet()) {
+				Integer partition = reducers.get(key);
+				if (partition != null && partition != workerID)
+					messages.add(new Object[] { key, idToIndex.get(partition) });
+			}
+		increment(shufflesExpected, workerID);
+		sendAssignments(workerID, messages);
+	}
+	
 	//////////////////////////////////////////////////////////
 	//
 	// This follows reduce at the workers
 	//
 	/////////////////////////////////////////////////////////
 	
+	/**
+	 * Reads the results of one reduce batch.  The first copy of a batch to be read 
+	 * whole is kept, and the worker the batch belongs to is told to skip it if the
+	 * backup was first.  A batch is only claimed once it has been decoded, so a 
+	 * copy that cannot be read leaves the batch to its other copy, or fails the job
+	 * 
+	 * @param workerID the worker that sent the results
+	 * @param in stream of the results, headed by the owner and number of the batch
+	 */
 	@SuppressWarnings("unchecked")
-	public void receiveWorkerResults(InputStream in) {
+	public void receiveWorkerResults(int workerID, InputStream in) {
+		int owner = Utils.NONE, batch = 0;
 		try {
-			ObjectInputStream objInStream = new ObjectInputStream(in);
-			Object[] o = (Object[]) objInStream.readObject();		
-			K k = (K) o[0];
-			OV v = (OV) o[1];
-			results.put(k, v);
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (ClassNotFoundException e) {
+			DataInputStream header = new DataInputStream(in);
+			owner = header.readInt();
+			batch = header.readInt();
+			if (claimed(owner, batch))
+				return;
+			Map<K, OV> read = new HashMap<>();
+			ChunkedInput chunks = new ChunkedInput(in, job.getKeyCodec(), job.getOutputCodec(), compressor, 
+					job.getClass().getClassLoader());
+			while (chunks.next()) {
+				Object[] keys = chunks.keys(), values = chunks.values();
+				for (int i = 0; i < keys.length; i++)
+					read.put((K) keys[i], (OV) values[i]);
+			}
+			if (!claimBatch(workerID, owner, batch))
+				return;
+			results.putAll(read);
+			batchRead(owner);
+		} catch (IOException | ClassNotFoundException e) {
 			e.printStackTrace();
+			String reason = "the results of Worker " + workerID + " could not be read: " + e;
+			if (owner == Utils.NONE)
+				receiveJobFailed(workerID, reason);
+			else
+				receiveOutputFailed(workerID, owner, batch, reason);
+		}
+	}
+	
+	protected synchronized boolean claimed(int owner, int batch) {
+		Set<Integer> claimed = batchesClaimed.get(owner);
+		return claimed != null && claimed.contains(batch);
+	}
+	
+	protected synchronized boolean claimBatch(int workerID, int owner, int batch) {
+		Set<Integer> claimed = batchesClaimed.get(owner);
+		if (claimed == null) {
+			claimed = new HashSet<>();
+			batchesClaimed.put(owner, claimed);
+		}
+		if (!claimed.add(batch))
+			return false;
+		if (workerID != owner) {
+			WorkerConnection wc = master.getWorker(owner);
+			Message msg = new Message(Utils.M2W_REDUCE_DONE, jobID);
+			try {
+				msg.body().writeInt(batch);
+				if (wc != null)
+					msg.send(wc.out);
+			} catch (IOException e) {
+				System.err.println("Error stopping batch " + batch + " on " + wc + ": " + e);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Records where a worker wrote the results of one reduce batch.  Only the 
+	 * first copy of a batch is kept, and the worker that wrote any other copy 
+	 * is told to delete it
+	 * 
+	 * @param workerID the worker that wrote the part
+	 * @param owner the worker the batch belongs to
+	 * @param batch number of the batch on its owner
+	 * @param path the part file on the worker
+	 * @param records number of results in the part
+	 * @param bytes size of the part
+	 * @param results a few of the results, as { key, value } strings
+	 */
+	protected synchronized void receiveOutputPart(int workerID, int owner, int batch, String path,
+			long records, long bytes, List<String[]> results) {
+		// a part left on a lost worker is gone with it
+		if (lost.contains(workerID) || !claimBatch(workerID, owner, batch)) {
+			discard(workerID, path);
+			return;
+		}
+		outputs.add(new Object[] { workerID, owner, path, records, bytes });
+		for (String[] result : results)
+			if (preview.size() < Utils.PREVIEW_RESULTS)
+				preview.add(result);
+		batchRead(owner);
+	}
+	
+	/**
+	 * A copy of a batch could not be reduced or written.  The batch is no longer 
+	 * held anywhere to run again, so unless another copy has already sent it or the
+	 * owner's copy is still running, the job fails rather than waiting for results
+	 * that never come
+	 * 
+	 * @param workerID the worker that failed the batch
+	 * @param owner the worker the batch belongs to
+	 * @param batch number of the batch on its owner
+	 * @param reason the error the worker reported
+	 */
+	protected synchronized void receiveOutputFailed(int workerID, int owner, int batch, String reason) {
+		Set<Integer> claimed = batchesClaimed.get(owner);
+		if (completed || lost.contains(workerID) || (claimed != null && claimed.contains(batch)))
+			return;
+		if (workerID != owner && !lost.contains(owner)) {  // only the backup failed
+			System.err.println("Job " + jobID + ": " + reason);
+			return;
+		}
+		fail(reason);
+	}
+	
+	/**
+	 * A worker could not shuffle keys to a peer.  The keys of a peer that was lost
+	 * are sent again to the worker taking its partitions over, but a live peer
+	 * never gets them, so the job fails
+	 * 
+	 * @param workerID the worker that sent the keys
+	 * @param peer the worker they were for
+	 * @param reason the error the worker reported
+	 */
+	protected synchronized void receiveTransferFailed(int workerID, int peer, String reason) {
+		if (completed || lost.contains(workerID) || lost.contains(peer) || master.getWorker(peer) == null)
+			return;
+		fail(reason);
+	}
+	
+	/**
+	 * A phase of the job failed on a worker, which will not send what the job 
+	 * waits on, so the job fails
+	 * 
+	 * @param workerID the worker the phase failed on
+	 * @param reason the error the worker reported
+	 */
+	protected synchronized void receiveJobFailed(int workerID, String reason) {
+		if (completed || lost.contains(workerID))
+			return;
+		fail(reason);
+	}
+	
+	/**
+	 * A copy of a map task failed, and its output was dropped.  The other copy of 
+	 * the file, the owner's or its backup, may still commit, but when there is none
+	 * left the job fails rather than completing without the file
+	 * 
+	 * @param workerID the worker whose copy failed
+	 * @param owner the worker the file belongs to
+	 * @param filename name of the file
+	 * @param reason the error the worker reported
+	 */
+	protected synchronized void receiveMapFailed(int workerID, int owner, String filename, String reason) {
+		String key = owner + "/" + filename;
+		if (completed || lost.contains(workerID) || committed.containsKey(key))
+			return;
+		Set<Integer> failed = mapFailures.get(key);
+		if (failed == null) {
+			failed = new HashSet<>();
+			mapFailures.put(key, failed);
+		}
+		failed.add(workerID);
+		Integer backup = backups.get(key);
+		int other = backup == null ? Utils.NONE : workerID == owner ? backup 
+				: workerID == backup ? owner : Utils.NONE;
+		if (other != Utils.NONE && !failed.contains(other) && !lost.contains(other)) {
+			System.err.println("Job " + jobID + ": " + reason);
+			return;
+		}
+		fail(reason);
+	}
+	
+	protected void discard(int workerID, String path) {
+		WorkerConnection wc = master.getWorker(workerID);
+		if (wc == null || lost.contains(workerID))
+			return;
+		Message msg = new Message(Utils.M2W_DISCARD_OUTPUT, jobID);
+		try {
+			Utils.writeString(msg.body(), path);
+			msg.send(wc.out);
+		} catch (IOException e) {
+			System.err.println("Error discarding " + path + " on " + wc + ": " + e);
+		}
+	}
+	
+	protected synchronized void batchRead(int owner) {
+		batchesRead.put(owner, count(batchesRead, owner) + 1);
+		checkReduced(owner);
+	}
+
+	/**
+	 * Prints the manifest of the part files: how many parts, results and bytes
+	 * each worker wrote, and where
+	 */
+	protected void printOutputs() {
+		Map<Integer, long[]> totals = new TreeMap<>();
+		Map<Integer, String> dirs = new HashMap<>();
+		long records = 0, bytes = 0;
+		for (Object[] part : outputs) {
+			int workerID = (Integer) part[0];
+			long[] total = totals.get(workerID);
+			if (total == null) {
+				total = new long[3];
+				totals.put(workerID, total);
+				dirs.put(workerID, new File((String) part[2]).getParent());
+			}
+			total[0]++;
+			total[1] += (Long) part[3];
+			total[2] += (Long) part[4];
+			records += (Long) part[3];
+			bytes += (Long) part[4];
 		}
+		System.out.printf("Job %d wrote %d results to %d part%s, %d bytes%n", jobID, records, 
+				outputs.size(), outputs.size() == 1 ? "" : "s", bytes);
+		for (Map.Entry<Integer, long[]> e : totals.entrySet())
+			System.out.printf("  Worker %d: %d parts, %d results, %d bytes in %s%n", e.getKey(), 
+					e.getValue()[0], e.getValue()[1], e.getValue()[2], dirs.get(e.getKey()));
 	}
 
 	public void printResults() {
 		synchronized(printLock) {
 			System.out.println("***Final Results For Job " + jobID + "***");
-			for (K key: results.keySet()) {
-				System.out.println("Key: " + key + " Value: " + results.get(key));
+			if (sink) {
+				// the results are in the part files, so only a preview of them is printed
+				for (String[] result : preview)
+					System.out.println("Key: " + result[0] + " Value: " + result[1]);
+				printOutputs();
 			}
+			else  // the results are only held here, so every one is printed
+				for (K key: results.keySet())
+					System.out.println("Key: " + key + " Value: " + results.get(key));
+			if (compressor != null)
+				System.out.println("Results: " + compressor.report());
+			System.out.printf("Job %d queued for %.3f s and ran for %.3f s with %d speculative launch%s%n", jobID, 
+					getQueueDelay() / 1e9, (System.nanoTime() - started) / 1e9, 
+					speculativeLaunches, speculativeLaunches == 1 ? "" : "es");
+			if (!lost.isEmpty())
+				System.out.printf("Job %d lost Workers %s and mapped %d file%s again%n", jobID, lost,
+						recoveredFiles, recoveredFiles == 1 ? "" : "s");
 			System.out.print("> ");
 		}
 		master.jobComplete(this.jobID);
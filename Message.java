@@ -0,0 +1,200 @@
+package mapreduce;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A framed message between the Master, its Workers and Clients: a command byte,
+ * the jobID, the length of the payload and then the payload itself.  Commands
+ * that carry bulk data, such as files and chunked streams, are sent with a length
+ * of STREAM instead, and the data follows the header delimited by its own framing.
+ * The Master reads whole messages off a non-blocking channel, so bulk data sent 
+ * to it goes through a MessageOutputStream instead.
+ *
+ * Messages are meant for buffered streams.  The whole frame is written before
+ * a single flush, and a payload is read with one readFully.
+ */
+public class Message {
+
+	// length of a message whose data follows on the stream instead of in a payload
+	public static final int STREAM = -1;
+
+	// command byte, jobID and payload length
+	public static final int HEADER_SIZE = 9;
+
+	protected byte type;
+	protected int jobID;
+	// payload of a received message, null for a STREAM
+	protected byte[] payload;
+	// payload of a message being built
+	protected ByteArrayOutputStream bytes;
+	protected DataOutputStream body;
+
+	/**
+	 * Starts a message to be sent, with an empty payload
+	 *
+	 * @param type command byte from Utils
+	 * @param jobID job the message is about, or Utils.NONE
+	 */
+	public Message(byte type, int jobID) {
+		this.type = type;
+		this.jobID = jobID;
+		bytes = new ByteArrayOutputStream();
+		body = new DataOutputStream(bytes);
+	}
+
+	protected Message(byte type, int jobID, byte[] payload) {
+		this.type = type;
+		this.jobID = jobID;
+		this.payload = payload;
+	}
+
+	public byte type() {
+		return type;
+	}
+
+	public int jobID() {
+		return jobID;
+	}
+
+	/**
+	 * @return int number of bytes in the payload of a received message
+	 */
+	public int length() {
+		return payload == null ? 0 : payload.length;
+	}
+
+	/**
+	 * @return DataOutputStream to write the payload to before it is sent
+	 */
+	public DataOutputStream body() {
+		return body;
+	}
+
+	/**
+	 * @return DataInputStream over the payload of a received message
+	 */
+	public DataInputStream payload() {
+		return new DataInputStream(new ByteArrayInputStream(payload == null ? new byte[0] : payload));
+	}
+
+	/**
+	 * Writes the whole message and flushes it.  The stream is locked while writing,
+	 * so messages sent from different threads are never interleaved
+	 *
+	 * @param out stream to send the message on
+	 * @throws IOException if the stream fails
+	 */
+	public void send(OutputStream out) throws IOException {
+		body.flush();
+		synchronized (out) {
+			writeHeader(out, type, jobID, bytes.size());
+			bytes.writeTo(out);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Writes the header of a message without flushing it.  Callers sending a STREAM
+	 * must hold the lock of out until its data is written
+	 *
+	 * @param out stream to write to
+	 * @param type command byte from Utils
+	 * @param jobID job the message is about, or Utils.NONE
+	 * @param length number of bytes in the payload, or STREAM
+	 * @throws IOException if the stream fails
+	 */
+	public static void writeHeader(OutputStream out, byte type, int jobID, int length) throws IOException {
+		out.write(header(type, jobID, length));
+	}
+
+	public static byte[] header(byte type, int jobID, int length) {
+		return ByteBuffer.allocate(HEADER_SIZE).put(type).putInt(jobID).putInt(length).array();
+	}
+
+	/**
+	 * Reads the next message along with its payload.  The data of a STREAM is
+	 * left on the stream for the caller to read
+	 *
+	 * @param in stream to read from
+	 * @return Message read, or null if the stream ended between messages
+	 * @throws IOException if the stream fails or ends inside a message
+	 */
+	public static Message read(InputStream in) throws IOException {
+		int first = in.read();
+		if (first == -1)
+			return null;
+		byte[] header = new byte[HEADER_SIZE];
+		header[0] = (byte) first;
+		DataInputStream data = new DataInputStream(in);
+		data.readFully(header, 1, HEADER_SIZE - 1);
+		ByteBuffer frame = ByteBuffer.wrap(header);
+		byte type = frame.get();
+		int jobID = frame.getInt();
+		int length = frame.getInt();
+		if (length == STREAM)
+			return new Message(type, jobID, null);
+		if (length < 0)
+			throw new IOException("Invalid length " + length + " for message " + type);
+		byte[] payload = new byte[length];
+		data.readFully(payload);
+		return new Message(type, jobID, payload);
+	}
+
+	/**
+	 * Takes the next message out of a buffer being filled from a non-blocking
+	 * channel.  The buffer is left as it is when it does not hold the whole message
+	 *
+	 * @param buf buffer ready to be read from
+	 * @return Message read, or null if the rest of it has not arrived
+	 * @throws IOException if the message is a STREAM, which cannot be read this way
+	 */
+	public static Message read(ByteBuffer buf) throws IOException {
+		if (buf.remaining() < HEADER_SIZE)
+			return null;
+		int length = buf.getInt(buf.position() + 5);
+		if (length < 0)
+			throw new IOException("Message " + buf.get(buf.position()) + " must be framed by a MessageOutputStream");
+		if (buf.remaining() < HEADER_SIZE + length)
+			return null;
+		byte type = buf.get();
+		int jobID = buf.getInt();
+		buf.getInt();
+		byte[] payload = new byte[length];
+		buf.get(payload);
+		return new Message(type, jobID, payload);
+	}
+
+	/**
+	 * @param buf buffer ready to be read from, holding the start of a message
+	 * @return int number of bytes the whole message takes, as far as is known
+	 */
+	public static int frameLength(ByteBuffer buf) {
+		if (buf.remaining() < HEADER_SIZE)
+			return HEADER_SIZE;
+		return HEADER_SIZE + Math.max(buf.getInt(buf.position() + 5), 0);
+	}
+
+	/**
+	 * Reads the next message, which must be of the given type
+	 *
+	 * @param in stream to read from
+	 * @param type command byte expected
+	 * @return Message read
+	 * @throws IOException if the stream fails or the message is of another type
+	 */
+	public static Message expect(InputStream in, byte type) throws IOException {
+		Message msg = read(in);
+		if (msg == null)
+			throw new IOException("Connection closed while waiting for message " + type);
+		if (msg.type != type)
+			throw new IOException("Expected message " + type + " but received " + msg.type);
+		return msg;
+	}
+}
@@ -0,0 +1,126 @@
+package mapreduce;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * The receiving end of a MessageOutputStream.  The payloads of the stream's
+ * Messages are added by the thread that reads them, as they arrive, and read
+ * as one stream by another thread, which waits for the next payload when it
+ * has read all those added so far.  The payloads are not copied.
+ *
+ * Once the reader closes this, what is added is dropped, so a reader that
+ * stops early does not hold the rest of the stream in memory.
+ */
+public class MessageInputStream extends InputStream {
+
+	// payloads added and not read yet, the first of them read up to position
+	protected Queue<byte[]> payloads;
+	protected int position;
+	// set by end, once every payload has been added
+	protected boolean ended;
+	// why the stream was cut short, if it was
+	protected String failure;
+	// set by close, once the reader has stopped
+	protected boolean closed;
+
+	public MessageInputStream() {
+		payloads = new ArrayDeque<>();
+	}
+
+	/**
+	 * Adds the payload of the next Message of the stream
+	 *
+	 * @param payload the payload, which the caller does not touch again
+	 */
+	public synchronized void add(byte[] payload) {
+		if (closed || ended || payload.length == 0)
+			return;
+		payloads.add(payload);
+		notifyAll();
+	}
+
+	/**
+	 * Called for the empty Message that ends the stream
+	 */
+	public synchronized void end() {
+		ended = true;
+		notifyAll();
+	}
+
+	/**
+	 * Ends the stream before its last Message, so the reader gets an IOException
+	 * rather than waiting for the rest
+	 *
+	 * @param reason why the stream was cut short
+	 */
+	public synchronized void fail(String reason) {
+		if (ended)
+			return;
+		failure = reason;
+		ended = true;
+		notifyAll();
+	}
+
+	/**
+	 * @return byte[] the payload being read, or null at the end of the stream
+	 * @throws IOException if the stream was cut short or the reader interrupted
+	 */
+	protected byte[] current() throws IOException {
+		byte[] payload;
+		while ((payload = payloads.peek()) == null && !ended) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted reading a stream", e);
+			}
+		}
+		if (payload == null && failure != null)
+			throw new IOException(failure);
+		return payload;
+	}
+
+	public synchronized int read() throws IOException {
+		byte[] payload = current();
+		if (payload == null)
+			return -1;
+		int b = payload[position++] & 0xFF;
+		if (position == payload.length) {
+			payloads.poll();
+			position = 0;
+		}
+		return b;
+	}
+
+	public synchronized int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		byte[] payload = current();
+		if (payload == null)
+			return -1;
+		int n = Math.min(len, payload.length - position);
+		System.arraycopy(payload, position, b, off, n);
+		position += n;
+		if (position == payload.length) {
+			payloads.poll();
+			position = 0;
+		}
+		return n;
+	}
+
+	public synchronized int available() {
+		int n = -position;
+		for (byte[] payload : payloads)
+			n += payload.length;
+		return n;
+	}
+
+	public synchronized void close() {
+		closed = true;
+		payloads.clear();
+		position = 0;
+		notifyAll();
+	}
+}
@@ -0,0 +1,74 @@
+package mapreduce;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Sends what is written to it as a series of Messages of one command, so that a 
+ * receiver which only takes in whole Messages, such as the Master's selector, can 
+ * be sent a stream of unknown length.  Each Message holds up to BUFFER_SIZE bytes 
+ * and an empty Message of the same command ends the stream.
+ * 
+ * The caller must hold the lock of the underlying stream until this is closed, 
+ * which does not close the underlying stream.
+ */
+public class MessageOutputStream extends OutputStream {
+
+	protected OutputStream out;
+	protected byte type;
+	protected int jobID;
+	protected byte[] buffer;
+	protected int count;
+	
+	/**
+	 * @param out stream to send the Messages on
+	 * @param type command byte of every Message of the stream
+	 * @param jobID job the stream belongs to
+	 */
+	public MessageOutputStream(OutputStream out, byte type, int jobID) {
+		this.out = out;
+		this.type = type;
+		this.jobID = jobID;
+		buffer = new byte[Utils.BUFFER_SIZE];
+	}
+	
+	public void write(int b) throws IOException {
+		if (count == buffer.length)
+			send();
+		buffer[count++] = (byte) b;
+	}
+	
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (count == buffer.length)
+				send();
+			int n = Math.min(len, buffer.length - count);
+			System.arraycopy(b, off, buffer, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+	
+	public void flush() throws IOException {
+		send();
+		out.flush();
+	}
+	
+	/**
+	 * Sends what is left and the empty Message that ends the stream
+	 */
+	public void close() throws IOException {
+		send();
+		Message.writeHeader(out, type, jobID, 0);
+		out.flush();
+	}
+	
+	protected void send() throws IOException {
+		if (count == 0)
+			return;
+		Message.writeHeader(out, type, jobID, count);
+		out.write(buffer, 0, count);
+		count = 0;
+	}
+}
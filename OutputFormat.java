@@ -0,0 +1,20 @@
+package mapreduce;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Decides how the results of a job are written to the files its workers keep.
+ *
+ * @param <K> type of the keys reduced
+ * @param <V> type of the values returned by reduce
+ */
+public interface OutputFormat<K, V> {
+
+	/**
+	 * @param file the part file to write, which is created or replaced
+	 * @return RecordWriter writing to the start of the file
+	 * @throws IOException if the file cannot be created
+	 */
+	public RecordWriter<K, V> create(File file) throws IOException;
+}
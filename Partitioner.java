@@ -0,0 +1,20 @@
+package mapreduce;
+
+import java.io.Serializable;
+
+/**
+ * Decides which worker reduces a key.  Every worker runs the same Partitioner 
+ * over the roster the Master sends at the start of a job, so each worker can 
+ * shuffle its keys without asking the Master where they go.
+ *
+ * @param <K> key type of the Mapper
+ */
+public interface Partitioner<K extends Serializable> {
+
+	/**
+	 * @param key the key to place
+	 * @param numPartitions the number of workers in the job
+	 * @return int index into the job's roster, from 0 to numPartitions-1
+	 */
+	public int partition(K key, int numPartitions);
+}
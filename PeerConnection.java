@@ -0,0 +1,114 @@
+package mapreduce;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persistent connection from this worker to a WorkerP2P peer.  Connections
+ * are pooled by WorkerP2P and reused for every shuffle transfer to that peer,
+ * across keys and across jobs.  Each request starts with its command byte
+ * and the jobID.
+ */
+public class PeerConnection {
+
+	protected Socket socket;
+	protected InputStream in;
+	protected OutputStream out;
+
+	public PeerConnection(String peerAddress, int port) throws IOException {
+		socket = new Socket(peerAddress, port);
+		socket.setTcpNoDelay(true);
+		in = socket.getInputStream();
+		out = socket.getOutputStream();
+	}
+
+	/**
+	 * Streams every key and its value list to the peer as one transfer, then waits
+	 * for the peer to ACK that all of them were added to the job.  The transfer is
+	 * headed by this worker and the round it is reduced in, so the peer can drop
+	 * it should this worker be lost before the round starts, and by its number, 
+	 * so the peer stages a transfer sent again only once
+	 *
+	 * @param job the job these keys belong to, which sets how they are encoded
+	 * @param kvs keys and value lists to send
+	 * @param round the reduce round the keys belong to
+	 * @param transfer number of the transfer on this worker
+	 * @throws IOException if the connection fails or the peer does not ACK
+	 */
+	public synchronized <K extends Serializable, V extends Serializable> void transfer(Job<K, V, ?> job, 
+			Map<K, List<V>> kvs, int round, int transfer) throws IOException {
+		send(Utils.W2W_KEY_TRANSFER, job, kvs, job.worker.id, round, transfer);
+	}
+	
+	/**
+	 * Sends a copy of a reduce batch of this worker, for the peer to reduce as 
+	 * its backup
+	 *
+	 * @param job the job the batch belongs to
+	 * @param owner this worker
+	 * @param index number of the batch on this worker
+	 * @param kvs keys of the batch and their value lists
+	 * @throws IOException if the connection fails or the peer does not ACK
+	 */
+	public synchronized <K extends Serializable, V extends Serializable> void transferBatch(Job<K, V, ?> job, 
+			int owner, int index, Map<K, List<V>> kvs) throws IOException {
+		send(Utils.W2W_REDUCE_BATCH, job, kvs, owner, index);
+	}
+	
+	protected <K extends Serializable, V extends Serializable> void send(byte type, Job<K, V, ?> job, 
+			Map<K, List<V>> kvs, int... header) throws IOException {
+		int jobID = job.jobID;
+		// write the jobID directly since Utils.writeInt hides a broken connection
+		out.write(type);
+		out.write(Utils.intToByteArray(jobID));
+		for (int h : header)
+			out.write(Utils.intToByteArray(h));
+		ChunkedOutput chunks = new ChunkedOutput(out, job.keyCodec, job.valuesCodec, job.compressor);
+		for (Map.Entry<K, List<V>> e : kvs.entrySet())
+			chunks.write(e.getKey(), e.getValue());
+		chunks.finish();
+		if (in.read() != Utils.ACK)
+			throw new IOException("Peer " + socket + " did not acknowledge job " + jobID);
+	}
+
+	/**
+	 * Copies one of the peer's input files
+	 *
+	 * @param jobID the job the file is mapped for
+	 * @param filename name of the file on the peer
+	 * @param dir directory to copy the file into
+	 * @return File the copy
+	 * @throws IOException if the peer does not have the file or the connection fails
+	 */
+	public synchronized File fetch(int jobID, String filename, File dir) throws IOException {
+		DataOutputStream data = new DataOutputStream(out);
+		data.write(Utils.W2W_FETCH_FILE);
+		data.writeInt(jobID);
+		Utils.writeString(data, filename);
+		data.flush();
+		if (in.read() != Utils.ACK)
+			throw new IOException("Peer " + socket + " does not have " + filename);
+		dir.mkdirs();
+		String name = Utils.receiveFile(in, dir.getPath() + File.separator);
+		if (name.isEmpty())
+			throw new IOException("Connection to " + socket + " failed while copying " + filename);
+		return new File(dir, name);
+	}
+	
+	public synchronized void closeConnection() {
+		try {
+			socket.close();
+		} catch (IOException e) {}  //ignore exceptions since you are closing
+	}
+
+	public String toString() {
+		return "PeerConnection: " + socket.toString();
+	}
+}
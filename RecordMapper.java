@@ -0,0 +1,50 @@
+package mapreduce;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.HashMap;
+
+/**
+ * A Mapper that is given its input one record at a time instead of a whole File.
+ * Each file is streamed through the RecordReader of getInputFormat, so files 
+ * larger than the heap can be mapped, and every record can emit as many pairs 
+ * as it likes, including more than one value for the same key.
+ *
+ * @param <RK> type of the record keys
+ * @param <RV> type of the record values
+ */
+public abstract class RecordMapper<RK, RV,
+								   IK extends Serializable, 
+								   IV extends Serializable,
+								   OV extends Serializable> extends Mapper<IK, IV, OV> {
+
+	/**
+	 * @return InputFormat that splits this job's files into records
+	 */
+	public abstract InputFormat<RK, RV> getInputFormat();
+
+	/**
+	 * Called once for each record of an input file.  Use emit for the output
+	 * 
+	 * @param key the key of the record
+	 * @param value the record
+	 */
+	public abstract void map(RK key, RV value);
+
+	/**
+	 * Called by Job when a map task on this thread ends, for a RecordMapper that 
+	 * holds output of the task back to emit it then
+	 * 
+	 * @param mapped true if the task mapped its whole file, false if its output
+	 * 		  is being dropped
+	 */
+	protected void endTask(boolean mapped) {
+	}
+
+	/**
+	 * Not used, since Job reads the file through getInputFormat
+	 */
+	public final HashMap<IK, IV> map(File resource) {
+		return null;
+	}
+}
@@ -0,0 +1,28 @@
+package mapreduce;
+
+import java.io.IOException;
+
+/**
+ * Reads the records of one input file, one at a time, so that a file never has
+ * to fit in memory.  Each call to next() makes one record available through 
+ * key() and value().
+ *
+ * @param <RK> type of the record keys, such as the offset of the record
+ * @param <RV> type of the record values
+ */
+public interface RecordReader<RK, RV> {
+
+	/**
+	 * Reads the next record from the file
+	 *
+	 * @return true if a record was read, false at the end of the file
+	 * @throws IOException if the file cannot be read
+	 */
+	public boolean next() throws IOException;
+
+	public RK key();
+
+	public RV value();
+
+	public void close() throws IOException;
+}
@@ -0,0 +1,23 @@
+package mapreduce;
+
+import java.io.IOException;
+
+/**
+ * Writes the results of a reduce batch to one part file, one result at a time, 
+ * so that a batch's results never have to be held in memory.
+ *
+ * @param <K> type of the keys reduced
+ * @param <V> type of the values returned by reduce
+ */
+public interface RecordWriter<K, V> {
+
+	public void write(K key, V value) throws IOException;
+
+	/**
+	 * Flushes what is buffered and closes the file
+	 *
+	 * @return long number of bytes in the file
+	 * @throws IOException if the file cannot be written
+	 */
+	public long close() throws IOException;
+}
@@ -0,0 +1,177 @@
+package mapreduce;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * K-way merge of sorted runs on disk.  Each run is a ChunkedOutput stream of
+ * (key, List of values) pairs written in the order of the merge, HASH_ORDER 
+ * unless another is given, with every key at most once.  Each call to next() 
+ * makes one key available through key() and values(), with the values it has 
+ * in every run.  Only the current chunk of each run and the keys the order 
+ * ranks the same are held in memory.
+ */
+public class RunMerger {
+
+	// keys need not be Comparable, so runs are sorted by hashCode and keys 
+	// that share one are told apart with equals while merging
+	public static final Comparator<Object> HASH_ORDER = new Comparator<Object>() {
+		public int compare(Object a, Object b) {
+			return Integer.compare(a.hashCode(), b.hashCode());
+		}
+	};
+
+	protected List<InputStream> streams;
+	protected PriorityQueue<Run> heap;
+	protected Comparator<Object> order;
+	// the keys ranked the same as the current one that are not yet returned
+	protected Iterator<Map.Entry<Object, List<Object>>> group;
+	protected Object key;
+	protected List<Object> values;
+
+	/**
+	 * @param runs the runs to merge
+	 * @param keyCodec Codec the runs were written with, or null for Java serialization
+	 * @param valuesCodec Codec of the value lists, or null for Java serialization
+	 * @throws IOException if a run cannot be opened
+	 * @throws ClassNotFoundException if a key or value class cannot be loaded
+	 */
+	public RunMerger(List<File> runs, Codec<?> keyCodec, Codec<?> valuesCodec) 
+			throws IOException, ClassNotFoundException {
+		this(runs, keyCodec, valuesCodec, HASH_ORDER);
+	}
+
+	/**
+	 * @param runs the runs to merge
+	 * @param keyCodec Codec the runs were written with, or null for Java serialization
+	 * @param valuesCodec Codec of the value lists, or null for Java serialization
+	 * @param order the order every run is sorted in, which keys come out in
+	 * @throws IOException if a run cannot be opened
+	 * @throws ClassNotFoundException if a key or value class cannot be loaded
+	 */
+	public RunMerger(List<File> runs, Codec<?> keyCodec, Codec<?> valuesCodec, Comparator<?> order) 
+			throws IOException, ClassNotFoundException {
+		this(runs, keyCodec, valuesCodec, order, null);
+	}
+
+	/**
+	 * @param runs the runs to merge
+	 * @param keyCodec Codec the runs were written with, or null for Java serialization
+	 * @param valuesCodec Codec of the value lists, or null for Java serialization
+	 * @param order the order every run is sorted in, which keys come out in
+	 * @param loader ClassLoader of the job's Mapper, for the key and value classes
+	 * @throws IOException if a run cannot be opened
+	 * @throws ClassNotFoundException if a key or value class cannot be loaded
+	 */
+	@SuppressWarnings("unchecked")
+	public RunMerger(List<File> runs, Codec<?> keyCodec, Codec<?> valuesCodec, Comparator<?> order,
+			ClassLoader loader) throws IOException, ClassNotFoundException {
+		this.order = (Comparator<Object>) order;
+		streams = new ArrayList<>();
+		heap = new PriorityQueue<>(Math.max(1, runs.size()), new Comparator<Run>() {
+			public int compare(Run a, Run b) {
+				return RunMerger.this.order.compare(a.key(), b.key());
+			}
+		});
+		for (File f : runs) {
+			InputStream in = new BufferedInputStream(new FileInputStream(f), Utils.BUFFER_SIZE);
+			streams.add(in);
+			Run r = new Run(new ChunkedInput(in, keyCodec, valuesCodec, null, loader));
+			if (r.advance())
+				heap.add(r);
+		}
+	}
+
+	/**
+	 * Merges the next key from the runs
+	 *
+	 * @return true if a key was merged, false once every run is used up
+	 * @throws IOException if a run cannot be read
+	 * @throws ClassNotFoundException if a key or value class cannot be loaded
+	 */
+	@SuppressWarnings("unchecked")
+	public boolean next() throws IOException, ClassNotFoundException {
+		if (group == null || !group.hasNext()) {
+			if (heap.isEmpty())
+				return false;
+			Object first = heap.peek().key();
+			Map<Object, List<Object>> keys = new LinkedHashMap<>();
+			while (!heap.isEmpty() && order.compare(heap.peek().key(), first) == 0) {
+				Run r = heap.poll();
+				boolean more;
+				do {  // a run holds all of its keys ranked the same next to each other
+					List<Object> l = keys.get(r.key());
+					if (l == null)
+						keys.put(r.key(), (List<Object>) r.value());
+					else
+						l.addAll((List<Object>) r.value());
+					more = r.advance();
+				} while (more && order.compare(r.key(), first) == 0);
+				if (more)
+					heap.add(r);
+			}
+			group = keys.entrySet().iterator();
+		}
+		Map.Entry<Object, List<Object>> e = group.next();
+		key = e.getKey();
+		values = e.getValue();
+		return true;
+	}
+
+	public Object key() {
+		return key;
+	}
+
+	public List<Object> values() {
+		return values;
+	}
+
+	public void close() {
+		for (InputStream in : streams) {
+			try {
+				in.close();
+			} catch (IOException e) {}  //ignore exceptions since you are closing
+		}
+	}
+
+	/**
+	 * The position of the merge in one run
+	 */
+	protected static class Run {
+
+		protected ChunkedInput chunks;
+		protected int index;
+
+		protected Run(ChunkedInput chunks) {
+			this.chunks = chunks;
+		}
+
+		protected boolean advance() throws IOException, ClassNotFoundException {
+			// the first chunk is not read until the first call
+			if (chunks.keys() == null || ++index == chunks.keys().length) {
+				if (!chunks.next())
+					return false;
+				index = 0;
+			}
+			return true;
+		}
+
+		protected Object key() {
+			return chunks.keys()[index];
+		}
+
+		protected Object value() {
+			return chunks.values()[index];
+		}
+	}
+}
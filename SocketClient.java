@@ -1,5 +1,7 @@
 package mapreduce;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -28,8 +30,9 @@ public class SocketClient {
     		if (hostName.length() == 0) 
     			hostName = InetAddress.getLocalHost().getHostAddress();
     		socket = new Socket(hostName, port);
-            out = socket.getOutputStream();
-            in = socket.getInputStream();
+            // messages are framed, so both directions are buffered and flushed once per message
+            out = new BufferedOutputStream(socket.getOutputStream(), Utils.BUFFER_SIZE);
+            in = new BufferedInputStream(socket.getInputStream(), Utils.BUFFER_SIZE);
             id = in.read();  //first thing sent is a client ID
     		System.out.println(this + ": " + id);
     	}
@@ -61,12 +64,26 @@ public class SocketClient {
 				port = new Integer(args[++i]).intValue();
 			else if (args[i].equals("-h")) 
 				hostName = args[++i];
+			else if (i + 1 < args.length && parseOption(args[i], args[i + 1]))
+				i++;
 			else {
 				usageTemplate();
 			}
 		}	
 	}
 	
+	/**
+	 * Overwritten by subclasses that take options of their own.  Called while
+	 * the superclass constructor runs, before the subclass fields are initialized
+	 * 
+	 * @param option the option, such as -s
+	 * @param value the argument following it
+	 * @return boolean true if the option was used
+	 */
+	protected boolean parseOption(String option, String value) {
+		return false;
+	}
+	
 	/**
 	 * This method is overwritten by subclasses to display correct usage 
 	 */
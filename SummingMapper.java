@@ -0,0 +1,91 @@
+package mapreduce;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A RecordMapper for jobs that sum doubles, such as the total sales per product.
+ * It works as CountingMapper does, with map calling emit(key, double) to add to 
+ * a total the map task keeps for the key in a DoubleCounts.  Each task emits one
+ * boxed Double partial per key, which is combined, sent with Codecs.DOUBLE and
+ * summed by reduce.  The partials are added in no fixed order, so the last bits
+ * of a sum may differ from one run to the next.
+ *
+ * @param <RK> type of the record keys
+ * @param <RV> type of the record values
+ * @param <IK> type of the keys summed
+ */
+public abstract class SummingMapper<RK, RV, IK extends Serializable>
+		extends RecordMapper<RK, RV, IK, Double, Double> implements Combiner<IK, Double> {
+
+	// the totals of the map task on each thread, since tasks may run in parallel
+	private ThreadLocal<DoubleCounts<IK>> counts = new ThreadLocal<>();
+	private long budget = Utils.SPILL_THRESHOLD;
+
+	/**
+	 * Adds to the total of a key for the current map task
+	 *
+	 * @param key the key
+	 * @param value the amount added
+	 */
+	public void emit(IK key, double value) {
+		DoubleCounts<IK> c = counts.get();
+		if (c == null) {
+			c = new DoubleCounts<>();
+			counts.set(c);
+		}
+		c.add(key, value);
+		if (c.size() >= budget)
+			flush(c);
+	}
+
+	/**
+	 * Sums the partial totals of a key.  Override to reduce them otherwise,
+	 * along with combine
+	 */
+	public Double reduce(IK key, List<Double> listOfValues) {
+		double sum = 0;
+		for (double v : listOfValues)
+			sum += v;
+		return sum;
+	}
+
+	public Double combine(IK key, List<Double> listOfValues) {
+		return reduce(key, listOfValues);
+	}
+
+	public Codec<Double> getValueCodec() {
+		return Codecs.DOUBLE;
+	}
+
+	public Codec<Double> getOutputCodec() {
+		return Codecs.DOUBLE;
+	}
+
+	protected void endTask(boolean mapped) {
+		DoubleCounts<IK> c = counts.get();
+		if (c == null)
+			return;
+		if (mapped)
+			flush(c);
+		else
+			c.clear();
+	}
+
+	/**
+	 * Emits the total of every key in c to the map task's output and empties c
+	 */
+	protected void flush(DoubleCounts<IK> c) {
+		for (int i = 0; i < c.capacity(); i++) {
+			IK key = c.keyAt(i);
+			if (key != null)
+				super.emit(key, c.totalAt(i));
+		}
+		c.clear();
+	}
+
+	public void setJob(Job<?, ?, ?> job) {
+		super.setJob(job);
+		budget = Math.max(1, getMapOutputBudget());
+	}
+}
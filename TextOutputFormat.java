@@ -0,0 +1,34 @@
+package mapreduce;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes each result as a line of UTF-8 text, the key and the value separated 
+ * by a tab, each in the form of its toString().
+ */
+public class TextOutputFormat<K, V> implements OutputFormat<K, V> {
+
+	public RecordWriter<K, V> create(final File file) throws IOException {
+		final Writer out = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(file), StandardCharsets.UTF_8), Utils.BUFFER_SIZE);
+		return new RecordWriter<K, V>() {
+			public void write(K key, V value) throws IOException {
+				out.write(String.valueOf(key));
+				out.write('\t');
+				out.write(String.valueOf(value));
+				out.write('\n');
+			}
+
+			public long close() throws IOException {
+				out.close();
+				return file.length();
+			}
+		};
+	}
+}
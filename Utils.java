@@ -1,19 +1,22 @@
 package mapreduce;
 
-import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
-import java.lang.reflect.Method;
-import java.net.URI;
-import java.net.URL;
-import java.net.URLClassLoader;
+import java.net.Socket;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
-import java.util.LinkedList;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.List;
 
 /*
@@ -36,7 +39,7 @@ public class Utils {
 			NONE = 0,
 			M2W_MR_UPLOAD = 3,
 			MR_QUIT = 4,
-			W2M_KEY = 5, 
+			W2M_KEY_MANIFEST = 5, 
 			W2M_KEY_COMPLETE = 6, 
 			W2W_KEY_TRANSFER = 7,
 			W2M_RESULTS = 8,
@@ -51,11 +54,96 @@ public class Utils {
 			W2M_REDUCEDKV = 17,
 			W2M_JOBDONE = 18,
 			M2W_DATA_USAGE = 19,
-			ACK = 20;
+			ACK = 20,
+			W2M_MAP_PROGRESS = 21,
+			M2W_JOB_FILES = 22,
+			C2M_JOB_FILES = 23,
+			M2W_ARTIFACT = 24,
+			W2M_FETCH_ARTIFACT = 25,
+			W2M_SLOTS = 26,
+			W2M_MAP_FILES = 27,
+			W2M_MAP_COMMIT = 28,
+			M2W_MAP_COMMIT = 29,
+			M2W_SPECULATE_MAP = 30,
+			M2W_SPECULATE_REDUCE = 31,
+			W2M_REDUCE_BATCHES = 32,
+			M2W_REDUCE_DONE = 33,
+			W2W_FETCH_FILE = 34,
+			W2W_REDUCE_BATCH = 35,
+			W2M_RECOVERED = 36,
+			M2W_WORKER_LOST = 37,
+			M2W_RECOVER_MAP = 38,
+			M2W_RECOVER_PARTITIONS = 39,
+			M2W_JOB_COMPLETE = 40,
+			W2M_OUTPUT_PART = 41,
+			M2W_DISCARD_OUTPUT = 42,
+			W2M_OUTPUT_FAILED = 43,
+			W2M_FETCH_FAILED = 44,
+			M2W_FETCH_SOURCE = 45,
+			W2M_MAP_FAILED = 46,
+			W2M_JOB_FAILED = 47,
+			W2M_TRANSFER_FAILED = 48;
+	
+	// Size of the socket buffers used for bulk transfers, and the number of
+	// entries batched into each chunk of a ChunkedOutput stream
+	public static final int BUFFER_SIZE = 64 * 1024,
+							CHUNK_SIZE = 4096;
+	
+	// Number of jobs that run at once on each worker, unless it is started with -s
+	public static final int JOB_SLOTS = 2;
+	
+	// Number of workers each input file placed by the Master is stored on, unless
+	// the Master is started with -r
+	public static final int REPLICAS = 3;
+	
+	// Milliseconds a queued job waits before its priority goes up by one
+	public static final long AGING_INTERVAL = 30 * 1000;
+	
+	// Milliseconds between the Master's checks for straggling workers.  A worker
+	// straggles once a phase has taken SPECULATION_SLOWDOWN times the median of the
+	// peers that finished it, and at least this much longer
+	public static final long SPECULATION_INTERVAL = 1000;
+	public static final double SPECULATION_SLOWDOWN = 1.5;
+	
+	// records a map task reads between checks that no other copy of it has committed
+	public static final int CANCEL_CHECK = 1024;
+	
+	// Bytes the Master queues for a worker before it stops reading from the worker
+	// until they have been written
+	public static final long MAX_QUEUED_BYTES = 16 * BUFFER_SIZE;
+	
+	// Starting size of the buffer a RecordReader reads an input file through
+	public static final int RECORD_BUFFER_SIZE = 1024 * 1024;
+	
+	// number of values buffered for a key before a Combiner is applied on the map side
+	public static final int COMBINE_THRESHOLD = 64;
+	
+	// number of intermediate values a worker holds in memory for a job before 
+	// spilling them to disk, unless the Mapper sets its own budget
+	public static final long SPILL_THRESHOLD = 1 << 20;
+	
+	// number of batches each reduce thread gets, so uneven batches still balance out
+	public static final int BATCHES_PER_THREAD = 4;
+	
+	// number of results the Master prints of a job that writes part files
+	public static final int PREVIEW_RESULTS = 20;
 	
 	//Path for flat directory, where each worker stores files
 	public static final String basePath = "temp/";
 	
+	//Subdirectory of a worker's directory where jobs spill their map output
+	public static final String spillPath = "spill";
+	
+	//Subdirectory of a worker's directory where inputs mapped from another worker's copy are fetched to
+	public static final String speculativePath = "speculative";
+	
+	//Subdirectory of a worker's directory where jobs with an OutputFormat write their part files
+	public static final String outputPath = "output";
+	
+	//Subdirectories of the Master's and workers' directories where compiled Mappers are kept
+	public static final String artifactPath = "artifacts",
+							   buildPath = "build";
+	
 	/**
 	 * This method prints messages on to the console if DEBUG flag is on.
 	 * @param  str String to print to standard error
@@ -65,24 +153,6 @@ public class Utils {
 			System.err.println(str);
 	}
 	
-    // need to do add path to Classpath with reflection since the URLClassLoader.addURL(URL url) method is protected
-    // this allows each worker to have their own private folder if run on the same machine
-    public static URLClassLoader addPath(String s) {
-        try {
-        	File f = new File(s);
-	        URI u = f.toURI();
-	        URLClassLoader urlClassLoader = (URLClassLoader) ClassLoader.getSystemClassLoader();
-	        Class<URLClassLoader> urlClass = URLClassLoader.class;
-	        Method method = urlClass.getDeclaredMethod("addURL", new Class[]{URL.class});
-	        method.setAccessible(true);
-	        method.invoke(urlClassLoader, new Object[]{u.toURL()});
-	        return urlClassLoader;
-        } catch (Exception e) {
-        	System.err.println("Exception in adding Worker classpath: " + e);
-        	return null;
-        }
-    }
-	
 	/**
 	 * Turn two separate byte arrays into a single array 
 	 * @param a the first byte array, will take the lower indexed position of the output array
@@ -127,35 +197,38 @@ public class Utils {
 	}
 	
     /**
-     * Function to get list of files over a socket
-     * @param in the socket InputStream that will receive the filenames
+     * Function to get list of files out of a message
+     * @param in the payload of the message holding the filenames
      * @return list of filenames received.  empty list is returned if no filenames are sent
+     * @throws IOException if the list is cut short
      */
- 	public static List<String> readFilenames(InputStream in) {
+ 	public static List<String> readFilenames(DataInput in) throws IOException {
 		// length is the number of files being read
-		int length = Utils.readInt(in);  
-		List<String> list = new LinkedList<>();
+		int length = in.readInt();  
+		List<String> list = new ArrayList<>(length);
 		for(int i=0; i < length; i++) 
 			list.add(readString(in));
 		return list;
  	}
  	
  	/**
- 	 * Helper function to read a String over a socket.  The String must be newline delimited
+ 	 * Helper function to read a String as its length in bytes and then its UTF-8 bytes
  	 * @param in stream to read from 
  	 * @return String read from the stream
+ 	 * @throws IOException if the stream fails or ends early
  	 */
- 	public static String readString(InputStream in)  {
- 		try {
- 			int f;
- 			String name = "";
- 			while((f = in.read()) != -1 && f != '\n') 
- 				name += (char) f;
- 			return name;
- 		} catch (IOException e) {
-			debug("Exception reading String from " + in.toString() + ": " + e);
-			return "";
-		}
+ 	public static String readString(DataInput in) throws IOException {
+ 		return Codecs.STRING.read(in);
+ 	}
+ 	
+ 	/**
+ 	 * Writes a String to be read by readString
+ 	 * @param out stream to write to
+ 	 * @param s String to write
+ 	 * @throws IOException if the stream fails
+ 	 */
+ 	public static void writeString(DataOutput out, String s) throws IOException {
+ 		Codecs.STRING.write(out, s);
  	}
  	
  	/**
@@ -167,46 +240,20 @@ public class Utils {
  	 */
 	public static int readInt(InputStream in) {
 		try {
-			byte[] mybytearray = new byte[4];
-			for(int i = 0; i < 4; i++)
-				mybytearray[i] = (byte) in.read();
-			return Utils.byteArrayToInt(mybytearray);
-		} catch (IOException e) {
-			debug("Exception reading int from " + in.toString() + ": " + e);
+			return new DataInputStream(in).readInt();
+		} catch (EOFException e) {
 			return -1;
-		}
-	}
-	
-	/**
-	 * Reads from an input stream and writes to an output stream simultaneously, using a 
-	 * buffer of size 1024.
-	 * 
-	 * @param in Stream to read from
-	 * @param out Stream to write to (usually to a File)
-	 * @return int bytes read and written, or -1 for failure
-	 */
-	public static int readWriteBytes(InputStream in, OutputStream out) {
-		try{		
-			int totalBytes = 0;
-			byte[] mybytearray = new byte[1024];
-			while (true) {
-				int bytesRead = in.read(mybytearray, 0, mybytearray.length);
-				totalBytes += bytesRead;
-				if (bytesRead <= 0) break;
-				out.write(mybytearray, 0, bytesRead);
-				if (bytesRead < 1024) break; //assumes a single message is passed
-			}
-			out.flush();
-			return totalBytes;
 		} catch (IOException e) {
-			debug("Exception in read/write from " + in.toString() + " to " + out.toString() + ": " + e);
+			debug("Exception reading int from " + in.toString() + ": " + e);
 			return -1;
 		}
 	}
 	
 	/**
-	 * Receives a file over a Stream as a byte sequence, and writes it to the location 
-	 * given as a parameter to the function
+	 * Receives a file over a Stream as its name, its length and then its bytes, and 
+	 * writes it to the location given as a parameter to the function.  The bytes are
+	 * copied from the stream to the file through a small buffer, so memory use does 
+	 * not depend on the size of the file, though they do pass through the heap
 	 * 
 	 * @param in stream to read from
 	 * @param writeDir directory to write the file to
@@ -215,19 +262,71 @@ public class Utils {
 	public static String receiveFile(InputStream in, String writeDir){
 		try {
 			// the first thing sent will be the filename
-			String name = Utils.readString(in);
-			BufferedOutputStream bos = new BufferedOutputStream(
-					new FileOutputStream(writeDir + name));
-			// this will write the bytes received to disk
-			int totalCount = Utils.readWriteBytes(in, bos);
-			bos.close();
-			System.err.printf("%s: %d bytes downloaded%n", name, totalCount);
+			DataInputStream data = new DataInputStream(in);
+			String name = readString(data);
+			long length = data.readLong();
+			long start = System.nanoTime();
+			ReadableByteChannel src = Channels.newChannel(in);
+			FileOutputStream fos = new FileOutputStream(writeDir + name);
+			try {
+				FileChannel dest = fos.getChannel();
+				long position = 0;
+				while (position < length) {
+					long count = dest.transferFrom(src, position, length - position);
+					if (count <= 0)  // the stream is blocking, so this is the end of it
+						throw new IOException("Connection closed after " + position + " of " + length + " bytes");
+					position += count;
+				}
+			} finally {
+				fos.close();
+			}
+			printThroughput(name + " downloaded", length, System.nanoTime() - start);
 			return name;
 		} catch (IOException e) {
 			debug("Exception in receiving from " + in.toString() + ": " + e);
     		return "";
 		}
 	}
+	
+	/**
+	 * Sends a file to be read by receiveFile.  When the stream belongs to a socket
+	 * with a channel the file is sent with transferTo and never copied into the JVM,
+	 * as for the input files peers fetch from WorkerP2P.  The Client's plain socket
+	 * gets the file copied through a small buffer instead.  The Master's connections
+	 * to the workers are non-blocking, and send files with WorkerConnection.sendFile
+	 * 
+	 * @param socket the socket being written to, used for its channel if it has one.
+	 * 		  null when out must be written through
+	 * @param out the output stream of socket
+	 * @param file the file to send
+	 * @throws IOException if the file cannot be read or the stream fails
+	 */
+	public static void sendFile(Socket socket, OutputStream out, File file) throws IOException {
+		long start = System.nanoTime();
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			FileChannel src = fis.getChannel();
+			long length = src.size();
+			DataOutputStream data = new DataOutputStream(out);
+			writeString(data, file.getName());
+			data.writeLong(length);
+			data.flush();
+			WritableByteChannel dest = socket != null && socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(out);
+			long position = 0;
+			while (position < length)
+				position += src.transferTo(position, length - position, dest);
+			out.flush();
+			printThroughput(file.getName() + " sent", length, System.nanoTime() - start);
+		} finally {
+			fis.close();
+		}
+	}
+	
+	protected static void printThroughput(String what, long bytes, long nanos) {
+		double seconds = Math.max(nanos, 1) / 1e9;
+		System.err.printf("%s: %d bytes in %.3f s (%.1f MB/s)%n", what, bytes, seconds, 
+				bytes / seconds / (1024 * 1024));
+	}
  	
  	/**
  	 * This function copies one file into another in a different destination on the local machine
@@ -258,67 +357,66 @@ public class Utils {
 	}
 	
 	/**
-	 * Write the bytes of a file along with its filename to an output stream
+	 * Write the bytes of a file along with its filename and length to an output 
+	 * stream, to be read by receiveFile
 	 * 
 	 * @param out output stream to write the bytes of the file to
-	 * @param command the type of file this is, a MR file or a regular file upload    
 	 * @param filename name of file to store the bytes into
 	 * @param barg the bytes of the file transferred over the stream
 	 */
 	public static void writeFile(OutputStream out, String filename, byte... barg) {
 		try {
-			//filename must be newline delimited from the bytes of data
-			out.write((filename+'\n').getBytes());
-			out.write(barg);
-			out.flush();
+			DataOutputStream data = new DataOutputStream(out);
+			writeString(data, filename);
+			data.writeLong(barg.length);
+			data.write(barg);
+			data.flush();
 		} catch (IOException e) {
 			debug("Exception in writing file to " + out.toString() + ": " + e);
 		}
 	}
 	
 	/**
-	 * Writes a list of filenames to an output stream, to be read by readFilenames
-	 * @param out stream to write to 
+	 * Writes a list of filenames into a message, to be read by readFilenames
+	 * @param out body of the message to write to 
 	 * @param args String[] of filenames
+	 * @throws IOException if the stream fails
 	 */
-	public static void writeFilenames(OutputStream out, String[] args) {
-		try {
-			// first write the number of filenames that will be sent
-			out.write(Utils.intToByteArray(args.length));
-			for (String s : args)
-				out.write((s + "\n").getBytes());
-			out.flush();
-		} catch (IOException e) {
-			debug("Exception in writing filenames to " + out.toString() + ": " + e);
-		}
+	public static void writeFilenames(DataOutput out, String[] args) throws IOException {
+		// first write the number of filenames that will be sent
+		out.writeInt(args.length);
+		for (String s : args)
+			writeString(out, s);
 	}
 
-    public static void writeObject(OutputStream out, Object obj) {
-    	try {
-    		ObjectOutputStream objStream = new ObjectOutputStream(out);
-    		objStream.writeObject(obj);
-    		objStream.flush();
-    	} catch (IOException e) {
-			debug("Exception in writing object to " + out.toString() + ": " + e);
-    	}				
-    }
-
+	/**
+	 * Sends a command that carries no payload, as a whole Message
+	 * @param out stream to write to
+	 * @param command command byte
+	 * @param jobID job the command is about, or NONE
+	 */
     public static void writeCommand(OutputStream out, byte command, int jobID) {
     	try {
-			out.write(command);
-			out.write(Utils.intToByteArray(jobID));
-    		out.flush();
+    		synchronized (out) {
+    			Message.writeHeader(out, command, jobID, 0);
+    			out.flush();
+    		}
     	} catch (IOException e) {
 			debug("Exception in writing command to " + out.toString() + ": " + e);
     	}				
     }
     
-    public static void writeInt(OutputStream out, int arg) {
-    	try {
-			out.write(Utils.intToByteArray(arg));
-    		out.flush();
-    	} catch (IOException e) {
-			debug("Exception in writing int to " + out.toString() + ": " + e);
-    	}			
+    /**
+     * Starts a command whose data follows on the stream, such as a file or a 
+     * ChunkedOutput.  Nothing is flushed until the data is written, and the caller 
+     * must hold the lock of out until then
+     * 
+	 * @param out stream to write to
+	 * @param command command byte
+	 * @param jobID job the command is about, or NONE
+     * @throws IOException if the stream fails
+     */
+    public static void writeStreamCommand(OutputStream out, byte command, int jobID) throws IOException {
+    	Message.writeHeader(out, command, jobID, Message.STREAM);
     }
-}
\ No newline at end of file
+}
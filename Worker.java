@@ -5,16 +5,23 @@ package mapreduce;
 //Unit:    Distributed Programming Group Project
 //******************************************************************************
 
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.net.URLClassLoader;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This class parses command-line input in order to register client as a worker in a 
@@ -32,8 +39,23 @@ public class Worker extends SocketClient implements Runnable {
 	protected WorkerP2P wP2P;
 	protected String basePath;
 	protected File baseDir;
-	protected URLClassLoader myClasspathLoader;
+	// compiled Mappers held by this worker
+	protected ArtifactStore artifacts;
+	// { artifact, class name } of jobs waiting for the Master to send their artifact
+	protected Map<Integer, String[]> fetching;
 	protected Map<Integer, Job<?,?,?>> jobs;
+	// jobs the Master has all the results of, which late transfers are turned away from
+	protected Set<Integer> finished;
+	// Mappers loaded for jobs whose file listing has not arrived yet
+	protected Map<Integer, Mapper<?,?,?>> loaded;
+	// number of job phases run at once, set by -s.  Not initialized here since
+	// parseOption sets it before the fields of this class are initialized
+	protected int slots;
+	// runs the phases of jobs, so the thread reading from the Master only dispatches
+	protected ExecutorService phases;
+	// copies work to the backups of this worker's jobs apart from the slots, which
+	// are busy with the work that is straggling
+	protected ExecutorService transfers;
     
     /**
      * Constructor that makes a new worker and attempts to register with a Master.
@@ -52,24 +74,42 @@ public class Worker extends SocketClient implements Runnable {
 		} 
     	// inform Master of your P2P port number, send it in place of a jobID
     	Utils.writeCommand(out, Utils.W2M_WP2P_PORT, Utils.BASE_WP2P_PORT+id);
+    	if (slots <= 0)
+    		slots = Utils.JOB_SLOTS;
+    	phases = Executors.newFixedThreadPool(slots);
+    	transfers = Executors.newCachedThreadPool();
+    	// and how many jobs it may run at once, also in place of a jobID
+    	Utils.writeCommand(out, Utils.W2M_SLOTS, slots);
     	basePath = Utils.basePath + File.separator + id;
     	baseDir = new File(basePath);
     	if (!baseDir.isDirectory())
     		baseDir.mkdirs();
-    	myClasspathLoader = Utils.addPath(basePath);
+    	artifacts = new ArtifactStore(new File(basePath + File.separator + Utils.artifactPath));
+    	fetching = new ConcurrentHashMap<>();
     	jobs = new ConcurrentHashMap<>();
+    	finished = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    	loaded = new ConcurrentHashMap<>();
     	new Thread(this).start();  //start a thread to read from the Master
     }
  
     @Override
     public void usageTemplate() {
-		System.out.println("Correct usage: java Worker [-h <hostName>] [-p <portnumber>]");
+		System.out.println("Correct usage: java Worker [-h <hostName>] [-p <portnumber>] [-s <slots>]");
 		System.out.println("\t-h: override localhost to set the host to <hostName>.");
 		System.out.println("\t-p: override default port 40001 to <port>.");
+		System.out.println("\t-s: override the default of " + Utils.JOB_SLOTS + " jobs run at once to <slots>.");
 		System.out.println("\t<host> and <port> must match the Master Server's worker connection.");
 		System.exit(1);
     }
     
+    @Override
+    protected boolean parseOption(String option, String value) {
+    	if (!option.equals("-s"))
+    		return false;
+    	slots = Integer.parseInt(value);
+    	return true;
+    }
+    
     public synchronized boolean isStopped() {
     	return stopped;
     }
@@ -83,23 +123,21 @@ public class Worker extends SocketClient implements Runnable {
     	stopped = true;
     	for (Job<?,?,?> job : jobs.values()) 
     		job.stopExecution();
+    	phases.shutdownNow();
+    	transfers.shutdownNow();
     	try {
         	Files.deleteIfExists(Paths.get(basePath));
     		wP2P.closeConnection();
     	} catch (IOException e) {} //ignore exceptions since you are quitting
     }
     
-    private Mapper<?, ?, ?> loadMRFile(String classfile) {		
+    private Mapper<?, ?, ?> loadMRFile(String artifact, String className) {		
 		try {	
-			// need each worker to have its own directory in case it is running locally
-			// this requires the classpath to be changed
-			Class<?> myClass = myClasspathLoader.loadClass(classfile.split("\\.")[0]); 
-			Mapper<?, ?, ?> mr = (Mapper<?, ?, ?>) myClass.newInstance();
-			// clean up the files you created
-			Files.delete(Paths.get(basePath + File.separator + classfile));
-			return mr;
+			// each artifact has its own class loader, so jobs never see each other's classes
+			Class<?> myClass = artifacts.loadClass(artifact, className); 
+			return (Mapper<?, ?, ?>) myClass.getDeclaredConstructor().newInstance();
 		} catch (Exception e) {
-			System.err.println("Exception loading or compiling the File: " + e);
+			System.err.println("Exception loading the Mapper " + className + ": " + e);
 			return null;
 		}
 	}
@@ -107,73 +145,411 @@ public class Worker extends SocketClient implements Runnable {
 	/* Function to send filesList to Master
      * Path of default directory is in Utils
      */
-    public void sendFilesList(File path) {
-    	if (path.isDirectory()) {
-    		File[] filesList = path.listFiles();
-    		String[] names = new String[filesList.length];
-    		for(int i=0; i < filesList.length; i++)
-    			names[i] = filesList[i].getName();
-    		Utils.writeCommand(out, Utils.M2W_REQ_LIST_OKAY, Utils.NONE);
-        	Utils.writeFilenames(out, names);
-    	}
+    public void sendFilesList(File path) throws IOException {
+    	List<String> names = path.isDirectory() ? listFiles(path) : new ArrayList<String>();
+    	Message msg = new Message(Utils.M2W_REQ_LIST_OKAY, Utils.NONE);
+    	Utils.writeFilenames(msg.body(), names.toArray(new String[names.size()]));
+    	msg.send(out);
+    }
+    
+    /**
+     * Lists the input files in a directory, leaving out subdirectories such as 
+     * the one jobs spill to
+     * 
+     * @param path directory to list
+     * @return List of filenames
+     */
+    protected List<String> listFiles(File path) {
+    	List<String> names = new ArrayList<>();
+    	File[] filesList = path.listFiles();
+    	if (filesList != null)
+    		for (File f : filesList)
+    			if (f.isFile())
+    				names.add(f.getName());
+    	return names;
+    }
+    
+    /**
+     * Loads the Mapper of a new job, first asking the Master for its artifact
+     * if this worker does not hold it yet
+     * 
+     * @param jobID the new job
+     * @param in payload naming the artifact and the Mapper's class
+     * @throws IOException if the Master cannot be reached
+     */
+    protected void receiveNewJob(int jobID, DataInput in) throws IOException {
+    	String artifact = Utils.readString(in);
+    	String className = Utils.readString(in);
+    	System.out.println("Worker received new MR job: " + className);
+    	if (artifacts.contains(artifact))
+    		loadJob(jobID, artifact, className);
     	else {
-    		Utils.writeCommand(out, Utils.M2W_REQ_LIST_OKAY, Utils.NONE);
-    		Utils.writeFilenames(out, new String[0]);
+    		fetching.put(jobID, new String[] { artifact, className });
+    		Message msg = new Message(Utils.W2M_FETCH_ARTIFACT, jobID);
+    		Utils.writeString(msg.body(), artifact);
+    		msg.send(out);
     	}
     }
     
-    protected void receiveNewJob(int jobID) throws IOException {
-    	System.out.print("Worker received new MR job: ");
-		Mapper<?, ?, ?> mr = loadMRFile(Utils.receiveFile(in, basePath + File.separator));
+    /**
+     * Receives an artifact this worker asked for and loads the Mapper in it
+     * 
+     * @param jobID the job waiting on the artifact
+     * @throws IOException if the artifact cannot be received
+     */
+    protected void receiveArtifact(int jobID) throws IOException {
+    	File incoming = new File(basePath + File.separator + Utils.artifactPath + File.separator + "incoming");
+    	incoming.mkdirs();
+    	String name = Utils.receiveFile(in, incoming.getPath() + File.separator);
+    	String[] pending = fetching.remove(jobID);
+    	if (name.isEmpty())
+    		System.err.println("Artifact for job " + jobID + " was not received");
+    	else if (pending == null) 
+    		Files.deleteIfExists(new File(incoming, name).toPath());
+    	else if (!artifacts.accept(pending[0], new File(incoming, name)))
+    		System.err.println("Artifact for job " + jobID + " does not match " + pending[0]);
+    	else
+    		loadJob(jobID, pending[0], pending[1]);
+    }
+    
+    protected void loadJob(int jobID, String artifact, String className) throws IOException {
+		Mapper<?, ?, ?> mr = loadMRFile(artifact, className);
 		if (mr != null) {
-			Utils.writeCommand(out, Utils.ACK, jobID);  // notify master, next message received is the file listing
-			List<String> names = Utils.readFilenames(in);
-			// Master can sent empty list is no local files are wanted
-			// filename of 'all' means to use all local files
-			if (!names.isEmpty() && names.get(0).equals(Utils.ALL))  
-				names = new ArrayList<String>(Arrays.asList(baseDir.list()));
-			Job<?,?,?> currentJob = new Job<>(jobID, this, mr, names);
+			loaded.put(jobID, mr);
+			Utils.writeCommand(out, Utils.ACK, jobID);  // notify master, it replies with the file listing
+		}
+    }
+    
+    /**
+     * Starts a job once the Master has sent the files to map and the roster
+     * 
+     * @param jobID the job whose Mapper was loaded by receiveNewJob
+     * @param in payload of the M2W_JOB_FILES message
+     * @throws IOException if the message is cut short
+     */
+    protected void startJob(int jobID, DataInput in) throws IOException {
+    	Mapper<?, ?, ?> mr = loaded.remove(jobID);
+    	if (mr == null) {
+    		System.err.println("Files received for unknown job " + jobID);
+    		return;
+    	}
+		List<String> names = Utils.readFilenames(in);
+		// Master can sent empty list is no local files are wanted
+		// filename of 'all' means to use all local files
+		if (!names.isEmpty() && names.get(0).equals(Utils.ALL))  
+			names = listFiles(baseDir);
+		// the roster of workers in the job follows the file listing
+		List<Object[]> roster = readRoster(in);
+		final Job<?,?,?> currentJob = new Job<>(jobID, this, mr, names, roster);
+		// then the files this worker holds no copy of, and the worker to read each from
+		for (int i = in.readInt(); i > 0; i--)
+			currentJob.remote.put(Utils.readString(in), in.readInt());
+		synchronized (jobs) {
 			jobs.put(jobID, currentJob);
-			currentJob.begin(basePath);
+			jobs.notifyAll();
 		}
+		runPhase(jobID, "map", new Callable<Void>() {
+			public Void call() throws Exception {
+				currentJob.begin(basePath);
+				return null;
+			}
+		});
+    }
+    
+    /**
+     * Runs a phase of a job in one of this worker's slots, waiting for a slot if 
+     * they are all busy.  The Master only starts a job's next phase once every
+     * worker has finished the one before, so a job never has two phases queued
+     * 
+     * @param jobID the job the phase belongs to
+     * @param name the phase, for error messages
+     * @param phase the work of the phase
+     */
+    protected void runPhase(final int jobID, final String name, final Callable<Void> phase) {
+    	phases.execute(new Runnable() {
+    		public void run() {
+    			try {
+    				phase.call();
+    			} catch (Exception e) {
+    				System.err.println("Job " + jobID + ": " + name + " failed on " + Worker.this + ": " + e);
+    				e.printStackTrace();
+    				sendJobFailed(jobID, "the " + name + " of Worker " + id + " failed: " + e);
+    			}
+    		}
+    	});
+    }
+    
+    /**
+     * Tells the Master a job failed on this worker, since it would otherwise wait
+     * for what this worker never sends
+     * 
+     * @param jobID the job
+     * @param reason the error, for the Master to report
+     */
+    protected void sendJobFailed(int jobID, String reason) {
+    	Message msg = new Message(Utils.W2M_JOB_FAILED, jobID);
+    	try {
+    		Utils.writeString(msg.body(), reason);
+    		msg.send(out);
+    	} catch (IOException e) {
+    		System.err.println("Error reporting the failure of job " + jobID + ": " + e);
+    	}
+    }
+    
+	private List<Object[]> readRoster(DataInput in) throws IOException {
+		int size = in.readInt();
+		List<Object[]> roster = new ArrayList<>(size);
+		for (int i = 0; i < size; i++)
+			roster.add(new Object[] { in.readInt(), Utils.readString(in), in.readInt() });
+		return roster;
+    }
+    
+    /**
+     * Peers partition their keys without waiting on this worker, so a shuffle 
+     * can arrive before this worker has set up the job.  Blocks until it has
+     * 
+     * @param jobID the job to look up
+     * @return Job running jobID on this worker, or null if it has completed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Job<?,?,?> getJob(int jobID) throws InterruptedException {
+    	synchronized (jobs) {
+    		while (!jobs.containsKey(jobID) && !finished.contains(jobID))
+    			jobs.wait();
+    		return jobs.get(jobID);
+    	}
+    }
+    
+    /**
+     * Reads the key assignments of a job off the stream from the Master and 
+     * shuffles its keys to their workers in a slot
+     * 
+     * @param job the job whose keys were assigned
+     * @throws IOException if the assignments cannot be read
+     */
+    protected void shuffle(final Job<?,?,?> job) throws IOException {
+    	final List<Object[]> assignments = job.readKeyAssignments();
+    	runPhase(job.jobID, "shuffle", new Callable<Void>() {
+    		public Void call() throws Exception {
+    			job.shuffle(assignments);
+    			return null;
+    		}
+    	});
+    }
+    
+    /**
+     * Reduces a round of a job in a slot
+     * 
+     * @param job the job to reduce
+     * @param in payload holding the round, which is 0 unless the job lost a worker
+     * @throws IOException if the payload is cut short
+     */
+    protected void reduce(final Job<?,?,?> job, DataInput in) throws IOException {
+    	final int round = in.readInt();
+    	runPhase(job.jobID, "reduce", new Callable<Void>() {
+    		public Void call() throws Exception {
+    			job.reduce(round);
+    			return null;
+    		}
+    	});
+    }
+    
+    protected void receiveSource(Job<?,?,?> job, DataInput in) throws IOException {
+    	String filename = Utils.readString(in);
+    	job.receiveSource(filename, in.readInt());
+    }
+    
+    protected void receiveCommit(Job<?,?,?> job, DataInput in) throws IOException {
+    	int owner = in.readInt();
+    	String filename = Utils.readString(in);
+    	job.receiveCommit(owner, filename, in.readBoolean());
+    }
+    
+    /**
+     * Maps a backup copy of a straggling worker's file in a slot
+     * 
+     * @param job the job the file is mapped for
+     * @param in payload naming the worker and its file
+     * @throws IOException if the payload is cut short
+     */
+    protected void mapBackup(final Job<?,?,?> job, DataInput in) throws IOException {
+    	final int owner = in.readInt();
+    	final String filename = Utils.readString(in);
+    	final int source = in.readInt();
+    	runPhase(job.jobID, "backup map", new Callable<Void>() {
+    		public Void call() throws Exception {
+    			job.mapBackup(owner, filename, source);
+    			return null;
+    		}
+    	});
+    }
+    
+    /**
+     * Called when a worker of the job is lost
+     * 
+     * @param job the job that lost the worker
+     * @param in payload naming the lost worker, the worker taking over its partitions,
+     * 		  the round they are reduced in, the first round dropped and the partitions
+     * @throws IOException if the payload is cut short
+     */
+    protected void workerLost(Job<?,?,?> job, DataInput in) throws IOException {
+    	int lost = in.readInt();
+    	int adopter = in.readInt();
+    	int round = in.readInt();
+    	List<Integer> partitions = new ArrayList<>();
+    	for (int i = in.readInt(); i > 0; i--)
+    		partitions.add(in.readInt());
+    	System.out.println("Job " + job.jobID + ": Worker " + lost + " was lost, partitions " 
+    			+ partitions + " go to Worker " + adopter);
+    	job.workerLost(lost, adopter, round, partitions);
+    }
+    
+    /**
+     * Maps a file of a lost worker again in a slot
+     * 
+     * @param job the job the file is mapped for
+     * @param in payload naming the worker and its file
+     * @throws IOException if the payload is cut short
+     */
+    protected void recoverMap(final Job<?,?,?> job, DataInput in) throws IOException {
+    	final int owner = in.readInt();
+    	final String filename = Utils.readString(in);
+    	runPhase(job.jobID, "recovery map", new Callable<Void>() {
+    		public Void call() throws Exception {
+    			job.recoverMap(owner, filename);
+    			return null;
+    		}
+    	});
     }
     
+    /**
+     * Reads which files to map again for which partitions off the stream from the
+     * Master, and maps them in a slot
+     * 
+     * @param job the job that lost the partitions
+     * @throws IOException if the stream fails
+     */
+    protected void recoverPartitions(final Job<?,?,?> job) throws IOException {
+    	DataInputStream data = new DataInputStream(in);
+    	final int round = data.readInt();
+    	final Set<Integer> partitions = new HashSet<>();
+    	for (int i = data.readInt(); i > 0; i--)
+    		partitions.add(data.readInt());
+    	final List<Object[]> units = new ArrayList<>();
+    	for (int i = data.readInt(); i > 0; i--)
+    		units.add(new Object[] { data.readInt(), Utils.readString(data) });
+    	// the partition of each key, when the Master assigned them
+    	job.readReducers();
+    	runPhase(job.jobID, "recovery map", new Callable<Void>() {
+    		public Void call() throws Exception {
+    			job.recoverPartitions(round, partitions, units);
+    			return null;
+    		}
+    	});
+    }
+    
+    /**
+     * Called once the Master has every result of a job, to free what it holds
+     * 
+     * @param jobID the job completed
+     */
     public void jobComplete(int jobID) {
-    	// TODO bug that this happens before reduction if a cluster node is given no files to operate on
-    	// somehow there is a race condition in the control flow
-    	//jobs.remove(jobID);
+    	Job<?,?,?> job;
+    	synchronized (jobs) {
+    		finished.add(jobID);
+    		job = jobs.remove(jobID);
+    		jobs.notifyAll();
+    	}
+    	if (job != null)
+    		job.cleanup();
+    }
+    
+    /**
+     * Deletes a part file this worker wrote for a batch whose other copy was kept
+     * 
+     * @param path the part file
+     */
+    protected void discardOutput(String path) {
+    	File part = new File(path);
+    	File outputDir = new File(basePath + File.separator + Utils.outputPath);
+    	// only part files under the output directory are deleted
+    	if (part.getAbsolutePath().startsWith(outputDir.getAbsolutePath() + File.separator))
+    		part.delete();
     }
     
     public void run() {
-    	int command;
     	while(!isStopped()) {
     		try {
-    			if ((command = in.read()) != -1) {
-    				int jobID = Utils.readInt(in);
-    				switch(command) {
-    				case Utils.MR_QUIT:  //quit command
+    			Message msg = Message.read(in);
+    			if (msg == null)
+    				throw new EOFException("Master closed the connection");
+    			int jobID = msg.jobID();
+    			Job<?,?,?> job = jobs.get(jobID);
+    			switch(msg.type()) {
+    			case Utils.MR_QUIT:  //quit command
     		    		this.closeConnection();
     		    		break;
-    				case Utils.M2W_COORD_KEYS:	
-    					jobs.get(jobID).receiveKeyAssignments();
-    					break;
-    				case Utils.M2W_BEGIN_REDUCE:
-    					jobs.get(jobID).reduce();
-    					break;	
-    				case Utils.M2W_MR_UPLOAD:
-    					receiveNewJob(jobID);
-    					break;
-    				case Utils.M2W_FILE:
-    					Utils.receiveFile(in, basePath + File.separator);
-    					break;
-    				case Utils.M2W_REQ_LIST:  // master is requesting file list
-    					sendFilesList(baseDir);
-    					break;
-    				default:
-    					System.err.println("Unrecognized Worker command: " + command);
-    					break;
-    				}    				
-    			}
+    			case Utils.M2W_COORD_KEYS:	
+    				// the assignments are read here since they follow on the stream
+    				shuffle(job);
+    				break;
+    			case Utils.M2W_BEGIN_REDUCE:
+    				reduce(job, msg.payload());
+    				break;	
+    			case Utils.M2W_MAP_COMMIT:
+    				if (job != null)
+    					receiveCommit(job, msg.payload());
+    				break;
+    			case Utils.M2W_SPECULATE_MAP:
+    				mapBackup(job, msg.payload());
+    				break;
+    			case Utils.M2W_SPECULATE_REDUCE:
+    				job.speculateReduce(msg.payload().readInt());
+    				break;
+    			case Utils.M2W_REDUCE_DONE:
+    				if (job != null)
+    					job.reducedElsewhere(msg.payload().readInt());
+    				break;
+    			case Utils.M2W_FETCH_SOURCE:  // another worker to read an input from
+    				if (job != null)
+    					receiveSource(job, msg.payload());
+    				break;
+    			case Utils.M2W_DISCARD_OUTPUT:  // another copy of a batch wrote its part first
+    				discardOutput(Utils.readString(msg.payload()));
+    				break;
+    			case Utils.M2W_WORKER_LOST:
+    				if (job != null)
+    					workerLost(job, msg.payload());
+    				break;
+    			case Utils.M2W_RECOVER_MAP:
+    				recoverMap(job, msg.payload());
+    				break;
+    			case Utils.M2W_RECOVER_PARTITIONS:
+    				// the keys to keep are read here since they follow on the stream
+    				recoverPartitions(job);
+    				break;
+    			case Utils.M2W_JOB_COMPLETE:
+    				jobComplete(jobID);
+    				break;
+    			case Utils.M2W_MR_UPLOAD:
+    				receiveNewJob(jobID, msg.payload());
+    				break;
+    			case Utils.M2W_ARTIFACT:
+    				receiveArtifact(jobID);
+    				break;
+    			case Utils.M2W_JOB_FILES:
+    				startJob(jobID, msg.payload());
+    				break;
+    			case Utils.M2W_FILE:
+    				Utils.receiveFile(in, basePath + File.separator);
+    				break;
+    			case Utils.M2W_REQ_LIST:  // master is requesting file list
+    				sendFilesList(baseDir);
+    				break;
+    			default:
+    				System.err.println("Unrecognized Worker command: " + msg.type());
+    				break;
+    			}    				
 			} catch (IOException e) {
 				if (isStopped()) // exception is expected when the connection is first closed
 					return;
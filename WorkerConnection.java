@@ -1,107 +1,483 @@
 package mapreduce;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
-public class WorkerConnection extends Thread {
+/**
+ * The Master's side of a connection to a worker.  The connection holds no thread:
+ * the Master's selector fills its read buffer and drains its write queue, and the
+ * messages it reads are handled one at a time, in order, on the Master's handler pool.
+ *
+ * Anything written to out is queued for the selector, so writing to a slow worker
+ * never holds up the thread writing.  Once more than Utils.MAX_QUEUED_BYTES are 
+ * waiting to go to a worker, the selector stops reading from it until they have
+ * been written, so a worker cannot have the Master queue more for it than it reads.
+ * Files are queued as regions of their channel, which the selector sends with 
+ * transferTo, so they are never copied into the JVM.
+ *
+ * The streams a worker sends with a MessageOutputStream are read on the Master's
+ * pool while they arrive, rather than once they have all been buffered.
+ */
+public class WorkerConnection {
 
     protected final int id;
     protected int workerPort;
+    // number of jobs the worker runs at once
+    protected volatile int slots = Utils.JOB_SLOTS;
+    protected SocketChannel channel;
     protected Socket clientSocket;
-	protected InputStream in;
 	protected OutputStream out;
 	protected boolean stopped = false;
 	protected Master master;
-	protected String MRFileName; 
+	protected String MRFileName;
+	protected SelectionKey key;
+	// bytes read from the worker that do not make up a whole message yet
+	protected ByteBuffer readBuffer;
+	// ByteBuffers and FileRegions waiting to be written to the worker, in order
+	protected Queue<Object> writeQueue;
+	protected long queuedBytes;  // bytes of the ByteBuffers, guarded by writeQueue
+	// messages read from the worker that are waiting to be handled
+	protected Queue<Message> inbox;
+	protected boolean handling;  // guarded by inbox
+	// streams being received, by command and jobID, and the tasks reading them.  Guarded
+	// by streams, which are only added to by handle
+	protected Map<Long, MessageInputStream> streams;
+	protected Map<Long, Future<?>> readers;
 
-    public WorkerConnection(Master master, Socket clientSocket, int id) throws IOException {
-        this.clientSocket = clientSocket;
+	/**
+	 * Called by the Master's selector thread for a newly accepted worker
+	 *
+	 * @param master the Master the worker joined
+	 * @param channel the worker's channel, which is made non-blocking
+	 * @param id the ID given to the worker
+	 * @throws IOException if the channel cannot be set up
+	 */
+    public WorkerConnection(Master master, SocketChannel channel, int id) throws IOException {
+        this.channel = channel;
+        this.clientSocket = channel.socket();
         this.master = master;
         this.id = id;
-        out = clientSocket.getOutputStream();
-        in = clientSocket.getInputStream();
+        channel.configureBlocking(false);
+        readBuffer = ByteBuffer.allocate(Utils.BUFFER_SIZE);
+        writeQueue = new ArrayDeque<>();
+        inbox = new ArrayDeque<>();
+        streams = new HashMap<>();
+        readers = new HashMap<>();
+        out = new BufferedOutputStream(new QueuedOutput(), Utils.BUFFER_SIZE);
         // first tell the worker his ID
         out.write(id);
+        out.flush();
     }
-    
-     public synchronized void closeConnection() {
-    	stopped = true;
+
+    public void closeConnection() {
+    	// writers check isStopped while holding writeQueue, so this is not held below
+    	synchronized (this) {
+    		if (stopped)
+    			return;
+    		stopped = true;
+    	}
     	master.remove(id);
-    	try {
-    		if (!clientSocket.isClosed())
-    			Utils.writeCommand(out, Utils.MR_QUIT, Utils.NONE);
-    		in.close();
-    		out.close();
-			clientSocket.close();
-    	} catch (IOException e) { }  //ignore exceptions since you are closing it anyways
+    	synchronized (writeQueue) {
+    		try {
+    			// the quit only goes out if nothing else is still queued ahead of it
+    			if (writeQueue.isEmpty() && channel.isOpen())
+    				channel.write(ByteBuffer.wrap(Message.header(Utils.MR_QUIT, Utils.NONE, 0)));
+    			channel.close();
+    		} catch (IOException e) { }  //ignore exceptions since you are closing it anyways
+    		for (Object queued : writeQueue)
+    			if (queued instanceof FileRegion)
+    				((FileRegion) queued).close();
+    		writeQueue.clear();
+    	}
+    	// the rest of the streams being read never arrives
+    	synchronized (streams) {
+    		for (MessageInputStream in : streams.values())
+    			in.fail("Connection to Worker " + id + " closed");
+    	}
     }
-    
+
     public synchronized boolean isStopped() {
     	return stopped;
     }
-    
+
     public String toString() {
     	return "WorkerConnection " + id + ": " + clientSocket.toString();
     }
-    
-	public void sendFile(byte transferType, int job, String name, byte[] bArr) {
-		// notify worker of pending file transmission and send data
-		// two types are a regular file or a MR job 
-		Utils.writeCommand(out, transferType, job);
-		Utils.writeFile(out, name, bArr); 
+
+	/**
+	 * Sends a file from disk to the worker, in the format Utils.receiveFile reads.
+	 * The header is queued like any write and the file after it as a FileRegion, 
+	 * so this returns once the file is queued rather than sent
+	 *
+	 * @param transferType the command the worker receives the file with
+	 * @param job jobID sent with the command
+	 * @param file the file to send
+	 * @throws IOException if the file cannot be read or the connection fails
+	 */
+	public void sendFile(byte transferType, int job, File file) throws IOException {
+		FileRegion region = new FileRegion(file);
+		try {
+			// lock so nothing else is written to the worker in the middle of the file
+			synchronized (out) {
+				Utils.writeStreamCommand(out, transferType, job);
+				DataOutputStream data = new DataOutputStream(out);
+				Utils.writeString(data, file.getName());
+				data.writeLong(region.end);
+				data.flush();
+				synchronized (writeQueue) {
+					if (isStopped())
+						throw new IOException("Connection closed: " + this);
+					writeQueue.add(region);
+				}
+			}
+		} catch (IOException e) {
+			region.close();
+			throw e;
+		}
+		master.watchWrites(this);
+	}
+
+	/////////////////////////////////////////////////
+	//
+	// These are called by the Master's selector thread
+	//
+	/////////////////////////////////////////////////
+
+	/**
+	 * Reads what the worker has sent and passes on each whole message
+	 *
+	 * @throws IOException if the connection fails or the worker closed it
+	 */
+	protected void readReady() throws IOException {
+		if (channel.read(readBuffer) == -1)
+			throw new IOException("Worker closed the connection");
+		readBuffer.flip();
+		Message msg;
+		while ((msg = Message.read(readBuffer)) != null)
+			deliver(msg);
+		int needed = Message.frameLength(readBuffer);
+		readBuffer.compact();
+		if (needed > readBuffer.capacity()) {
+			// a message larger than the buffer, keep what has been read of it
+			ByteBuffer larger = ByteBuffer.allocate(needed);
+			readBuffer.flip();
+			larger.put(readBuffer);
+			readBuffer = larger;
+		}
+	}
+
+	/**
+	 * Writes as much of the write queue as the socket takes without blocking
+	 *
+	 * @throws IOException if the connection fails
+	 */
+	protected void writeReady() throws IOException {
+		synchronized (writeQueue) {
+			Object next;
+			while ((next = writeQueue.peek()) != null) {
+				if (next instanceof FileRegion) {
+					if (!((FileRegion) next).transferTo(channel))
+						break;
+				}
+				else {
+					ByteBuffer buffer = (ByteBuffer) next;
+					queuedBytes -= channel.write(buffer);
+					if (buffer.hasRemaining())
+						break;
+				}
+				writeQueue.poll();
+			}
+			watch();
+		}
+	}
+
+	/**
+	 * Watches the channel for room to write, when something is queued
+	 */
+	protected void watchWrites() {
+		synchronized (writeQueue) {
+			watch();
+		}
+	}
+
+	/**
+	 * Sets what the selector waits for on the channel: room to write when anything 
+	 * is queued, and what the worker sends unless too much is queued for it.
+	 * Caller must hold writeQueue
+	 */
+	protected void watch() {
+		if (!key.isValid())
+			return;
+		int ops = queuedBytes < Utils.MAX_QUEUED_BYTES ? SelectionKey.OP_READ : 0;
+		if (!writeQueue.isEmpty())
+			ops |= SelectionKey.OP_WRITE;
+		key.interestOps(ops);
+	}
+
+	/**
+	 * Queues a message to be handled.  A worker's messages are handled in the
+	 * order they were sent, and never two at once
+	 *
+	 * @param msg the message read
+	 */
+	protected void deliver(Message msg) {
+		synchronized (inbox) {
+			inbox.add(msg);
+			if (handling)
+				return;
+			handling = true;
+		}
+		master.handlers.execute(new Runnable() {
+			public void run() {
+				while (true) {
+					Message next;
+					synchronized (inbox) {
+						next = inbox.poll();
+						if (next == null) {
+							handling = false;
+							return;
+						}
+					}
+					try {
+						handle(next);
+					} catch (Exception e) {
+						System.err.println("Error handling message " + next.type() + " from Worker " + id + ": " + e);
+						e.printStackTrace();
+					}
+				}
+			}
+		});
 	}
 
 	/**
-     * This is the loop that listens to the socket for messages from this particular Worker
+     * Handles one message from this particular Worker
+     *
+     * @param msg the message read
+     * @throws IOException if a payload is cut short
      */
-    public void run() {
-        // tell the worker to send their files to you
-        Utils.writeCommand(out, Utils.M2W_REQ_LIST, Utils.NONE);
-    	int command;
-    	while(!isStopped()) {
-    		try {
-    			if ((command = in.read()) != -1) {
-    				// jobID is always sent next, even if it is NONE for certain requests
-    				int jobID = Utils.readInt(in);
-    				switch(command) {
-    				case Utils.W2M_WP2P_PORT:
-    					//here jobID was actually the port number to save one int 
-    					this.workerPort = jobID;  
-    					break;
-    				case Utils.M2W_REQ_LIST_OKAY:
-    					master.receiveWorkerFiles(this.id, in);
-    					break;
-    				case Utils.W2M_KEY:
-    					master.receiveWorkerKey(this.id, in, out, jobID);
-    					break;
-    				case Utils.W2M_KEY_COMPLETE:
-    					master.receiveKeyComplete(in, jobID);
-    					break;
-    				case Utils.W2M_KEYSHUFFLED:
-    					master.receiveKeyShuffle(in, jobID);
-    					break;
-    				case Utils.W2M_RESULTS:
-    					master.receiveResults(in, out, jobID);
-    					break;
-    				case Utils.W2M_JOBDONE:
-    					master.receiveJobDone(in, jobID);
-    					break;
-    				case Utils.ACK:  //worker has awknowledged receiving MR job, need to send his files
-    					master.receiveAck(this.id, in, out, jobID);
-    					break;
-    				default:
-    					System.err.println("Invalid command received on WorkerConnection " + this.id + ": " + command);
-    					break;
-    				}
+    protected void handle(Message msg) throws IOException {
+		// jobID is always sent, even if it is NONE for certain requests
+		int jobID = msg.jobID();
+		switch(msg.type()) {
+		case Utils.W2M_WP2P_PORT:
+			//here jobID was actually the port number to save one int
+			this.workerPort = jobID;
+			break;
+		case Utils.W2M_SLOTS:
+			// as is the number of jobs the worker runs at once
+			this.slots = jobID;
+			master.scheduler.schedule();
+			break;
+		case Utils.M2W_REQ_LIST_OKAY:
+			master.receiveWorkerFiles(this.id, msg.payload());
+			break;
+		case Utils.W2M_MAP_PROGRESS:
+			master.receiveMapProgress(this.id, msg.payload(), jobID);
+			break;
+		case Utils.W2M_KEY_MANIFEST:
+			collect(msg);
+			break;
+		case Utils.W2M_KEY_COMPLETE:
+			master.receiveKeyComplete(this.id, jobID);
+			break;
+		case Utils.W2M_KEYSHUFFLED:
+			master.receiveKeyShuffle(this.id, jobID);
+			break;
+		case Utils.W2M_RESULTS:
+			collect(msg);
+			break;
+		case Utils.W2M_JOBDONE:
+			master.receiveJobDone(this.id, jobID, msg.payload().readInt());
+			break;
+		case Utils.W2M_REDUCE_BATCHES:
+			master.receiveReduceBatches(this.id, jobID, msg.payload().readInt());
+			break;
+		case Utils.W2M_MAP_FILES:
+			master.receiveMapFiles(this.id, msg.payload(), jobID);
+			break;
+		case Utils.W2M_RECOVERED:  // worker has sent what it held for a lost worker
+			master.receiveRecovered(this.id, jobID);
+			break;
+		case Utils.W2M_OUTPUT_PART:  // worker wrote the results of a batch to a part file
+			master.receiveOutputPart(this.id, msg.payload(), jobID);
+			break;
+		case Utils.W2M_FETCH_FAILED:  // worker could not copy an input from the worker it was given
+			master.receiveFetchFailed(this.id, msg.payload(), jobID);
+			break;
+		case Utils.W2M_OUTPUT_FAILED:  // worker could not write the part file of a batch
+			master.receiveOutputFailed(this.id, msg.payload(), jobID);
+			break;
+		case Utils.W2M_MAP_FAILED:  // worker could not map its copy of a file
+			master.receiveMapFailed(this.id, msg.payload(), jobID);
+			break;
+		case Utils.W2M_TRANSFER_FAILED:  // worker could not shuffle keys to a peer
+			master.receiveTransferFailed(this.id, msg.payload(), jobID);
+			break;
+		case Utils.W2M_JOB_FAILED:  // a phase of the job failed on the worker
+			master.receiveJobFailed(this.id, Utils.readString(msg.payload()), jobID);
+			break;
+		case Utils.W2M_MAP_COMMIT:  // worker finished a map task and asks to keep its output
+			master.receiveMapCommit(this.id, msg.payload(), jobID);
+			break;
+		case Utils.W2M_FETCH_ARTIFACT:  // worker does not hold the job's Mapper yet
+			master.sendArtifact(this, jobID, Utils.readString(msg.payload()));
+			break;
+		case Utils.ACK:  //worker has awknowledged receiving MR job, need to send his files
+			master.receiveAck(this.id, out, jobID);
+			break;
+		default:
+			System.err.println("Invalid command received on WorkerConnection " + this.id + ": " + msg.type());
+			break;
+		}
+    }
+
+    /**
+     * Passes a message of a MessageOutputStream on to the task reading its stream,
+     * which starts with the first message of the stream.  The last message waits 
+     * for the task, so the messages after a stream are still handled once it has 
+     * been read, in the order the worker sent them
+     *
+     * @param msg one of the messages of the stream
+     */
+    protected void collect(Message msg) {
+    	long stream = ((long) msg.type() << 32) | (msg.jobID() & 0xFFFFFFFFL);
+    	MessageInputStream in;
+    	synchronized (streams) {
+    		in = streams.get(stream);
+    		if (in == null) {
+    			in = new MessageInputStream();
+    			if (isStopped())
+    				in.fail("Connection to Worker " + id + " closed");
+    			streams.put(stream, in);
+    			try {
+    				readers.put(stream, master.exec.submit(reader(msg.type(), msg.jobID(), in)));
+    			} catch (RejectedExecutionException e) {
+    				in.close();  // the Master is stopping
     			}
-			} catch (IOException e) {
-				if (isStopped()) // exception is expected when the connection is first closed
-					return;
-				System.err.printf("Error in socket connection to Worker " + id + ": " + e);
-				this.closeConnection();
-			}
+    		}
+    	}
+    	if (msg.length() > 0) {
+    		in.add(msg.payload);
+    		return;
+    	}
+    	in.end();
+    	Future<?> reader;
+    	synchronized (streams) {
+    		streams.remove(stream);
+    		reader = readers.remove(stream);
+    	}
+    	try {
+    		if (reader != null)
+    			reader.get();
+    	} catch (InterruptedException | ExecutionException e) {
+    		System.err.println("Error reading a stream from Worker " + id + ": " + e);
+    	}
+    }
+
+    /**
+     * @param type command of the stream
+     * @param jobID job the stream belongs to
+     * @param in the stream
+     * @return Runnable that hands the stream to the Master
+     */
+    protected Runnable reader(final byte type, final int jobID, final MessageInputStream in) {
+    	return new Runnable() {
+    		public void run() {
+    			try {
+    				if (type == Utils.W2M_KEY_MANIFEST)
+    					master.receiveKeyManifest(id, in, jobID);
+    				else
+    					master.receiveResults(id, in, jobID);
+    			} finally {
+    				in.close();
+    			}
+    		}
+    	};
+    }
+
+    /**
+     * The part of a file left to send to the worker, which the selector writes 
+     * straight from the file's channel to the socket
+     */
+    protected static class FileRegion {
+    	
+    	protected File file;
+    	protected FileChannel source;
+    	protected long position, end;
+    	protected long start = System.nanoTime();
+    	
+    	public FileRegion(File file) throws IOException {
+    		this.file = file;
+    		source = new FileInputStream(file).getChannel();
+    		end = source.size();
+    	}
+    	
+    	/**
+    	 * Sends as much of the region as the socket takes without blocking
+    	 * 
+    	 * @param channel the socket
+    	 * @return boolean true once the whole region has been sent, and closed
+    	 * @throws IOException if the file or the connection fails
+    	 */
+    	public boolean transferTo(SocketChannel channel) throws IOException {
+    		while (position < end) {
+    			long written = source.transferTo(position, end - position, channel);
+    			if (written == 0) {
+    				// a full socket, unless the file was cut short since it was queued
+    				if (position >= source.size())
+    					throw new IOException(file + " was truncated while it was sent");
+    				return false;
+    			}
+    			position += written;
+    		}
+    		close();
+    		Utils.printThroughput(file.getName() + " sent", end, System.nanoTime() - start);
+    		return true;
+    	}
+    	
+    	public void close() {
+    		try {
+    			source.close();
+    		} catch (IOException e) {}  //ignore exceptions since you are closing it anyways
+    	}
+    }
+
+    /**
+     * Everything written to out ends up here in BUFFER_SIZE pieces, which are
+     * queued for the selector to write.  Writing never waits for the selector
+     */
+    protected class QueuedOutput extends OutputStream {
+
+    	public void write(int b) throws IOException {
+    		write(new byte[] { (byte) b }, 0, 1);
+    	}
+
+    	public void write(byte[] b, int off, int len) throws IOException {
+    		ByteBuffer copy = ByteBuffer.allocate(len);
+    		copy.put(b, off, len).flip();
+    		synchronized (writeQueue) {
+    			if (isStopped())
+    				throw new IOException("Connection closed: " + WorkerConnection.this);
+    			writeQueue.add(copy);
+    			queuedBytes += len;
+    		}
+    		master.watchWrites(WorkerConnection.this);
     	}
     }
-}
\ No newline at end of file
+}
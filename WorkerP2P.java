@@ -1,83 +1,354 @@
 package mapreduce;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * This class' object is used by the worker to communicate with other worker peers.
- * This class' instance is always listening at the port specified for other W_P2P peers  
+ * This class' instance is always listening at the port specified for other W_P2P peers
  *
  */
 public class WorkerP2P extends Thread {
- 
-	protected ServerSocket workerServerSocket;
+
+	protected ServerSocketChannel workerServerChannel;
+	protected Selector selector;
 	protected Worker worker;
     protected boolean stopped;
-    
+    // outgoing connections to peers, keyed by "peerAddress:port" for the worker's lifetime
+    protected ConcurrentMap<String, PeerConnection> peers;
+    // bounded pool that decodes and merges incoming transfers in parallel
+    protected ExecutorService decoders;
+    // peer channels that finished a transfer and must be watched by the selector again
+    protected Queue<SocketChannel> idle;
+    // channels whose keys were cancelled but are not yet deregistered from the selector
+    protected List<SocketChannel> cancelled;
+
     public WorkerP2P(int port, Worker worker) throws IOException {
     	this.stopped = false;
-    	this.workerServerSocket = new ServerSocket(port);
     	this.worker = worker;
+    	this.peers = new ConcurrentHashMap<>();
+    	this.idle = new ConcurrentLinkedQueue<>();
+    	this.cancelled = new ArrayList<>();
+    	this.decoders = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    	this.selector = Selector.open();
+    	this.workerServerChannel = ServerSocketChannel.open();
+    	this.workerServerChannel.socket().bind(new InetSocketAddress(port));
+    	this.workerServerChannel.configureBlocking(false);
+    	this.workerServerChannel.register(selector, SelectionKey.OP_ACCEPT);
     	this.setDaemon(true);
     	this.start();
     }
-    
+
     protected synchronized boolean isStopped() {
     	return stopped;
     }
- 
+
     /**
-	 * Separate Thread: Listens for incoming messages
+	 * Separate Thread: a selector watches every peer connection, and when a transfer
+	 * starts on one the channel is handed to the decoder pool.  Idle connections do
+	 * not hold a thread, and transfers from different peers are decoded in parallel
 	 */
 	public void run(){
-		System.out.println("WorkerP2P Listener info: " + workerServerSocket);
+		System.out.println("WorkerP2P Listener info: " + workerServerChannel.socket());
 		try {
 			while(!isStopped()) {
-				Socket p2pSocket = workerServerSocket.accept();
-				int jobID = Utils.readInt(p2pSocket.getInputStream());
-				Object[] objArr = (Object[]) 
-						new ObjectInputStream(p2pSocket.getInputStream()).readObject();
-				System.out.println("Job " + jobID + ": Received <" + objArr[0] + "> from " + p2pSocket);
-				worker.jobs.get(jobID).receiveKV(objArr[0], objArr[1]);
+				SocketChannel ch;
+				while ((ch = idle.poll()) != null)
+					watch(ch);
+				selector.select();
+				processSelectedKeys();
+				while (!cancelled.isEmpty()) {
+					// a channel can only switch to blocking mode once it is deregistered,
+					// which happens for cancelled keys on the next select
+					selector.selectNow();
+					List<SocketChannel> ready = new ArrayList<>(cancelled);
+					cancelled.clear();
+					processSelectedKeys();
+					for (SocketChannel c : ready)
+						dispatch(c);
+				}
 			}
-		} catch (IOException | ClassNotFoundException e) {
+		} catch (IOException e) {
 			if (isStopped()) // we intended to stop the server
 				return;
 			System.out.println("IOException in WorkerP2P: " + e);
 		}
 	}
-    
+
+	protected void processSelectedKeys() throws IOException {
+		Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+		while (it.hasNext()) {
+			SelectionKey key = it.next();
+			it.remove();
+			if (!key.isValid())
+				continue;
+			if (key.isAcceptable()) {
+				SocketChannel ch = workerServerChannel.accept();
+				if (ch != null)
+					watch(ch);
+			}
+			else if (key.isReadable()) {
+				key.cancel();
+				cancelled.add((SocketChannel) key.channel());
+			}
+		}
+	}
+
+	protected void watch(SocketChannel ch) {
+		try {
+			ch.configureBlocking(false);
+			ch.register(selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			close(ch);
+		}
+	}
+
+	protected void dispatch(final SocketChannel ch) {
+		try {
+			ch.configureBlocking(true);
+			decoders.execute(new Runnable() {
+				public void run() {
+					boolean reuse = false;
+					try {
+						reuse = receive(ch);
+					} finally {
+						if (reuse) {
+							idle.add(ch);
+							selector.wakeup();
+						}
+						else
+							close(ch);
+					}
+				}
+			});
+		} catch (IOException | RejectedExecutionException e) {
+			close(ch);
+		}
+	}
+
+	protected void close(SocketChannel ch) {
+		try {
+			ch.close();
+		} catch (IOException e) {}  //ignore exceptions since you are closing
+	}
+
+	/**
+	 * Reads one request from a peer.  Most are transfers: a jobID followed by a 
+	 * chunked stream of keys and value lists, which is staged by the job, or 
+	 * handed to it as a batch to reduce, and then ACKed.  The peer waits for the 
+	 * ACK before sending again, so nothing past the transfer is buffered
+	 *
+	 * @param ch blocking channel of a peer that has started a transfer
+	 * @return true if the connection can be reused, false if it was closed or failed
+	 */
+	protected boolean receive(SocketChannel ch) {
+		try {
+			InputStream in = new BufferedInputStream(Channels.newInputStream(ch), Utils.BUFFER_SIZE);
+			OutputStream out = Channels.newOutputStream(ch);
+			int type = in.read();
+			if (type == -1)  // peer closed its connection
+				return false;
+			int jobID = Utils.readInt(in);
+			if (type == Utils.W2W_FETCH_FILE)
+				return sendInput(ch, in, out, jobID);
+			// the batch a backup reduces is headed by its owner and number, and a 
+			// transfer by the worker that sent it, the round it is reduced in and its number
+			int owner = Utils.readInt(in);
+			int index = Utils.readInt(in);
+			int transfer = type == Utils.W2W_KEY_TRANSFER ? Utils.readInt(in) : 0;
+			// the job's Codecs are needed to read the transfer
+			Job<?,?,?> job = worker.getJob(jobID);
+			if (job == null)  // a straggler sending to a job that has completed here
+				return false;
+			// hold the whole transfer so that a failed one is never partially added, 
+			// in the order it was sent since batches of a sorted job are in key order
+			Map<Object, Object> batch = new LinkedHashMap<>();
+			ChunkedInput chunks = new ChunkedInput(in, job.keyCodec, job.valuesCodec, job.compressor, job.loader);
+			while (chunks.next()) {
+				Object[] k = chunks.keys(), v = chunks.values();
+				for (int j = 0; j < k.length; j++)
+					batch.put(k[j], v[j]);
+			}
+			if (type == Utils.W2W_REDUCE_BATCH) {
+				out.write(Utils.ACK);
+				out.flush();
+				job.receiveBatch(owner, index, batch);
+				System.out.println("Job " + jobID + ": Received a copy of batch " + index + " of Worker " + owner);
+			}
+			else {
+				// the transfer is ACKed once it is staged, so the sender knows it arrived
+				job.receiveTransfer(owner, index, transfer, batch);
+				out.write(Utils.ACK);
+				out.flush();
+				System.out.println("Job " + jobID + ": Received " + batch.size() + " keys from Worker " + owner);
+			}
+			return true;
+		} catch (IOException | ClassNotFoundException | InterruptedException e) {
+			if (!isStopped())
+				System.out.println("Exception receiving from peer " + ch.socket() + ": " + e);
+			return false;
+		} catch (RuntimeException e) {
+			// such as a Codec failing on what it reads, which leaves the stream unusable
+			System.err.println("Error decoding from peer " + ch.socket() + ": " + e);
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	/**
+	 * Sends a peer one of this worker's input files, for it to map a backup copy of
+	 *
+	 * @return true if the connection can be reused
+	 * @throws IOException if the connection fails
+	 */
+	protected boolean sendInput(SocketChannel ch, InputStream in, OutputStream out, int jobID) throws IOException {
+		String filename = Utils.readString(new DataInputStream(in));
+		File file = new File(worker.basePath, filename);
+		// only the files in the worker's own directory are handed out
+		if (!file.getName().equals(filename) || !file.isFile()) {
+			out.write(Utils.NONE);
+			out.flush();
+			return true;
+		}
+		out.write(Utils.ACK);
+		Utils.sendFile(ch.socket(), out, file);
+		return true;
+	}
+	
+	/**
+	 * Sends every key bound for one peer as a single streamed transfer over a
+	 * pooled connection.  A pooled connection that has gone stale is replaced
+	 * and the transfer is retried once, under the same number so the peer does
+	 * not stage it twice if only the ACK was lost
+	 *
+	 * @param job the job these keys belong to
+	 * @param kvs keys and their value lists to send
+	 * @param round the reduce round the keys belong to
+	 * @param peerAddress address of the peer's WorkerP2P
+	 * @param port port of the peer's WorkerP2P
+	 * @return boolean false if neither attempt was ACKed
+	 */
+	public <K extends Serializable, V extends Serializable> boolean send(Job<K, V, ?> job, Map<K, List<V>> kvs, 
+			int round, String peerAddress, int port){
+		int jobID = job.jobID;
+		String peerKey = peerAddress + ":" + port;
+		int transfer = job.transferCounter.incrementAndGet();
+		for (int attempt = 0; attempt < 2; attempt++) {
+			PeerConnection peer = null;
+			try {
+				peer = getPeer(peerKey, peerAddress, port);
+				peer.transfer(job, kvs, round, transfer);
+				System.out.println("Job " + jobID + ": Sent " + kvs.size() + " keys to " + peerKey);
+				return true;
+			} catch (IOException e) {
+				if (peer != null) {
+					peers.remove(peerKey, peer);
+					peer.closeConnection();
+				}
+				System.err.println("Error sending K,V pairs to " + peerKey + ": " + e);
+			}
+		}
+		return false;
+	}
+
 	/**
-	 * Adhoc socket communication
-	 * Send command, wait for command_okay, and then send Key,Value pair in an Object[] as JSON 
-	 * @param key
-	 * @param ls
-	 * @param peerAddress
-	 * @param port
+	 * Sends a copy of a reduce batch to the worker reducing it as a backup
+	 *
+	 * @param job the job the batch belongs to
+	 * @param index number of the batch on this worker
+	 * @param kvs keys of the batch and their value lists
+	 * @param peerAddress address of the peer's WorkerP2P
+	 * @param port port of the peer's WorkerP2P
 	 */
-	public <K,V> void send(K key, List<V> values, int jobID, String peerAddress, int port){
+	public <K extends Serializable, V extends Serializable> void sendBatch(Job<K, V, ?> job, int index, 
+			Map<K, List<V>> kvs, String peerAddress, int port) {
+		String peerKey = peerAddress + ":" + port;
+		PeerConnection peer = null;
 		try {
-			Socket socket = new Socket(peerAddress, port);
-			Utils.writeInt(socket.getOutputStream(), jobID);
-			new ObjectOutputStream(socket.getOutputStream()).writeObject(new Object[]{key, values});
-			socket.close();
-			System.out.println("Job " + jobID + ": Sent <" + key + "> to " + peerAddress + ":" + port);
+			peer = getPeer(peerKey, peerAddress, port);
+			peer.transferBatch(job, worker.id, index, kvs);
 		} catch (IOException e) {
-			System.err.println("Error sending K,V pair between workers: " + e);
-		} 
+			if (peer != null) {
+				peers.remove(peerKey, peer);
+				peer.closeConnection();
+			}
+			// the batch is still reduced here, so the backup is only lost
+			System.err.println("Error sending batch " + index + " to " + peerKey + ": " + e);
+		}
 	}
 	
 	/**
-	 * Close the Listener socket 
+	 * Copies an input file of a peer, for a backup of its map task
+	 *
+	 * @param job the job the file is mapped for
+	 * @param filename name of the file on the peer
+	 * @param peerAddress address of the peer's WorkerP2P
+	 * @param port port of the peer's WorkerP2P
+	 * @param dir directory to copy the file into
+	 * @return File the copy
+	 * @throws IOException if the peer does not have the file or the connection fails
+	 */
+	public File fetch(Job<?,?,?> job, String filename, String peerAddress, int port, File dir) throws IOException {
+		String peerKey = peerAddress + ":" + port;
+		PeerConnection peer = getPeer(peerKey, peerAddress, port);
+		try {
+			return peer.fetch(job.jobID, filename, dir);
+		} catch (IOException e) {
+			peers.remove(peerKey, peer);
+			peer.closeConnection();
+			throw e;
+		}
+	}
+
+	protected PeerConnection getPeer(String peerKey, String peerAddress, int port) throws IOException {
+		PeerConnection peer = peers.get(peerKey);
+		if (peer == null) {
+			synchronized (peers) {
+				peer = peers.get(peerKey);
+				if (peer == null) {
+					peer = new PeerConnection(peerAddress, port);
+					peers.put(peerKey, peer);
+				}
+			}
+		}
+		return peer;
+	}
+
+	/**
+	 * Close the Listener socket, the decoders and every pooled peer connection
 	 */
 	public synchronized void closeConnection(){
 		stopped = true;
+		decoders.shutdownNow();
 		try {
-			workerServerSocket.close();
+			selector.wakeup();
+			workerServerChannel.close();
 		} catch (IOException e) {}  //ignore exceptions since you are closing
-	}	
-}
\ No newline at end of file
+		for (PeerConnection peer : peers.values())
+			peer.closeConnection();
+		peers.clear();
+	}
+}
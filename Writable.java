@@ -0,0 +1,23 @@
+package mapreduce;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A key or value type that writes its own fields, so it can be sent with 
+ * Codecs.writable instead of Java serialization.  Implementations need a 
+ * public no-argument constructor.
+ */
+public interface Writable {
+
+	public void write(DataOutput out) throws IOException;
+
+	/**
+	 * Sets the fields of this object from what write sent
+	 *
+	 * @param in stream to read the fields from
+	 * @throws IOException if the stream fails
+	 */
+	public void readFields(DataInput in) throws IOException;
+}